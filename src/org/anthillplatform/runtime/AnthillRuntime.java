@@ -3,18 +3,26 @@ package org.anthillplatform.runtime;
 import com.mashape.unirest.http.Unirest;
 import com.mashape.unirest.http.options.Option;
 import com.mashape.unirest.http.options.Options;
+import org.anthillplatform.runtime.requests.JsonRequest;
+import org.anthillplatform.runtime.requests.Request;
 import org.anthillplatform.runtime.services.*;
 import org.anthillplatform.runtime.util.ApplicationInfo;
+import org.anthillplatform.runtime.util.Bootstrap;
+import org.anthillplatform.runtime.util.BootstrapSnapshot;
 import org.anthillplatform.runtime.util.Listener;
 import org.anthillplatform.runtime.util.Storage;
+import org.anthillplatform.runtime.util.WriteBehindStorage;
+import org.json.JSONObject;
 
 import java.io.IOException;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Java Runtime for Anthill Platform
@@ -24,13 +32,20 @@ import java.util.Set;
  */
 public class AnthillRuntime
 {
+    private static final long STORAGE_FLUSH_TIMEOUT = 5000;
+
+    public static final String STAGE_SNAPSHOT = "snapshot";
+    public static final String STAGE_ENVIRONMENT = "environment";
+    public static final String STAGE_DISCOVERY = "discovery";
+    public static final String STAGE_AUTHENTICATION = "authentication";
+
     private static AnthillRuntime instance;
 
     private ApplicationInfo applicationInfo;
     private boolean initialized;
 
-    private Map<String, Class> servicesClasses;
-    private Map<String, Service> services;
+    private final ConcurrentHashMap<String, ServiceFactory> factories;
+    private final ConcurrentHashMap<String, Service> services;
 
     private Storage storage;
     private Listener listener;
@@ -96,88 +111,342 @@ public class AnthillRuntime
                 "to wrong class.");
     }
 
-    private <T extends Service> void register(String serviceId, Class<T> tClass)
+    /**
+     * Makes the factory create the services of its IDs from now on (instead of the factory registered before)
+     */
+    public void registerFactory(ServiceFactory factory)
     {
-        servicesClasses.put(serviceId, tClass);
+        for (String serviceId : factory.getServiceIds())
+        {
+            factories.put(serviceId, factory);
+        }
     }
 
     private void registerServices()
     {
-        register(DiscoveryService.ID, DiscoveryService.class);
-        register(DLCService.ID, DLCService.class);
-        register(EnvironmentService.ID, EnvironmentService.class);
-        register(EventService.ID, EventService.class);
-        register(GameService.ID, GameService.class);
-        register(LeaderboardService.ID, LeaderboardService.class);
-        register(LoginService.ID, LoginService.class);
-        register(MessageService.ID, MessageService.class);
-        register(ProfileService.ID, ProfileService.class);
-        register(PromoService.ID, PromoService.class);
-        register(ReportService.ID, ReportService.class);
-        register(SocialService.ID, SocialService.class);
-        register(StaticService.ID, StaticService.class);
-        register(StoreService.ID, StoreService.class);
-        register(BlogService.ID, BlogService.class);
-        register(MarketService.ID, MarketService.class);
+        registerFactory(new BuiltInServiceFactory());
+
+        // the custom services (or custom implementations of the built-in ones) of the application
+        try
+        {
+            for (ServiceFactory factory : ServiceLoader.load(ServiceFactory.class))
+            {
+                registerFactory(factory);
+            }
+        }
+        catch (ServiceConfigurationError e)
+        {
+            e.printStackTrace();
+        }
     }
 
+    /**
+     * Registers the service at that location, or, if it's registered already, moves it there. The requests
+     * in flight complete at the old location, the new ones go to the new one.
+     */
     public Service setService(String serviceId, String location)
     {
         Service existing = services.get(serviceId);
 
-        if (existing != null)
-            return existing;
+        if (existing == null)
+        {
+            Service newInstance = createService(serviceId, location);
+            existing = services.putIfAbsent(serviceId, newInstance);
 
-        @SuppressWarnings("unchecked")
-        Class<Service> tClass = (Class<Service>)servicesClasses.get(serviceId);
+            if (existing == null)
+                return newInstance;
+        }
 
-        Service newInstance;
+        // the service has moved (or has been known from a BootstrapSnapshot)
+        if (location != null && !location.equals(existing.getLocation()))
+        {
+            existing.setLocation(location);
+        }
 
-        if (tClass == null)
+        return existing;
+    }
+
+    private Service createService(String serviceId, String location)
+    {
+        ServiceFactory factory = factories.get(serviceId);
+
+        if (factory != null)
         {
-            // no class for this ID, then give up to generic "service"
+            Service service = factory.create(this, serviceId, location);
 
-            newInstance = new Service(this, location, location, "0.2");
+            if (service != null)
+                return service;
         }
-        else
+
+        // no class for this ID, then give up to generic "service"
+        return new Service(this, location, location, "0.2");
+    }
+
+    public interface WarmStartCallback
+    {
+        /**
+         * @param fromSnapshot true if the services are located as they were last time, and are being
+         *                     looked up again in the background
+         */
+        void complete(AnthillRuntime runtime, Request.Result result, boolean fromSnapshot);
+    }
+
+    /**
+     * Looks up the environment, and then the services, like EnvironmentService.getEnvironmentInfo followed
+     * by DiscoveryService.discoverServices would. But if the Storage has a snapshot of what they have
+     * returned last time (which covers these services), completes right away with that, and looks them up
+     * in the background, the services that have moved are updated in place.
+     */
+    public void warmStart(final String[] services, final WarmStartCallback callback)
+    {
+        BootstrapSnapshot snapshot = loadSnapshot(services);
+
+        if (snapshot == null)
         {
-            Constructor<Service> constructor;
+            lookup(services, callback);
+            return;
+        }
+
+        applySnapshot(snapshot);
+        callback.complete(this, Request.Result.success, true);
+
+        lookup(services, null);
+    }
 
-            try
+    private void lookup(final String[] services, final WarmStartCallback callback)
+    {
+        final EnvironmentService environmentService = get(EnvironmentService.ID, EnvironmentService.class);
+
+        environmentService.getEnvironmentInfo(new EnvironmentService.EnvironmentInfoCallback()
+        {
+            @Override
+            public void complete(EnvironmentService service, Request request, Request.Result result,
+                                 String discoveryLocation, final EnvironmentService.EnvironmentInformation
+                                     environmentInformation)
             {
-                constructor = tClass.getConstructor(AnthillRuntime.class, String.class);
+                if (result != Request.Result.success || discoveryLocation == null)
+                {
+                    if (callback != null)
+                    {
+                        callback.complete(AnthillRuntime.this,
+                            result != Request.Result.success ? result : Request.Result.dataCorrupted, false);
+                    }
+
+                    return;
+                }
+
+                final JSONObject environment = ((JsonRequest) request).getObject();
+
+                get(DiscoveryService.ID, DiscoveryService.class).discoverServices(services,
+                    new DiscoveryService.DiscoveryInfoCallback()
+                {
+                    @Override
+                    public void complete(DiscoveryService service, Request request, Request.Result result,
+                                         Map<String, Service> discoveredServices)
+                    {
+                        if (result == Request.Result.success)
+                        {
+                            saveSnapshot(environment, service, discoveredServices);
+                        }
+
+                        if (callback != null)
+                        {
+                            callback.complete(AnthillRuntime.this, result, false);
+                        }
+                    }
+                });
             }
-            catch (NoSuchMethodException e)
+        });
+    }
+
+    /**
+     * @return the snapshot of the last lookup if it covers these services, null otherwise
+     */
+    private BootstrapSnapshot loadSnapshot(String[] services)
+    {
+        if (storage == null)
+            return null;
+
+        BootstrapSnapshot snapshot = BootstrapSnapshot.load(storage,
+            get(EnvironmentService.ID, EnvironmentService.class).getLocation(), applicationInfo);
+
+        if (snapshot == null || !snapshot.covers(services))
+            return null;
+
+        return snapshot;
+    }
+
+    private void applySnapshot(BootstrapSnapshot snapshot)
+    {
+        get(EnvironmentService.ID, EnvironmentService.class).setEnvironmentVariables(snapshot.environment);
+
+        for (Map.Entry<String, String> entry : snapshot.services.entrySet())
+        {
+            setService(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void saveSnapshot(JSONObject environment, DiscoveryService discoveryService,
+                              Map<String, Service> discoveredServices)
+    {
+        if (storage == null)
+            return;
+
+        Map<String, String> locations = new HashMap<String, String>();
+
+        locations.put(DiscoveryService.ID, discoveryService.getLocation());
+
+        for (Map.Entry<String, Service> entry : discoveredServices.entrySet())
+        {
+            locations.put(entry.getKey(), entry.getValue().getLocation());
+        }
+
+        new BootstrapSnapshot(environment, locations).save(
+            storage, get(EnvironmentService.ID, EnvironmentService.class).getLocation(), applicationInfo);
+    }
+
+    /**
+     * Makes a Bootstrap of the usual startup stages, to add the application's own stages to and then start:
+     * <ul>
+     *     <li>STAGE_ENVIRONMENT and STAGE_DISCOVERY look up the environment and the services</li>
+     *     <li>Bootstrap.located(id) completes once the location of that service is known</li>
+     *     <li>STAGE_AUTHENTICATION validates the token (if any, and then makes it the current one),
+     *     the login service is looked up too then, even if it is not one of the services</li>
+     * </ul>
+     *
+     * If there is a snapshot of the last lookup (see warmStart), STAGE_SNAPSHOT applies it once the bootstrap
+     * is started and the services are located right away, so the authentication and whatever depends on the
+     * locations only runs concurrently with the lookup, which goes to the background.
+     */
+    public Bootstrap newBootstrap(String[] services, final LoginService.AccessToken token)
+    {
+        if (token != null && !Arrays.asList(services).contains(LoginService.ID))
+        {
+            services = Arrays.copyOf(services, services.length + 1);
+            services[services.length - 1] = LoginService.ID;
+        }
+
+        final String[] lookupServices = services;
+        final EnvironmentService environmentService = get(EnvironmentService.ID, EnvironmentService.class);
+        final BootstrapSnapshot snapshot = loadSnapshot(services);
+        boolean warm = snapshot != null;
+
+        final Bootstrap bootstrap = new Bootstrap();
+
+        // the lookup depends on the snapshot too, so it is not the snapshot that has the last word
+        String[] lookupDependsOn = new String[0];
+
+        if (warm)
+        {
+            bootstrap.addStage(STAGE_SNAPSHOT, new Bootstrap.Stage()
             {
-                e.printStackTrace();
-                throw new RuntimeException("Failed to acquire service constructor for service " + serviceId);
-            }
+                @Override
+                public void run(Bootstrap bootstrap, Bootstrap.StageCallback callback)
+                {
+                    applySnapshot(snapshot);
+                    callback.complete(Request.Result.success);
+                }
+            });
+
+            lookupDependsOn = new String[]{STAGE_SNAPSHOT};
+        }
 
+        bootstrap.addStage(STAGE_ENVIRONMENT, new Bootstrap.Stage()
+        {
+            @Override
+            public void run(Bootstrap bootstrap, final Bootstrap.StageCallback callback)
+            {
+                environmentService.getEnvironmentInfo(new EnvironmentService.EnvironmentInfoCallback()
+                {
+                    @Override
+                    public void complete(EnvironmentService service, Request request, Request.Result result,
+                                         String discoveryLocation,
+                                         EnvironmentService.EnvironmentInformation environmentInformation)
+                    {
+                        if (result == Request.Result.success && discoveryLocation == null)
+                        {
+                            result = Request.Result.dataCorrupted;
+                        }
+
+                        callback.complete(result);
+                    }
+                });
+            }
+        }, warm, lookupDependsOn);
 
-            try
+        bootstrap.addStage(STAGE_DISCOVERY, new Bootstrap.Stage()
+        {
+            @Override
+            public void run(Bootstrap bootstrap, final Bootstrap.StageCallback callback)
             {
-                newInstance = constructor.newInstance(this, location);
+                get(DiscoveryService.ID, DiscoveryService.class).discoverServices(lookupServices,
+                    new DiscoveryService.DiscoveryInfoCallback()
+                {
+                    @Override
+                    public void complete(DiscoveryService service, Request request, Request.Result result,
+                                         Map<String, Service> discoveredServices)
+                    {
+                        if (result == Request.Result.success)
+                        {
+                            saveSnapshot(new JSONObject(environmentService.getEnvironmentVariables()),
+                                service, discoveredServices);
+                        }
+
+                        callback.complete(result);
+                    }
+                });
             }
-            catch (InstantiationException e)
+        }, warm, STAGE_ENVIRONMENT);
+
+        Bootstrap.Stage located = new Bootstrap.Stage()
+        {
+            @Override
+            public void run(Bootstrap bootstrap, Bootstrap.StageCallback callback)
             {
-                e.printStackTrace();
-                throw new RuntimeException("Failed to acquire instance for service " + serviceId);
+                callback.complete(Request.Result.success);
             }
-            catch (IllegalAccessException e)
+        };
+
+        for (String serviceId : services)
+        {
+            if (warm)
             {
-                e.printStackTrace();
-                throw new RuntimeException("Failed to acquire instance for service " + serviceId);
+                bootstrap.addStage(Bootstrap.located(serviceId), located, STAGE_SNAPSHOT);
             }
-            catch (InvocationTargetException e)
+            else
             {
-                e.printStackTrace();
-                throw new RuntimeException("Failed to acquire instance for service " + serviceId);
+                bootstrap.addStage(Bootstrap.located(serviceId), located, STAGE_DISCOVERY);
             }
         }
 
-        services.put(serviceId, newInstance);
+        if (token != null)
+        {
+            bootstrap.addStage(STAGE_AUTHENTICATION, new Bootstrap.Stage()
+            {
+                @Override
+                public void run(Bootstrap bootstrap, final Bootstrap.StageCallback callback)
+                {
+                    final LoginService loginService = get(LoginService.ID, LoginService.class);
+
+                    loginService.validateAccessToken(token, new LoginService.ValidationCallback()
+                    {
+                        @Override
+                        public void complete(LoginService service, Request request, Request.Result result,
+                                             String account, String credential, LoginService.Scopes scopes)
+                        {
+                            if (result == Request.Result.success)
+                            {
+                                loginService.setCurrentAccessToken(token);
+                            }
+
+                            callback.complete(result);
+                        }
+                    });
+                }
+            }, Bootstrap.located(LoginService.ID));
+        }
 
-        return newInstance;
+        return bootstrap;
     }
 
     private AnthillRuntime(
@@ -188,8 +457,8 @@ public class AnthillRuntime
     {
         this.applicationInfo = applicationInfo;
         this.initialized = false;
-        this.services = new HashMap<String, Service>();
-        this.servicesClasses = new HashMap<String, Class>();
+        this.services = new ConcurrentHashMap<String, Service>();
+        this.factories = new ConcurrentHashMap<String, ServiceFactory>();
 
         this.storage = storage;
         this.listener = listener;
@@ -199,8 +468,17 @@ public class AnthillRuntime
         setService(EnvironmentService.ID, environmentLocation);
     }
 
+    /**
+     * Closes the WriteBehindStorage the runtime has been created with (if any), and shuts Unirest down.
+     * To know if the storage has been flushed in time, close it with WriteBehindStorage.close first.
+     */
     public void release()
     {
+        if (storage instanceof WriteBehindStorage)
+        {
+            ((WriteBehindStorage) storage).close(STORAGE_FLUSH_TIMEOUT);
+        }
+
         try
         {
             Unirest.shutdown();
@@ -215,4 +493,9 @@ public class AnthillRuntime
     {
         return applicationInfo;
     }
+
+    public Storage getStorage()
+    {
+        return storage;
+    }
 }
@@ -1,25 +1,47 @@
 package org.anthillplatform.runtime.requests;
 
 
+import org.anthillplatform.runtime.util.LazyJSONParser;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
 public class JsonRequest extends Request
 {
     private JSONObject object;
+    private Set<String> lazyFields;
 
     public JsonRequest(String location, RequestCallback requestCallback)
     {
         super(location, requestCallback);
     }
 
+    /**
+     * Object values of these fields (on any depth) won't be parsed along with the response,
+     * use LazyJSONObject.opt to access them
+     */
+    public void setLazyFields(String... lazyFields)
+    {
+        this.lazyFields = new HashSet<String>(Arrays.asList(lazyFields));
+    }
+
     public void parse(String response)
     {
         if ("application/json".equals(getResponseContentType()))
         {
             try
             {
-                this.object = new JSONObject(response);
+                if (lazyFields != null)
+                {
+                    this.object = LazyJSONParser.parse(response, lazyFields);
+                }
+                else
+                {
+                    this.object = new JSONObject(response);
+                }
             }
             catch (JSONException e)
             {
@@ -27,6 +27,8 @@ public abstract class Request
     private Fields postFields;
     private String responseContentType;
     private LoginService.AccessToken workingAccessToken;
+    private String sentAccessToken;
+    private boolean replayed;
     private Headers responseHeaders;
     private InputStream putStream;
     private String APIVersion;
@@ -174,13 +176,18 @@ public abstract class Request
             request.header("X-Api-Version", APIVersion);
         }
 
+        sentAccessToken = workingAccessToken != null ? workingAccessToken.get() : null;
+
         request.asStringAsync(new Callback<String>()
         {
             @Override
             public void completed(HttpResponse<String> response)
             {
+                if (response.getStatus() == 401 && replay())
+                    return;
+
                 responseHeaders = response.getHeaders();
-                responseContentType = response.getHeaders().getFirst("Content-Type");
+                responseContentType = getHeader(response.getHeaders(), "Content-Type");
 
                 if (response.getStatus() >= 300)
                 {
@@ -241,21 +248,16 @@ public abstract class Request
                     {
                         if (response.getStatus() >= 200 && response.getStatus() < 400)
                         {
-                            String newToken = response.getHeaders().getFirst("Access-Token");
+                            String newToken = getHeader(response.getHeaders(), "Access-Token");
 
-                            if (newToken != null)
+                            if (newToken != null && workingAccessToken != null)
                             {
-                                LoginService loginService = AnthillRuntime.Get(LoginService.ID, LoginService.class);
+                                LoginService loginService = getLoginService();
 
-                                /*
                                 if (loginService != null)
                                 {
-                                    if (workingAccessToken != null)
-                                    {
-                                        workingAccessToken = loginService.setCurrentAccessToken(newToken);
-                                    }
+                                    loginService.rotateAccessToken(workingAccessToken, newToken);
                                 }
-                                */
                             }
 
                             complete(Result.success);
@@ -286,6 +288,74 @@ public abstract class Request
         });
     }
 
+    /**
+     * Sends the request again once the token it has been rejected with is refreshed (just once, and
+     * not for the streamed ones); if the token has been refreshed already, sends it right away.
+     *
+     * @return false if the request cannot be replayed
+     */
+    private boolean replay()
+    {
+        if (replayed || workingAccessToken == null || method == RequestMethod.put)
+            return false;
+
+        LoginService loginService = getLoginService();
+
+        if (loginService == null)
+            return false;
+
+        replayed = true;
+
+        if (!workingAccessToken.get().equals(sentAccessToken))
+        {
+            start();
+            return true;
+        }
+
+        return loginService.refreshAccessToken(workingAccessToken, new LoginService.RefreshCallback()
+        {
+            @Override
+            public void complete(String token)
+            {
+                if (token != null)
+                {
+                    start();
+                }
+                else
+                {
+                    Request.this.complete(Result.failed);
+                }
+            }
+        });
+    }
+
+    /**
+     * Header names are case insensitive, unlike Headers keys
+     */
+    private static String getHeader(Headers headers, String name)
+    {
+        String value = headers.getFirst(name);
+
+        if (value != null)
+            return value;
+
+        for (String key : headers.keySet())
+        {
+            if (name.equalsIgnoreCase(key))
+                return headers.getFirst(key);
+        }
+
+        return null;
+    }
+
+    private static LoginService getLoginService()
+    {
+        if (AnthillRuntime.Get() == null)
+            return null;
+
+        return AnthillRuntime.Get(LoginService.ID, LoginService.class);
+    }
+
     public void post()
     {
         post(null);
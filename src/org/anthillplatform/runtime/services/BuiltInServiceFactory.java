@@ -0,0 +1,76 @@
+package org.anthillplatform.runtime.services;
+
+import org.anthillplatform.runtime.AnthillRuntime;
+
+/**
+ * Creates the services this runtime comes with, without reflection
+ */
+public class BuiltInServiceFactory implements ServiceFactory
+{
+    private static final String[] SERVICE_IDS = new String[] {
+        DiscoveryService.ID,
+        DLCService.ID,
+        EnvironmentService.ID,
+        EventService.ID,
+        GameService.ID,
+        LeaderboardService.ID,
+        LoginService.ID,
+        MessageService.ID,
+        ProfileService.ID,
+        PromoService.ID,
+        ReportService.ID,
+        SocialService.ID,
+        StaticService.ID,
+        StoreService.ID,
+        BlogService.ID,
+        MarketService.ID
+    };
+
+    @Override
+    public String[] getServiceIds()
+    {
+        return SERVICE_IDS.clone();
+    }
+
+    @Override
+    public Service create(AnthillRuntime runtime, String serviceId, String location)
+    {
+        switch (serviceId)
+        {
+            case DiscoveryService.ID:
+                return new DiscoveryService(runtime, location);
+            case DLCService.ID:
+                return new DLCService(runtime, location);
+            case EnvironmentService.ID:
+                return new EnvironmentService(runtime, location);
+            case EventService.ID:
+                return new EventService(runtime, location);
+            case GameService.ID:
+                return new GameService(runtime, location);
+            case LeaderboardService.ID:
+                return new LeaderboardService(runtime, location);
+            case LoginService.ID:
+                return new LoginService(runtime, location);
+            case MessageService.ID:
+                return new MessageService(runtime, location);
+            case ProfileService.ID:
+                return new ProfileService(runtime, location);
+            case PromoService.ID:
+                return new PromoService(runtime, location);
+            case ReportService.ID:
+                return new ReportService(runtime, location);
+            case SocialService.ID:
+                return new SocialService(runtime, location);
+            case StaticService.ID:
+                return new StaticService(runtime, location);
+            case StoreService.ID:
+                return new StoreService(runtime, location);
+            case BlogService.ID:
+                return new BlogService(runtime, location);
+            case MarketService.ID:
+                return new MarketService(runtime, location);
+            default:
+                return null;
+        }
+    }
+}
@@ -19,7 +19,7 @@ public class EnvironmentService extends Service
     public static final String API_VERSION = "0.2";
     public static class EnvironmentInformation extends HashMap<String, Object> {}
 
-    private EnvironmentInformation environmentVariables;
+    private volatile EnvironmentInformation environmentVariables;
 
     public EnvironmentService(AnthillRuntime runtime, String location)
     {
@@ -56,12 +56,7 @@ public class EnvironmentService extends Service
                 {
                     JSONObject object = ((JsonRequest) request).getObject();
 
-                    environmentVariables.clear();
-
-                    for (String key : object.keySet())
-                    {
-                        environmentVariables.put(key, object.get(key));
-                    }
+                    EnvironmentInformation variables = setEnvironmentVariables(object);
 
                     try
                     {
@@ -70,13 +65,13 @@ public class EnvironmentService extends Service
                         anthillRuntime.setService(DiscoveryService.ID, discoveryServiceLocation);
 
                         callback.complete(EnvironmentService.this, request, result,
-                                discoveryServiceLocation, environmentVariables);
+                                discoveryServiceLocation, variables);
                     }
                     catch (Exception e)
                     {
                         e.printStackTrace();
 
-                        callback.complete(EnvironmentService.this, request, result, null, environmentVariables);
+                        callback.complete(EnvironmentService.this, request, result, null, variables);
                     }
                 }
                 else
@@ -99,9 +94,11 @@ public class EnvironmentService extends Service
     @SuppressWarnings("unchecked")
     public <T> T variable(String name, T def, Class<? extends T> clazz)
     {
-        if (environmentVariables.containsKey(name))
+        EnvironmentInformation variables = environmentVariables;
+
+        if (variables.containsKey(name))
         {
-            return (T)environmentVariables.get(name);
+            return (T)variables.get(name);
         }
 
         return def;
@@ -111,4 +108,20 @@ public class EnvironmentService extends Service
     {
         return environmentVariables;
     }
+
+    /**
+     * Replaces the environment variables at once (the readers see either the old ones, or the new ones)
+     */
+    public EnvironmentInformation setEnvironmentVariables(JSONObject object)
+    {
+        EnvironmentInformation variables = new EnvironmentInformation();
+
+        for (String key : object.keySet())
+        {
+            variables.put(key, object.get(key));
+        }
+
+        environmentVariables = variables;
+        return variables;
+    }
 }
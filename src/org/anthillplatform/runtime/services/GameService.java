@@ -4,14 +4,19 @@ import org.anthillplatform.runtime.AnthillRuntime;
 import org.anthillplatform.runtime.util.ApplicationInfo;
 import org.anthillplatform.runtime.requests.JsonRequest;
 import org.anthillplatform.runtime.requests.Request;
+import org.anthillplatform.runtime.util.EventDispatcher;
+import org.anthillplatform.runtime.util.EventPublisher;
 import org.anthillplatform.runtime.util.JsonRPC;
+import org.anthillplatform.runtime.util.LazyJSONObject;
+import org.anthillplatform.runtime.util.Reconnector;
+import org.anthillplatform.runtime.util.TLSContext;
 import org.anthillplatform.runtime.util.Utils;
 import org.anthillplatform.runtime.util.WebSocketJsonRPC;
+import org.anthillplatform.runtime.util.WebSocketOptions;
 import org.java_websocket.handshake.ServerHandshake;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
-import javax.net.ssl.SSLContext;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -29,6 +34,8 @@ public class GameService extends Service
     public static final String ID = "game";
     public static final String API_VERSION = "0.2";
 
+    private final WebSocketOptions sessionOptions;
+
     public interface JoinGameCallback
     {
         void success(String roomId, String key, String host, int[] ports, JSONObject settings);
@@ -96,13 +103,13 @@ public class GameService extends Service
     {
         private String account;
         private int role;
-        private JSONObject profile;
+        private LazyJSONObject profile;
 
         public PartyMember(JSONObject data)
         {
             this.account = data.optString("account");
             this.role = data.optInt("role", 0);
-            this.profile = data.optJSONObject("profile");
+            this.profile = LazyJSONObject.opt(data, "profile");
         }
 
         public String getAccount()
@@ -117,7 +124,7 @@ public class GameService extends Service
 
         public JSONObject getProfile()
         {
-            return profile;
+            return profile != null ? profile.get() : null;
         }
     }
 
@@ -157,12 +164,37 @@ public class GameService extends Service
         }
     }
 
+    /**
+     * A message of a party session, as seen by PartySession.getEventPublisher subscribers
+     */
+    public static class PartyEvent
+    {
+        public final String messageType;
+        public final JSONObject payload;
+
+        public PartyEvent(String messageType, JSONObject payload)
+        {
+            this.messageType = messageType;
+            this.payload = payload;
+        }
+    }
+
     public static class PartySession
     {
         private PartySessionRPC jsonRPC;
         private Listener listener;
+        private final EventPublisher<PartyEvent> events = new EventPublisher<PartyEvent>();
+        private WebSocketJsonRPC.WritabilityListener writabilityListener;
+        private WebSocketJsonRPC.LatencyListener latencyListener;
+        private final WebSocketOptions options;
+        private final Reconnector reconnector;
         private HashMap<String, InternalMessageHandler> internalHandlers;
 
+        private URI uri;
+        private HashMap<String, String> args;
+        private String resumeLocation;
+        private volatile String partyId;
+
         private static final String MESSAGE_TYPE_PLAYER_JOINED = "player_joined";
         private static final String MESSAGE_TYPE_PLAYER_LEFT = "player_left";
         private static final String MESSAGE_TYPE_GAME_STARTING = "game_starting";
@@ -173,7 +205,22 @@ public class GameService extends Service
 
         public PartySession(Listener listener)
         {
-            this.listener = listener;
+            this(listener, new WebSocketOptions());
+        }
+
+        public PartySession(Listener listener, WebSocketOptions options)
+        {
+            this.listener = options.dispatcher != null ?
+                new DispatchingListener(listener, options.dispatcher) : listener;
+            this.options = options;
+            this.reconnector = new Reconnector(options)
+            {
+                @Override
+                protected void reconnect()
+                {
+                    resume();
+                }
+            };
         }
 
         private interface InternalMessageHandler
@@ -199,11 +246,183 @@ public class GameService extends Service
             void onCustomMessage(String messageType, JSONObject payload);
         }
 
+        /**
+         * Delivers the events with the dispatcher, in order, as the party is the same for all of them
+         */
+        private class DispatchingListener implements Listener
+        {
+            private final Listener listener;
+            private final EventDispatcher dispatcher;
+
+            private DispatchingListener(Listener listener, EventDispatcher dispatcher)
+            {
+                this.listener = listener;
+                this.dispatcher = dispatcher;
+            }
+
+            @Override
+            public void onError(final int code, final String message, final String data)
+            {
+                dispatcher.dispatchAlways(PartySession.this, new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        listener.onError(code, message, data);
+                    }
+                });
+            }
+
+            @Override
+            public void onError(final Exception e)
+            {
+                dispatcher.dispatchAlways(PartySession.this, new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        listener.onError(e);
+                    }
+                });
+            }
+
+            @Override
+            public void onOpen()
+            {
+                dispatcher.dispatchAlways(PartySession.this, new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        listener.onOpen();
+                    }
+                });
+            }
+
+            @Override
+            public void onClose(final int code, final String message, final boolean remote)
+            {
+                dispatcher.dispatchAlways(PartySession.this, new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        listener.onClose(code, message, remote);
+                    }
+                });
+            }
+
+            @Override
+            public void onPartyInfoReceived(final Party party, final List<PartyMember> members)
+            {
+                dispatcher.dispatch(PartySession.this, new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        listener.onPartyInfoReceived(party, members);
+                    }
+                });
+            }
+
+            @Override
+            public void onPlayerJoined(final PartyMember member)
+            {
+                dispatcher.dispatch(PartySession.this, new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        listener.onPlayerJoined(member);
+                    }
+                });
+            }
+
+            @Override
+            public void onPlayerLeft(final PartyMember member)
+            {
+                dispatcher.dispatch(PartySession.this, new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        listener.onPlayerLeft(member);
+                    }
+                });
+            }
+
+            @Override
+            public void onGameStarting(final JSONObject payload)
+            {
+                dispatcher.dispatch(PartySession.this, new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        listener.onGameStarting(payload);
+                    }
+                });
+            }
+
+            @Override
+            public void onGameStartFailed(final int code, final String message)
+            {
+                dispatcher.dispatch(PartySession.this, new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        listener.onGameStartFailed(code, message);
+                    }
+                });
+            }
+
+            @Override
+            public void onGameStarted(final String roomId, final String slot, final String key, final String host,
+                                      final ArrayList<Integer> ports, final JSONObject roomSettings)
+            {
+                dispatcher.dispatch(PartySession.this, new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        listener.onGameStarted(roomId, slot, key, host, ports, roomSettings);
+                    }
+                });
+            }
+
+            @Override
+            public void onPartyClosed(final JSONObject payload)
+            {
+                dispatcher.dispatch(PartySession.this, new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        listener.onPartyClosed(payload);
+                    }
+                });
+            }
+
+            @Override
+            public void onCustomMessage(final String messageType, final JSONObject payload)
+            {
+                dispatcher.dispatch(PartySession.this, new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        listener.onCustomMessage(messageType, payload);
+                    }
+                });
+            }
+        }
+
         private class PartySessionRPC extends WebSocketJsonRPC
         {
             public PartySessionRPC(URI serverURI)
             {
-                super(serverURI);
+                super(serverURI, options);
             }
 
             @Override
@@ -215,25 +434,63 @@ public class GameService extends Service
             @Override
             public void onOpen(ServerHandshake serverHandshake)
             {
-                listener.onOpen();
+                super.onOpen(serverHandshake);
+
+                if (!reconnector.connected())
+                {
+                    listener.onOpen();
+                }
             }
 
             @Override
             public void onClose(int i, String s, boolean b)
             {
-                listener.onClose(i, s, b);
+                super.onClose(i, s, b);
+
+                if (!reconnector.connectionLost(i))
+                {
+                    listener.onClose(i, s, b);
+                    events.complete();
+                }
             }
 
             @Override
             public void onError(Exception e)
             {
-                listener.onError(e);
+                // failed attempts to reconnect are reported with Reconnector.Listener instead
+                if (!reconnector.isReconnecting())
+                {
+                    listener.onError(e);
+                }
             }
         }
 
         public void close()
         {
-            jsonRPC.close();
+            reconnector.stop();
+
+            if (jsonRPC != null)
+            {
+                jsonRPC.close();
+            }
+        }
+
+        /**
+         * Called upon every attempt to reconnect (see WebSocketOptions.reconnect). While the session is
+         * reconnecting, Listener.onClose is not called, until it gives up.
+         */
+        public void setReconnectListener(Reconnector.Listener reconnectListener)
+        {
+            reconnector.setListener(reconnectListener);
+        }
+
+        /**
+         * Once the party is known, the session reconnects to location + party id + "/session" instead of
+         * the original location, so a session that has created a party does not create another one
+         */
+        void setResumeLocation(String location)
+        {
+            this.resumeLocation = location;
         }
 
         public PartySessionRPC getRPC()
@@ -247,6 +504,57 @@ public class GameService extends Service
             return jsonRPC != null && jsonRPC.isOpen();
         }
 
+        public int getPendingRequestsCount()
+        {
+            return jsonRPC != null ? jsonRPC.getPendingRequestsCount() : 0;
+        }
+
+        /**
+         * @return false if the messages are piling up in the send queue as the connection cannot keep up
+         */
+        public boolean isWritable()
+        {
+            return jsonRPC == null || jsonRPC.isWritable();
+        }
+
+        public void setWritabilityListener(WebSocketJsonRPC.WritabilityListener writabilityListener)
+        {
+            this.writabilityListener = writabilityListener;
+
+            if (jsonRPC != null)
+            {
+                jsonRPC.setWritabilityListener(writabilityListener);
+            }
+        }
+
+        /**
+         * @return the smoothed round trip time to the server in milliseconds, or -1 if not known
+         *   (see WebSocketOptions.heartbeatInterval)
+         */
+        public long getRoundTripTime()
+        {
+            return jsonRPC != null ? jsonRPC.getRoundTripTime() : -1;
+        }
+
+        /**
+         * The party messages as a stream, keyed by the message type (player_joined, game_started etc),
+         * completed once the session is closed for good
+         */
+        public EventPublisher<PartyEvent> getEventPublisher()
+        {
+            return events;
+        }
+
+        public void setLatencyListener(WebSocketJsonRPC.LatencyListener latencyListener)
+        {
+            this.latencyListener = latencyListener;
+
+            if (jsonRPC != null)
+            {
+                jsonRPC.setLatencyListener(latencyListener);
+            }
+        }
+
         public boolean sendCustomMessage(JSONObject payload, JsonRPC.ResponseHandler callback)
         {
             if (!isOpen())
@@ -322,41 +630,11 @@ public class GameService extends Service
 
         public void open(String location, HashMap<String, String> args)
         {
-            URI uri;
+            this.args = args;
 
             try
             {
-                StringBuilder queryString = new StringBuilder();
-
-                queryString.append(location);
-
-                boolean first = true;
-
-                for (Map.Entry<String, String> entry : args.entrySet())
-                {
-                    if (first)
-                    {
-                        queryString.append("?");
-                        first = false;
-                    }
-                    else
-                    {
-                        queryString.append("&");
-                    }
-
-                    try {
-                        queryString
-                                .append(URLEncoder.encode(entry.getKey(), "UTF-8"))
-                                .append("=")
-                                .append(URLEncoder.encode((entry.getValue() == null) ? "" :
-                                        entry.getValue(), "UTF-8"));
-
-                    } catch (UnsupportedEncodingException e) {
-                        throw new RuntimeException(e);
-                    }
-                }
-
-                uri = new URI(queryString.toString());
+                uri = buildURI(location, args);
             }
             catch (URISyntaxException e)
             {
@@ -365,43 +643,83 @@ public class GameService extends Service
                 return;
             }
 
-            if (uri.getScheme().equals("https"))
-            {
-                try
-                {
-                    uri = new URI("wss", null, uri.getHost(), uri.getPort(), uri.getPath(),
-                        uri.getQuery(), uri.getFragment());
-                    jsonRPC = new PartySessionRPC(uri);
+            connect();
+        }
+
+        private void resume()
+        {
+            String partyId = this.partyId;
 
-                    SSLContext context = SSLContext.getInstance( "TLS" );
+            if (resumeLocation != null && partyId != null && !partyId.isEmpty())
+            {
+                HashMap<String, String> resumeArgs = new HashMap<String, String>();
 
-                    context.init(null, null, null);
+                for (String arg : new String[]{"auto_join", "member_profile", "access_token"})
+                {
+                    if (args.containsKey(arg))
+                        resumeArgs.put(arg, args.get(arg));
+                }
 
-                    jsonRPC.setSocket(context.getSocketFactory().createSocket());
+                try
+                {
+                    uri = buildURI(resumeLocation + partyId + "/session", resumeArgs);
                 }
-                catch (Exception e)
+                catch (URISyntaxException e)
                 {
                     e.printStackTrace();
-                    listener.onError(e);
-                    return;
                 }
             }
-            else
+
+            connect();
+        }
+
+        private static URI buildURI(String location, HashMap<String, String> args) throws URISyntaxException
+        {
+            StringBuilder queryString = new StringBuilder();
+
+            queryString.append(location);
+
+            boolean first = true;
+
+            for (Map.Entry<String, String> entry : args.entrySet())
             {
-                try
+                if (first)
                 {
-                    uri = new URI("ws", null, uri.getHost(), uri.getPort(), uri.getPath(),
-                        uri.getQuery(), uri.getFragment());
-                    jsonRPC = new PartySessionRPC(uri);
+                    queryString.append("?");
+                    first = false;
                 }
-                catch (URISyntaxException e)
+                else
                 {
-                    e.printStackTrace();
-                    listener.onError(e);
-                    return;
+                    queryString.append("&");
+                }
+
+                try {
+                    queryString
+                            .append(URLEncoder.encode(entry.getKey(), "UTF-8"))
+                            .append("=")
+                            .append(URLEncoder.encode((entry.getValue() == null) ? "" :
+                                    entry.getValue(), "UTF-8"));
+
+                } catch (UnsupportedEncodingException e) {
+                    throw new RuntimeException(e);
                 }
             }
 
+            URI uri = new URI(queryString.toString());
+
+            return new URI(uri.getScheme().equals("https") ? "wss" : "ws", null, uri.getHost(),
+                uri.getPort(), uri.getPath(), uri.getQuery(), uri.getFragment());
+        }
+
+        private void connect()
+        {
+            jsonRPC = new PartySessionRPC(uri);
+
+            if (uri.getScheme().equals("wss"))
+            {
+                jsonRPC.setSocketFactory(TLSContext.getShared().getSocketFactory());
+            }
+
             init();
 
             jsonRPC.connect();
@@ -409,6 +727,9 @@ public class GameService extends Service
 
         private void init()
         {
+            jsonRPC.setWritabilityListener(writabilityListener);
+            jsonRPC.setLatencyListener(latencyListener);
+
             internalHandlers = new HashMap<String, InternalMessageHandler>();
 
             internalHandlers.put(MESSAGE_TYPE_PLAYER_JOINED, new InternalMessageHandler()
@@ -525,6 +846,11 @@ public class GameService extends Service
 
                     internalHandler.onMessage(messageType, payload);
 
+                    if (events.hasSubscribers(messageType))
+                    {
+                        events.publish(messageType, new PartyEvent(messageType, payload));
+                    }
+
                     return null;
                 }
             });
@@ -563,7 +889,10 @@ public class GameService extends Service
                         members_.add(new PartyMember(member_));
                     }
 
-                    listener.onPartyInfoReceived(new Party(partyItself), members_);
+                    Party party = new Party(partyItself);
+                    partyId = party.getId();
+
+                    listener.onPartyInfoReceived(party, members_);
 
                     return null;
                 }
@@ -825,6 +1154,8 @@ public class GameService extends Service
     public GameService(AnthillRuntime runtime, String location)
     {
         super(runtime, location, ID, API_VERSION);
+
+        this.sessionOptions = new WebSocketOptions();
     }
 
     public static GameService Get()
@@ -832,6 +1163,14 @@ public class GameService extends Service
         return AnthillRuntime.Get(ID, GameService.class);
     }
 
+    /**
+     * Options applied to the party sessions opened after they're changed
+     */
+    public WebSocketOptions getSessionOptions()
+    {
+        return sessionOptions;
+    }
+
     public void getStatus(final GetGamesStatusCallback callback)
     {
         JsonRequest jsonRequest = new JsonRequest(getLocation() + "/status",
@@ -1535,7 +1874,8 @@ public class GameService extends Service
 
         args.put("access_token", accessToken.get());
 
-        PartySession partySession = new PartySession(listener);
+        PartySession partySession = new PartySession(listener, sessionOptions);
+        partySession.setResumeLocation(getLocation() + "/party/");
         partySession.open(
             getLocation() + "/party/create/" +
             applicationInfo.applicationName + "/" + applicationInfo.applicationVersion +
@@ -1568,7 +1908,7 @@ public class GameService extends Service
         args.put("auto_join", autoJoin ? "true" : "false");
         args.put("access_token", accessToken.get());
 
-        PartySession partySession = new PartySession(listener);
+        PartySession partySession = new PartySession(listener, sessionOptions);
         partySession.open(
             getLocation() + "/party/" + partyId + "/session",
             args);
@@ -4,11 +4,29 @@ import org.anthillplatform.runtime.requests.JsonRequest;
 import org.anthillplatform.runtime.AnthillRuntime;
 import org.anthillplatform.runtime.requests.Request;
 import org.anthillplatform.runtime.requests.StringRequest;
+import org.anthillplatform.runtime.util.Backoff;
+import org.anthillplatform.runtime.util.HashedWheelTimer;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 /**
  * An authentication service for Anthill platform
@@ -24,11 +42,39 @@ public class LoginService extends Service
 
     private AccessToken currentAccessToken;
     private ExternalAuthenticator externalAuthenticator;
+    private TokenRefresher tokenRefresher;
+    private final Map<AccessToken, List<RefreshCallback>> refreshing;
+    private final Map<String, Validation> validations;
+    private final Set<String> revalidating;
+
+    private final Map<AccessToken, Renewal> renewals;
+    private volatile double renewalFraction = 0.75;
+    private volatile double renewalJitter = 0.1;
+
+    private static final long REFRESH_TIMEOUT = 30000;
+    private static final long RENEWAL_RETRY_DELAY = 1000;
+    private static final long RENEWAL_RETRY_MAX_DELAY = 60000;
+    private static final int VALIDATIONS_CACHED = 16;
+    private static final long VALIDATION_TTL = 5 * 60 * 1000;
+    private static final long REVALIDATE_AFTER = 60 * 1000;
 
+    /**
+     * A set of scopes. Along with the names, it keeps a bitset over the scope names interned once for
+     * the whole process (there are just a few dozens of different ones), so the checks against another
+     * Scopes do not hash any strings.
+     */
     public static class Scopes extends HashSet<String>
     {
+        // declared before ALL, as it needs them initialized
+        private static final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+        private static volatile String[] names = new String[0];
+
         public static Scopes ALL = new Scopes("*");
 
+        // ids are only valid within the process, so the bits are rebuilt from the names once deserialized
+        private transient BitSet bits;
+        private transient String string;
+
         public static Scopes FromString(String scopes)
         {
             return new Scopes(scopes.split(","));
@@ -36,28 +82,189 @@ public class LoginService extends Service
 
         public Scopes()
         {
-
+            this.bits = new BitSet();
         }
 
         public Scopes(String ... scopes)
         {
+            this();
+
             for (String scope : scopes)
             {
                 add(scope);
             }
         }
 
+        public Scopes(Collection<String> scopes)
+        {
+            this();
+            addAll(scopes);
+        }
+
         public Scopes(JSONArray scopes)
         {
+            this();
+
             for (int i = 0; i < scopes.length(); i++)
             {
                 add(scopes.getString(i));
             }
         }
 
+        private static int intern(String scope)
+        {
+            Integer id = ids.get(scope);
+
+            if (id != null)
+                return id;
+
+            synchronized (ids)
+            {
+                id = ids.get(scope);
+
+                if (id != null)
+                    return id;
+
+                String[] names = Arrays.copyOf(Scopes.names, Scopes.names.length + 1);
+                id = names.length - 1;
+                names[id] = scope;
+
+                // the name goes first, so any id found in ids has its name already
+                Scopes.names = names;
+                ids.put(scope, id);
+
+                return id;
+            }
+        }
+
+        @Override
+        public boolean add(String scope)
+        {
+            if (!super.add(scope))
+                return false;
+
+            bits.set(intern(scope));
+            string = null;
+
+            return true;
+        }
+
+        @Override
+        public boolean remove(Object o)
+        {
+            if (!super.remove(o))
+                return false;
+
+            bits.clear(ids.get(o));
+            string = null;
+
+            return true;
+        }
+
+        @Override
+        public void clear()
+        {
+            super.clear();
+            bits.clear();
+            string = null;
+        }
+
+        @Override
+        public boolean containsAll(Collection<?> c)
+        {
+            if (!(c instanceof Scopes))
+                return super.containsAll(c);
+
+            BitSet missing = (BitSet)((Scopes) c).bits.clone();
+            missing.andNot(bits);
+
+            return missing.isEmpty();
+        }
+
+        /**
+         * @return true if the sets have any scope in common
+         */
+        public boolean intersects(Scopes other)
+        {
+            return bits.intersects(other.bits);
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (o instanceof Scopes)
+                return bits.equals(((Scopes) o).bits);
+
+            return super.equals(o);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return super.hashCode();
+        }
+
+        @Override
+        public Iterator<String> iterator()
+        {
+            final Iterator<String> iterator = super.iterator();
+
+            return new Iterator<String>()
+            {
+                private String last;
+
+                @Override
+                public boolean hasNext()
+                {
+                    return iterator.hasNext();
+                }
+
+                @Override
+                public String next()
+                {
+                    last = iterator.next();
+                    return last;
+                }
+
+                @Override
+                public void remove()
+                {
+                    iterator.remove();
+
+                    bits.clear(ids.get(last));
+                    string = null;
+                }
+            };
+        }
+
+        @Override
+        public Object clone()
+        {
+            Scopes clone = ((Scopes) super.clone());
+            clone.bits = (BitSet) bits.clone();
+            return clone;
+        }
+
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+        {
+            in.defaultReadObject();
+
+            bits = new BitSet();
+
+            for (String scope : this)
+            {
+                bits.set(intern(scope));
+            }
+        }
+
         @Override
         public String toString()
         {
+            String string = this.string;
+
+            if (string != null)
+                return string;
+
             StringBuilder sb = new StringBuilder();
 
             for (String item : this)
@@ -70,13 +277,17 @@ public class LoginService extends Service
                 sb.append(item);
             }
 
-            return sb.toString();
+            string = sb.toString();
+            this.string = string;
+
+            return string;
         }
     }
 
     public static class AccessToken
     {
-        private String raw;
+        // rotated in place, so everyone holding the token gets the new one
+        private volatile String raw;
 
         private AccessToken()
         {
@@ -100,6 +311,27 @@ public class LoginService extends Service
         }
     }
 
+    /**
+     * What the server has told about a token once validated
+     */
+    private static class Validation
+    {
+        private final String account;
+        private final String credential;
+        private final Scopes scopes;
+        private final long expiresAt;
+        private final long validatedAt;
+
+        private Validation(String account, String credential, Scopes scopes, long expiresAt, long validatedAt)
+        {
+            this.account = account;
+            this.credential = credential;
+            this.scopes = scopes;
+            this.expiresAt = expiresAt;
+            this.validatedAt = validatedAt;
+        }
+    }
+
     public static class MergeOption
     {
         public String name;
@@ -134,6 +366,22 @@ public class LoginService extends Service
             String account, String credential, Scopes scopes);
     }
 
+    public interface RefreshCallback
+    {
+        /**
+         * @param token the new raw token, or null if it could not be refreshed
+         */
+        void complete(String token);
+    }
+
+    /**
+     * Gets a new token once a request has been rejected with the current one (see setTokenRefresher)
+     */
+    public interface TokenRefresher
+    {
+        void refresh(LoginService service, AccessToken token, RefreshCallback callback);
+    }
+
     public static abstract class ExternalAuthenticator
     {
         public abstract String getCredentialType();
@@ -166,6 +414,17 @@ public class LoginService extends Service
         super(runtime, location, ID, API_VERSION);
 
         currentAccessToken = null;
+        refreshing = new HashMap<AccessToken, List<RefreshCallback>>();
+        revalidating = new HashSet<String>();
+        renewals = new HashMap<AccessToken, Renewal>();
+        validations = new LinkedHashMap<String, Validation>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Validation> eldest)
+            {
+                return size() > VALIDATIONS_CACHED;
+            }
+        };
     }
 
     public static LoginService Get()
@@ -419,10 +678,84 @@ public class LoginService extends Service
         validateAccessToken(getCurrentAccessToken(), callback);
     }
 
+    /**
+     * Completes right away (with a null request) if the token has been validated already and has not
+     * expired since, revalidating it in the background every now and then. A token that has expired
+     * according to its own claims is rejected (as forbidden) without asking the server at all.
+     */
     public void validateAccessToken(
         final AccessToken token,
         final ValidationCallback callback)
     {
+        String raw = token.get();
+        long now = System.currentTimeMillis();
+        long expiresAt = getExpiration(raw);
+
+        if (expiresAt > 0 && expiresAt <= now)
+        {
+            synchronized (validations)
+            {
+                validations.remove(raw);
+            }
+
+            callback.complete(this, null, Request.Result.forbidden, "", "", new Scopes());
+            return;
+        }
+
+        Validation validation;
+
+        synchronized (validations)
+        {
+            validation = validations.get(raw);
+        }
+
+        if (validation != null && validation.expiresAt > now)
+        {
+            if (now - validation.validatedAt > REVALIDATE_AFTER)
+            {
+                revalidate(token);
+            }
+
+            callback.complete(this, null, Request.Result.success,
+                validation.account, validation.credential, new Scopes(validation.scopes));
+
+            return;
+        }
+
+        requestValidation(token, expiresAt, callback);
+    }
+
+    private void revalidate(final AccessToken token)
+    {
+        final String raw = token.get();
+
+        synchronized (validations)
+        {
+            if (!revalidating.add(raw))
+                return;
+        }
+
+        requestValidation(token, getExpiration(raw), new ValidationCallback()
+        {
+            @Override
+            public void complete(LoginService service, Request request, Request.Result result,
+                                 String account, String credential, Scopes scopes)
+            {
+                synchronized (validations)
+                {
+                    revalidating.remove(raw);
+                }
+            }
+        });
+    }
+
+    private void requestValidation(
+        final AccessToken token,
+        final long expiresAt,
+        final ValidationCallback callback)
+    {
+        final String raw = token.get();
+
         JsonRequest request = new JsonRequest(getLocation() + "/validate",
             new Request.RequestCallback()
         {
@@ -452,10 +785,27 @@ public class LoginService extends Service
                     if (response.has("account"))
                         account = response.optString("account");
 
+                    long now = System.currentTimeMillis();
+
+                    synchronized (validations)
+                    {
+                        validations.put(raw, new Validation(account, credential, new Scopes(scopes),
+                            expiresAt > 0 ? expiresAt : now + VALIDATION_TTL, now));
+                    }
+
                     callback.complete(LoginService.this, request, result, account, credential, scopes);
                 }
                 else
                 {
+                    // the server has said no, unlike when it could not be reached
+                    if (result != Request.Result.failed && result != Request.Result.serviceUnavailable)
+                    {
+                        synchronized (validations)
+                        {
+                            validations.remove(raw);
+                        }
+                    }
+
                     callback.complete(LoginService.this, request, result, "", "", new Scopes());
                 }
             }
@@ -465,6 +815,36 @@ public class LoginService extends Service
         request.get();
     }
 
+    /**
+     * @return the claims of the token, or null if it cannot be decoded
+     *   (the signature is not checked, that is up to the server)
+     */
+    private static JSONObject getClaims(String raw)
+    {
+        String[] parts = raw.split("\\.");
+
+        if (parts.length != 3)
+            return null;
+
+        try
+        {
+            return new JSONObject(new String(Base64.getUrlDecoder().decode(parts[1]), "UTF-8"));
+        }
+        catch (Exception e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * @return the expiration time (in milliseconds) the token claims, or zero if not known
+     */
+    private static long getExpiration(String raw)
+    {
+        JSONObject claims = getClaims(raw);
+        return claims != null ? claims.optLong("exp", 0) * 1000L : 0;
+    }
+
     public void resolve(
         AccessToken resolveToken,
         String methodToResolve,
@@ -573,6 +953,295 @@ public class LoginService extends Service
         return this.currentAccessToken;
     }
 
+    /**
+     * Replaces the raw value of the token in place (for example, with the one the server has rotated it to)
+     */
+    public void rotateAccessToken(AccessToken token, String raw)
+    {
+        token.raw = raw;
+    }
+
+    /**
+     * The refresher is asked for a new token once a request is rejected with 401, and the request is then
+     * replayed with it. Without one, such requests just fail. Tokens scheduled for renewal are renewed
+     * with it as well.
+     */
+    public void setTokenRefresher(TokenRefresher tokenRefresher)
+    {
+        this.tokenRefresher = tokenRefresher;
+    }
+
+    /**
+     * Refreshes the token (in place), unless it's being refreshed already: then the callback just waits
+     * for that refresh, so any number of requests rejected at once cause a single refresh. A refresh
+     * that throws, or does not complete in REFRESH_TIMEOUT, completes the callbacks with null.
+     *
+     * @return false if there is no TokenRefresher to do that
+     */
+    public boolean refreshAccessToken(final AccessToken token, RefreshCallback callback)
+    {
+        TokenRefresher refresher = this.tokenRefresher;
+
+        if (refresher == null)
+            return false;
+
+        final List<RefreshCallback> waiting;
+
+        synchronized (refreshing)
+        {
+            List<RefreshCallback> existing = refreshing.get(token);
+
+            if (existing != null)
+            {
+                existing.add(callback);
+                return true;
+            }
+
+            waiting = new ArrayList<RefreshCallback>();
+            waiting.add(callback);
+            refreshing.put(token, waiting);
+        }
+
+        final HashedWheelTimer.Timeout timeout = HashedWheelTimer.getShared().newTimeout(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                refreshed(token, waiting, null);
+            }
+        }, REFRESH_TIMEOUT, TimeUnit.MILLISECONDS);
+
+        try
+        {
+            refresher.refresh(this, token, new RefreshCallback()
+            {
+                @Override
+                public void complete(String raw)
+                {
+                    timeout.cancel();
+                    refreshed(token, waiting, raw);
+                }
+            });
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+
+            timeout.cancel();
+            refreshed(token, waiting, null);
+        }
+
+        return true;
+    }
+
+    /**
+     * Completes the callbacks waiting for that refresh, unless they have been completed already
+     * (a refresh completing after it has timed out)
+     */
+    private void refreshed(AccessToken token, List<RefreshCallback> waiting, String raw)
+    {
+        synchronized (refreshing)
+        {
+            if (refreshing.get(token) != waiting)
+                return;
+
+            if (raw != null)
+            {
+                rotateAccessToken(token, raw);
+            }
+
+            refreshing.remove(token);
+        }
+
+        for (RefreshCallback callback : waiting)
+        {
+            callback.complete(raw);
+        }
+    }
+
+    /**
+     * @return the time (in milliseconds) the token claims to expire at, or zero if it does not tell
+     */
+    public long getExpiration(AccessToken token)
+    {
+        return getExpiration(token.get());
+    }
+
+    /**
+     * @param fraction the share of a token's lifetime to renew it after (0..1)
+     * @param jitter the share of the lifetime to move the renewal by, randomly, either way, so the clients
+     *   that have got their tokens at once do not renew them at once
+     */
+    public void setRenewal(double fraction, double jitter)
+    {
+        this.renewalFraction = fraction;
+        this.renewalJitter = jitter;
+    }
+
+    /**
+     * Renews the token (in place, with the TokenRefresher) before it expires, over and over again,
+     * until cancelRenewal. Failed renewals are retried with a backoff while the token is still valid.
+     *
+     * @return false if the token does not tell when it expires
+     */
+    public boolean scheduleRenewal(AccessToken token)
+    {
+        if (getExpiration(token.get()) <= 0)
+            return false;
+
+        Renewal renewal = new Renewal(token);
+        Renewal previous;
+
+        synchronized (renewals)
+        {
+            previous = renewals.put(token, renewal);
+        }
+
+        if (previous != null)
+        {
+            previous.cancel();
+        }
+
+        renewal.schedule();
+        return true;
+    }
+
+    public void cancelRenewal(AccessToken token)
+    {
+        Renewal renewal;
+
+        synchronized (renewals)
+        {
+            renewal = renewals.remove(token);
+        }
+
+        if (renewal != null)
+        {
+            renewal.cancel();
+        }
+    }
+
+    private class Renewal implements Runnable
+    {
+        private final AccessToken token;
+        private final Backoff backoff;
+        private String raw;
+        private long expiresAt;
+        private volatile HashedWheelTimer.Timeout timeout;
+
+        private Renewal(AccessToken token)
+        {
+            this.token = token;
+            this.backoff = new Backoff(RENEWAL_RETRY_DELAY, RENEWAL_RETRY_MAX_DELAY);
+        }
+
+        private boolean isActive()
+        {
+            synchronized (renewals)
+            {
+                return renewals.get(token) == this;
+            }
+        }
+
+        private void schedule()
+        {
+            raw = token.get();
+
+            JSONObject claims = getClaims(raw);
+            long now = System.currentTimeMillis();
+
+            expiresAt = claims != null ? claims.optLong("exp", 0) * 1000L : 0;
+
+            if (expiresAt <= now)
+            {
+                cancelRenewal(token);
+                return;
+            }
+
+            long issuedAt = claims.optLong("iat", 0) * 1000L;
+
+            if (issuedAt <= 0 || issuedAt > now)
+            {
+                issuedAt = now;
+            }
+
+            long lifetime = expiresAt - issuedAt;
+            double jitter = renewalJitter * (ThreadLocalRandom.current().nextDouble() * 2 - 1);
+            long renewAt = issuedAt + (long)(lifetime * (renewalFraction + jitter));
+
+            renewAt = Math.min(Math.max(renewAt, now), expiresAt);
+
+            timeout = HashedWheelTimer.getShared().newTimeout(this, renewAt - now, TimeUnit.MILLISECONDS);
+        }
+
+        private void retry()
+        {
+            long now = System.currentTimeMillis();
+
+            if (!isActive())
+                return;
+
+            if (expiresAt <= now)
+            {
+                cancelRenewal(token);
+                return;
+            }
+
+            long delay = Math.min(backoff.nextDelay(), expiresAt - now);
+            timeout = HashedWheelTimer.getShared().newTimeout(this, delay, TimeUnit.MILLISECONDS);
+        }
+
+        private void cancel()
+        {
+            HashedWheelTimer.Timeout timeout = this.timeout;
+
+            if (timeout != null)
+            {
+                timeout.cancel();
+            }
+        }
+
+        @Override
+        public void run()
+        {
+            if (!isActive())
+                return;
+
+            // the token has been rotated since (see Request), so it's the new one to schedule for
+            if (!token.get().equals(raw))
+            {
+                schedule();
+                return;
+            }
+
+            boolean started = refreshAccessToken(token, new RefreshCallback()
+            {
+                @Override
+                public void complete(String renewed)
+                {
+                    if (renewed != null)
+                    {
+                        backoff.reset();
+
+                        if (isActive())
+                        {
+                            schedule();
+                        }
+                    }
+                    else
+                    {
+                        retry();
+                    }
+                }
+            });
+
+            if (!started)
+            {
+                retry();
+            }
+        }
+    }
+
     public void setExternalAuthenticator(ExternalAuthenticator externalAuthenticator)
     {
         this.externalAuthenticator = externalAuthenticator;
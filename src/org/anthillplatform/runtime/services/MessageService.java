@@ -3,13 +3,18 @@ package org.anthillplatform.runtime.services;
 import org.anthillplatform.runtime.AnthillRuntime;
 import org.anthillplatform.runtime.requests.JsonRequest;
 import org.anthillplatform.runtime.requests.Request;
+import org.anthillplatform.runtime.util.EventDispatcher;
+import org.anthillplatform.runtime.util.EventPublisher;
 import org.anthillplatform.runtime.util.JsonRPC;
+import org.anthillplatform.runtime.util.LazyJSONObject;
+import org.anthillplatform.runtime.util.Reconnector;
+import org.anthillplatform.runtime.util.TLSContext;
 import org.anthillplatform.runtime.util.WebSocketJsonRPC;
+import org.anthillplatform.runtime.util.WebSocketOptions;
 import org.java_websocket.handshake.ServerHandshake;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
-import javax.net.ssl.SSLContext;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -29,6 +34,8 @@ public class MessageService extends Service
     public static final String ID = "message";
     public static final String API_VERSION = "0.2";
 
+    private final WebSocketOptions sessionOptions;
+
     public interface GetMessagesCallback
     {
         void complete(MessageDestination replyTo, Request.Result result);
@@ -52,6 +59,8 @@ public class MessageService extends Service
     public MessageService(AnthillRuntime runtime, String location)
     {
         super(runtime, location, ID, API_VERSION);
+
+        this.sessionOptions = new WebSocketOptions();
     }
 
     public static MessageService Get()
@@ -59,6 +68,14 @@ public class MessageService extends Service
         return AnthillRuntime.Get(ID, MessageService.class);
     }
 
+    /**
+     * Options applied to the sessions opened after they're changed
+     */
+    public WebSocketOptions getSessionOptions()
+    {
+        return sessionOptions;
+    }
+
     public static class Message
     {
 
@@ -80,7 +97,7 @@ public class MessageService extends Service
             this.sender = data.optString("sender");
             this.type = data.optString("type");
             this.gamespace = data.optInt("gamespace", 0);
-            this.payload = data.optJSONObject("payload");
+            this.payload = LazyJSONObject.optJSONObject(data, "payload");
 
             Date tmp;
 
@@ -112,6 +129,39 @@ public class MessageService extends Service
 
             this.time = tmp;
         }
+
+        public Message(String uuid, String recipientClass, String recipient, String sender, String type,
+                       JSONObject payload, Date time, int gamespace, Set<String> flags)
+        {
+            this.uuid = uuid;
+            this.recipientClass = recipientClass;
+            this.recipient = recipient;
+            this.sender = sender;
+            this.type = type;
+            this.payload = payload;
+            this.time = time;
+            this.gamespace = gamespace;
+            this.flags = flags;
+        }
+    }
+
+    /**
+     * A message deleted or updated (with the new payload) by its sender, see MessageSession publishers
+     */
+    public static class MessageChange
+    {
+        public final String uuid;
+        public final String sender;
+        public final int gamespace;
+        public final JSONObject payload;
+
+        public MessageChange(String uuid, String sender, int gamespace, JSONObject payload)
+        {
+            this.uuid = uuid;
+            this.sender = sender;
+            this.gamespace = gamespace;
+            this.payload = payload;
+        }
     }
 
     public static class LastReadMessage
@@ -145,6 +195,7 @@ public class MessageService extends Service
     public static class MessageSession
     {
         private static final JSONArray EmptyFlags = new JSONArray();
+        private static final int RECENT_MESSAGES = 256;
 
         public interface Listener
         {
@@ -164,13 +215,29 @@ public class MessageService extends Service
 
         private MessageSessionRPC jsonRPC;
         private Listener listener;
+        private WebSocketJsonRPC.WritabilityListener writabilityListener;
+        private WebSocketJsonRPC.LatencyListener latencyListener;
+        private Reconnector.Listener reconnectListener;
         private final Set<String> messageTypes;
 
+        private final EventPublisher<Message> messages = new EventPublisher<Message>();
+        private final EventPublisher<MessageChange> deletedMessages = new EventPublisher<MessageChange>();
+        private final EventPublisher<MessageChange> updatedMessages = new EventPublisher<MessageChange>();
+
+        private MessageService messageService;
+        private LoginService.AccessToken accessToken;
+        private URI uri;
+        private Reconnector reconnector;
+
+        // to tell the missed messages from the already delivered ones after a reconnect
+        private final Set<String> recentMessages;
+        private Date lastMessageTime;
+
         private class MessageSessionRPC extends WebSocketJsonRPC
         {
-            public MessageSessionRPC(URI serverURI)
+            public MessageSessionRPC(URI serverURI, WebSocketOptions options)
             {
-                super(serverURI);
+                super(serverURI, options);
             }
 
             @Override
@@ -182,19 +249,41 @@ public class MessageService extends Service
             @Override
             public void onOpen(ServerHandshake serverHandshake)
             {
-                listener.onOpen();
+                super.onOpen(serverHandshake);
+
+                if (reconnector.connected())
+                {
+                    backfill();
+                }
+                else
+                {
+                    listener.onOpen();
+                }
             }
 
             @Override
             public void onClose(int i, String s, boolean b)
             {
-                listener.onClose(i, s, b);
+                super.onClose(i, s, b);
+
+                if (!reconnector.connectionLost(i))
+                {
+                    listener.onClose(i, s, b);
+
+                    messages.complete();
+                    deletedMessages.complete();
+                    updatedMessages.complete();
+                }
             }
 
             @Override
             public void onError(Exception e)
             {
-                listener.onError(e);
+                // failed attempts to reconnect are reported with Reconnector.Listener instead
+                if (!reconnector.isReconnecting())
+                {
+                    listener.onError(e);
+                }
             }
         }
 
@@ -202,11 +291,41 @@ public class MessageService extends Service
         {
             this.listener = listener;
             this.messageTypes = messageTypes;
+            this.recentMessages = Collections.newSetFromMap(new LinkedHashMap<String, Boolean>()
+            {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest)
+                {
+                    return size() > RECENT_MESSAGES;
+                }
+            });
         }
 
         public void close()
         {
-            jsonRPC.close();
+            if (reconnector != null)
+            {
+                reconnector.stop();
+            }
+
+            if (jsonRPC != null)
+            {
+                jsonRPC.close();
+            }
+        }
+
+        /**
+         * Called upon every attempt to reconnect (see WebSocketOptions.reconnect). While the session is
+         * reconnecting, Listener.onClose is not called, until it gives up.
+         */
+        public void setReconnectListener(Reconnector.Listener reconnectListener)
+        {
+            this.reconnectListener = reconnectListener;
+
+            if (reconnector != null)
+            {
+                reconnector.setListener(reconnectListener);
+            }
         }
 
         public MessageSessionRPC getRPC()
@@ -220,6 +339,67 @@ public class MessageService extends Service
             return jsonRPC != null && jsonRPC.isOpen();
         }
 
+        public int getPendingRequestsCount()
+        {
+            return jsonRPC != null ? jsonRPC.getPendingRequestsCount() : 0;
+        }
+
+        /**
+         * @return false if the messages are piling up in the send queue as the connection cannot keep up
+         */
+        public boolean isWritable()
+        {
+            return jsonRPC == null || jsonRPC.isWritable();
+        }
+
+        public void setWritabilityListener(WebSocketJsonRPC.WritabilityListener writabilityListener)
+        {
+            this.writabilityListener = writabilityListener;
+
+            if (jsonRPC != null)
+            {
+                jsonRPC.setWritabilityListener(writabilityListener);
+            }
+        }
+
+        /**
+         * @return the smoothed round trip time to the server in milliseconds, or -1 if not known
+         *   (see WebSocketOptions.heartbeatInterval)
+         */
+        public long getRoundTripTime()
+        {
+            return jsonRPC != null ? jsonRPC.getRoundTripTime() : -1;
+        }
+
+        /**
+         * The messages received as a stream, keyed by the message type. Just like the other publishers,
+         * completed once the session is closed for good.
+         */
+        public EventPublisher<Message> getMessagePublisher()
+        {
+            return messages;
+        }
+
+        public EventPublisher<MessageChange> getDeletedMessagePublisher()
+        {
+            return deletedMessages;
+        }
+
+        public EventPublisher<MessageChange> getUpdatedMessagePublisher()
+        {
+            return updatedMessages;
+        }
+
+        public void setLatencyListener(WebSocketJsonRPC.LatencyListener latencyListener)
+        {
+            this.latencyListener = latencyListener;
+
+            if (jsonRPC != null)
+            {
+                jsonRPC.setLatencyListener(latencyListener);
+            }
+        }
+
         public boolean sendMessage(String recipientClass, String recipientKey, String messageType,
                                    JSONObject message)
         {
@@ -242,13 +422,18 @@ public class MessageService extends Service
             if (!isOpen())
                 return false;
 
+            jsonRPC.request("mark_as_read", callback, markAsReadArgs(messageId));
+
+            return true;
+        }
+
+        private static JSONObject markAsReadArgs(String messageId)
+        {
             JSONObject args = new JSONObject();
 
             args.put("message_id", messageId);
 
-            jsonRPC.request("mark_as_read", callback, args);
-
-            return true;
+            return args;
         }
 
         public boolean sendMessage(String recipientClass, String recipientKey, String messageType,
@@ -257,6 +442,15 @@ public class MessageService extends Service
             if (!isOpen())
                 return false;
 
+            jsonRPC.request("send_message", callback,
+                sendMessageArgs(recipientClass, recipientKey, messageType, message, flags));
+
+            return true;
+        }
+
+        private static JSONObject sendMessageArgs(String recipientClass, String recipientKey, String messageType,
+                                                  JSONObject message, Set<String> flags)
+        {
             JSONObject args = new JSONObject();
 
             args.put("recipient_class", recipientClass);
@@ -278,9 +472,54 @@ public class MessageService extends Service
                 args.put("flags", EmptyFlags);
             }
 
-            jsonRPC.request("send_message", callback, args);
+            return args;
+        }
 
-            return true;
+        /**
+         * Collects a burst of calls to be sent within a single frame
+         */
+        public class Batch
+        {
+            private final JsonRPC.Batch calls = new JsonRPC.Batch();
+
+            private Batch()
+            {
+            }
+
+            public Batch sendMessage(String recipientClass, String recipientKey, String messageType,
+                                     JSONObject message, Set<String> flags, JsonRPC.ResponseHandler callback)
+            {
+                calls.request("send_message", callback,
+                    sendMessageArgs(recipientClass, recipientKey, messageType, message, flags));
+
+                return this;
+            }
+
+            public Batch markMessageAsRead(String messageId, JsonRPC.ResponseHandler callback)
+            {
+                calls.request("mark_as_read", callback, markAsReadArgs(messageId));
+
+                return this;
+            }
+
+            /**
+             * @return false if the batch has not been sent (its requests are failed then)
+             */
+            public boolean send()
+            {
+                if (!isOpen())
+                {
+                    calls.fail(JsonRPC.ERROR_CONNECTION_CLOSED, "Connection closed");
+                    return false;
+                }
+
+                return jsonRPC.sendBatch(calls);
+            }
+        }
+
+        public Batch batch()
+        {
+            return new Batch();
         }
 
         public boolean deleteMessage(String messageId, JsonRPC.ResponseHandler callback)
@@ -310,6 +549,26 @@ public class MessageService extends Service
 
         public void open(MessageService messageService, LoginService.AccessToken accessToken)
         {
+            EventDispatcher dispatcher = messageService.getSessionOptions().dispatcher;
+
+            if (dispatcher != null && !(listener instanceof DispatchingListener))
+            {
+                this.listener = new DispatchingListener(listener, dispatcher);
+            }
+
+            this.messageService = messageService;
+            this.accessToken = accessToken;
+            this.reconnector = new Reconnector(messageService.getSessionOptions())
+            {
+                @Override
+                protected void reconnect()
+                {
+                    connect();
+                }
+            };
+
+            reconnector.setListener(reconnectListener);
+
             HashMap<String, String> args = new HashMap<String, String>();
             args.put("access_token", accessToken.get());
 
@@ -324,8 +583,6 @@ public class MessageService extends Service
                 args.put("message_types", messageTypes_.toString());
             }
 
-            URI uri;
-
             try
             {
                 StringBuilder queryString = new StringBuilder();
@@ -358,7 +615,7 @@ public class MessageService extends Service
                     }
                 }
 
-                uri = new URI(queryString.toString());
+                this.uri = new URI(queryString.toString());
             }
             catch (URISyntaxException e)
             {
@@ -367,41 +624,31 @@ public class MessageService extends Service
                 return;
             }
 
-            if (uri.getScheme().equals("https"))
+            try
             {
-                try
-                {
-                    uri = new URI("wss", null, uri.getHost(), uri.getPort(), uri.getPath(),
-                        uri.getQuery(), uri.getFragment());
-                    jsonRPC = new MessageSessionRPC(uri);
+                uri = new URI(uri.getScheme().equals("https") ? "wss" : "ws", null, uri.getHost(),
+                    uri.getPort(), uri.getPath(), uri.getQuery(), uri.getFragment());
+            }
+            catch (URISyntaxException e)
+            {
+                e.printStackTrace();
+                listener.onError(e);
+                return;
+            }
 
-                    SSLContext context = SSLContext.getInstance( "TLS" );
+            connect();
+        }
 
-                    context.init(null, null, null);
+        /**
+         * Connects to the uri built by open(), again if reconnecting
+         */
+        private void connect()
+        {
+            jsonRPC = new MessageSessionRPC(uri, messageService.getSessionOptions());
 
-                    jsonRPC.setSocket(context.getSocketFactory().createSocket());
-                }
-                catch (Exception e)
-                {
-                    e.printStackTrace();
-                    listener.onError(e);
-                    return;
-                }
-            }
-            else
+            if (uri.getScheme().equals("wss"))
             {
-                try
-                {
-                    uri = new URI("ws", null, uri.getHost(), uri.getPort(), uri.getPath(),
-                        uri.getQuery(), uri.getFragment());
-                    jsonRPC = new MessageSessionRPC(uri);
-                }
-                catch (URISyntaxException e)
-                {
-                    e.printStackTrace();
-                    listener.onError(e);
-                    return;
-                }
+                jsonRPC.setSocketFactory(TLSContext.getShared().getSocketFactory());
             }
 
             init();
@@ -411,6 +658,9 @@ public class MessageService extends Service
 
         private void init()
         {
+            jsonRPC.setWritabilityListener(writabilityListener);
+            jsonRPC.setLatencyListener(latencyListener);
+
             jsonRPC.addHandler("message", new JsonRPC.MethodHandler()
             {
                 @Override
@@ -473,9 +723,18 @@ public class MessageService extends Service
                         flags = null;
                     }
 
+                    if (!received(messageId, time))
+                        return null;
+
                     listener.onMessage(messageType, recipientClass, recipientKey,
                             messageId, time, sender, gamespace, payload, flags);
 
+                    if (messages.hasSubscribers(messageType))
+                    {
+                        messages.publish(messageType, new Message(messageId, recipientClass, recipientKey,
+                            sender, messageType, payload, time, gamespace, flags));
+                    }
+
                     return null;
                 }
             });
@@ -498,6 +757,11 @@ public class MessageService extends Service
 
                     listener.onMessageDeleted(messageId, sender, gamespace);
 
+                    if (deletedMessages.hasSubscribers(null))
+                    {
+                        deletedMessages.publish(null, new MessageChange(messageId, sender, gamespace, null));
+                    }
+
                     return null;
                 }
             });
@@ -521,10 +785,211 @@ public class MessageService extends Service
 
                     listener.onMessageUpdated(messageId, sender, gamespace, payload);
 
+                    if (updatedMessages.hasSubscribers(null))
+                    {
+                        updatedMessages.publish(null, new MessageChange(messageId, sender, gamespace, payload));
+                    }
+
                     return null;
                 }
             });
         }
+
+        /**
+         * @return false if the message has been delivered already
+         */
+        private synchronized boolean received(String messageId, Date time)
+        {
+            if (!recentMessages.add(messageId))
+                return false;
+
+            if (lastMessageTime == null || time.after(lastMessageTime))
+            {
+                lastMessageTime = time;
+            }
+
+            return true;
+        }
+
+        /**
+         * Delivers the events with the dispatcher, in order, keyed by the session: the messages of different
+         * recipients are not run in parallel, so none of them can get ahead of onOpen or behind onClose
+         */
+        private class DispatchingListener implements Listener
+        {
+            private final Listener listener;
+            private final EventDispatcher dispatcher;
+
+            private DispatchingListener(Listener listener, EventDispatcher dispatcher)
+            {
+                this.listener = listener;
+                this.dispatcher = dispatcher;
+            }
+
+            @Override
+            public void onError(final int code, final String message, final String data)
+            {
+                dispatcher.dispatchAlways(MessageSession.this, new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        listener.onError(code, message, data);
+                    }
+                });
+            }
+
+            @Override
+            public void onError(final Exception e)
+            {
+                dispatcher.dispatchAlways(MessageSession.this, new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        listener.onError(e);
+                    }
+                });
+            }
+
+            @Override
+            public void onOpen()
+            {
+                dispatcher.dispatchAlways(MessageSession.this, new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        listener.onOpen();
+                    }
+                });
+            }
+
+            @Override
+            public void onClose(final int code, final String message, final boolean remote)
+            {
+                dispatcher.dispatchAlways(MessageSession.this, new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        listener.onClose(code, message, remote);
+                    }
+                });
+            }
+
+            @Override
+            public void onMessage(final String messageType, final String recipientClass, final String recipientKey,
+                                  final String messageId, final Date time, final String sender,
+                                  final int gamespace, final JSONObject payload, final Set<String> flags)
+            {
+                dispatcher.dispatch(MessageSession.this, new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        listener.onMessage(messageType, recipientClass, recipientKey,
+                            messageId, time, sender, gamespace, payload, flags);
+                    }
+                });
+            }
+
+            @Override
+            public void onMessageDeleted(final String messageId, final String sender, final int gamespace)
+            {
+                dispatcher.dispatch(MessageSession.this, new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        listener.onMessageDeleted(messageId, sender, gamespace);
+                    }
+                });
+            }
+
+            @Override
+            public void onMessageUpdated(final String messageId, final String sender, final int gamespace,
+                                         final JSONObject payload)
+            {
+                dispatcher.dispatch(MessageSession.this, new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        listener.onMessageUpdated(messageId, sender, gamespace, payload);
+                    }
+                });
+            }
+        }
+
+        /**
+         * Delivers the messages that have been sent while the session was reconnecting: the ones newer
+         * than the last one received (that have not been received over the new connection already)
+         */
+        private void backfill()
+        {
+            final Date since;
+
+            synchronized (this)
+            {
+                since = lastMessageTime;
+            }
+
+            // nothing has been received yet, so there is nothing to compare the server time with
+            if (since == null)
+                return;
+
+            final ArrayList<Message> messages = new ArrayList<Message>();
+
+            messageService.getMessages(messages, new ArrayList<LastReadMessage>(),
+                0, messageService.getSessionOptions().backfillLimit, accessToken, new GetMessagesCallback()
+            {
+                @Override
+                public void complete(MessageDestination replyTo, Request.Result result)
+                {
+                    if (result != Request.Result.success)
+                    {
+                        listener.onError(500, "Failed to backfill the messages", result.toString());
+                        return;
+                    }
+
+                    Collections.sort(messages, new Comparator<Message>()
+                    {
+                        @Override
+                        public int compare(Message a, Message b)
+                        {
+                            if (a.time == null || b.time == null)
+                                return 0;
+
+                            return a.time.compareTo(b.time);
+                        }
+                    });
+
+                    for (Message message : messages)
+                    {
+                        if (message.time == null || message.time.before(since) || message.payload == null)
+                            continue;
+
+                        if (messageTypes != null && !messageTypes.contains(message.type))
+                            continue;
+
+                        if (!received(message.uuid, message.time))
+                            continue;
+
+                        listener.onMessage(message.type, message.recipientClass, message.recipient,
+                            message.uuid, message.time, message.sender, message.gamespace,
+                            message.payload, message.flags);
+
+                        EventPublisher<Message> publisher = MessageSession.this.messages;
+
+                        if (publisher.hasSubscribers(message.type))
+                        {
+                            publisher.publish(message.type, message);
+                        }
+                    }
+                }
+            });
+        }
     }
 
     public static class MessageDestination
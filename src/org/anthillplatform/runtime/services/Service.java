@@ -6,7 +6,7 @@ public class Service
 {
     private final String id;
     private final AnthillRuntime runtime;
-    private String location;
+    private volatile String location;
     private String APIVersion;
 
     public Service(AnthillRuntime runtime, String location, String id, String APIVersion)
@@ -42,6 +42,10 @@ public class Service
         return location;
     }
 
+    /**
+     * Moves the service to another location. A request takes the location when it's made, so the ones
+     * already in flight complete at the old location.
+     */
     public void setLocation(String location)
     {
         this.location = location;
@@ -0,0 +1,19 @@
+package org.anthillplatform.runtime.services;
+
+import org.anthillplatform.runtime.AnthillRuntime;
+
+/**
+ * Creates the instances of services as they are located. Besides the built-in services
+ * (see BuiltInServiceFactory), the runtime picks up the factories listed in
+ * META-INF/services/org.anthillplatform.runtime.services.ServiceFactory (see java.util.ServiceLoader),
+ * or registered with AnthillRuntime.registerFactory
+ */
+public interface ServiceFactory
+{
+    /**
+     * @return the IDs of the services this factory creates
+     */
+    String[] getServiceIds();
+
+    Service create(AnthillRuntime runtime, String serviceId, String location);
+}
@@ -3,6 +3,7 @@ package org.anthillplatform.runtime.services;
 import org.anthillplatform.runtime.AnthillRuntime;
 import org.anthillplatform.runtime.requests.JsonRequest;
 import org.anthillplatform.runtime.requests.Request;
+import org.anthillplatform.runtime.util.LazyJSONObject;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
@@ -124,7 +125,7 @@ public class SocialService extends Service
     {
         private String id;
         private String name;
-        private JSONObject profile;
+        private LazyJSONObject profile;
         private JoinMethod joinMethod;
         private int freeMembers;
         private String owner;
@@ -139,7 +140,7 @@ public class SocialService extends Service
 
         public static class Participant
         {
-            private JSONObject profile;
+            private LazyJSONObject profile;
             private int role;
             private Set<String> permissions;
 
@@ -147,7 +148,7 @@ public class SocialService extends Service
             {
                 this.permissions = new HashSet<String>();
                 this.role = data.optInt("role", 0);
-                this.profile = data.optJSONObject("profile");
+                this.profile = LazyJSONObject.opt(data, "profile");
 
                 JSONArray p = data.optJSONArray("permissions");
                 if (p != null)
@@ -164,7 +165,7 @@ public class SocialService extends Service
 
             public JSONObject getProfile()
             {
-                return profile;
+                return profile != null ? profile.get() : null;
             }
 
             public int getRole()
@@ -194,7 +195,7 @@ public class SocialService extends Service
             {
                 this.id = group.optString("group_id");
                 this.name = group.optString("name");
-                this.profile = group.optJSONObject("profile");
+                this.profile = LazyJSONObject.opt(group, "profile");
                 this.joinMethod = JoinMethod.valueOf(group.optString("join_method", JoinMethod.free.toString()));
                 this.freeMembers = group.optInt("free_members", 0);
                 this.owner = group.optString("owner", null);
@@ -241,7 +242,7 @@ public class SocialService extends Service
 
         public JSONObject getProfile()
         {
-            return profile;
+            return profile != null ? profile.get() : null;
         }
 
         public int getFreeMembers()
@@ -303,6 +304,7 @@ public class SocialService extends Service
             }
         });
 
+        jsonRequest.setLazyFields("profile");
         jsonRequest.setAPIVersion(getAPIVersion());
         jsonRequest.setToken(accessToken);
         jsonRequest.get();
@@ -748,6 +750,7 @@ public class SocialService extends Service
         Request.Fields arguments = new Request.Fields();
         arguments.put("query", query);
 
+        jsonRequest.setLazyFields("profile");
         jsonRequest.setAPIVersion(getAPIVersion());
         jsonRequest.setQueryArguments(arguments);
         jsonRequest.setToken(accessToken);
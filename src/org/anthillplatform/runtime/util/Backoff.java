@@ -0,0 +1,51 @@
+package org.anthillplatform.runtime.util;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with jitter: every next delay doubles (up to the maximum), and a random half
+ * of it is taken away, so a lot of clients dropped at once do not come back at the same moment.
+ */
+public class Backoff
+{
+    private final long initialDelay;
+    private final long maxDelay;
+    private final Random random;
+    private int attempts;
+
+    public Backoff(long initialDelay, long maxDelay)
+    {
+        this.initialDelay = Math.max(initialDelay, 1);
+        this.maxDelay = Math.max(maxDelay, this.initialDelay);
+        this.random = new Random();
+        this.attempts = 0;
+    }
+
+    /**
+     * @return the delay (in milliseconds) before the next attempt
+     */
+    public long nextDelay()
+    {
+        long delay = initialDelay << Math.min(attempts, 30);
+
+        if (delay <= 0 || delay > maxDelay)
+        {
+            delay = maxDelay;
+        }
+
+        attempts++;
+
+        long half = delay / 2;
+        return half + (long) (random.nextDouble() * (delay - half));
+    }
+
+    public int getAttempts()
+    {
+        return attempts;
+    }
+
+    public void reset()
+    {
+        attempts = 0;
+    }
+}
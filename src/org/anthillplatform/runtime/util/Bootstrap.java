@@ -0,0 +1,342 @@
+package org.anthillplatform.runtime.util;
+
+import org.anthillplatform.runtime.requests.Request;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs the startup stages (see AnthillRuntime.newBootstrap) as a pipeline: every stage starts as soon as
+ * the stages it depends on have succeeded, so the independent ones run concurrently. A stage which
+ * dependency has failed is skipped with the same result.
+ *
+ * Every stage is timed, see getReport. The background stages are timed too, but the bootstrap does not
+ * wait for them to complete, and their results do not affect its own.
+ */
+public class Bootstrap
+{
+    private static final String LOCATED_PREFIX = "located:";
+
+    public interface Stage
+    {
+        void run(Bootstrap bootstrap, StageCallback callback);
+    }
+
+    public interface StageCallback
+    {
+        void complete(Request.Result result);
+    }
+
+    public interface BootstrapCallback
+    {
+        void complete(Bootstrap bootstrap, Request.Result result, Report report);
+    }
+
+    public enum State
+    {
+        pending,
+        running,
+        complete,
+        skipped
+    }
+
+    public static class Timing
+    {
+        public final String name;
+        public final boolean background;
+        public State state;
+        public Request.Result result;
+
+        /**
+         * Since the bootstrap has started, in milliseconds
+         */
+        public double startedAt;
+        public double completedAt;
+
+        private Timing(String name, boolean background)
+        {
+            this.name = name;
+            this.background = background;
+            this.state = State.pending;
+        }
+
+        public double getDuration()
+        {
+            return state == State.complete ? completedAt - startedAt : 0;
+        }
+    }
+
+    public static class Report
+    {
+        public final List<Timing> stages;
+
+        /**
+         * Since the bootstrap has started until it has completed (background stages aside), in milliseconds
+         */
+        public final double total;
+
+        private Report(List<Timing> stages, double total)
+        {
+            this.stages = stages;
+            this.total = total;
+        }
+
+        @Override
+        public String toString()
+        {
+            StringBuilder builder = new StringBuilder();
+
+            builder.append(String.format("bootstrap: %.1f ms\n", total));
+
+            for (Timing timing : stages)
+            {
+                builder.append(String.format("  %-24s %-8s %8.1f ms %8.1f ms  %s%s\n",
+                    timing.name, timing.state, timing.startedAt, timing.getDuration(),
+                    timing.result != null ? timing.result : "",
+                    timing.background ? " (background)" : ""));
+            }
+
+            return builder.toString();
+        }
+    }
+
+    private static class Entry
+    {
+        private final Stage stage;
+        private final List<String> dependsOn;
+        private final Timing timing;
+
+        private Entry(Stage stage, List<String> dependsOn, Timing timing)
+        {
+            this.stage = stage;
+            this.dependsOn = dependsOn;
+            this.timing = timing;
+        }
+    }
+
+    private final Map<String, Entry> stages;
+    private BootstrapCallback callback;
+    private boolean started;
+    private long startedAt;
+    private double completedAt;
+    private Request.Result result;
+    private boolean completed;
+
+    public Bootstrap()
+    {
+        this.stages = new LinkedHashMap<String, Entry>();
+    }
+
+    /**
+     * @return the name of the stage which completes once the location of the service is known
+     */
+    public static String located(String serviceId)
+    {
+        return LOCATED_PREFIX + serviceId;
+    }
+
+    /**
+     * @param dependsOn the stages that have to succeed first, they should be added already
+     */
+    public Bootstrap addStage(String name, Stage stage, String... dependsOn)
+    {
+        return addStage(name, stage, false, dependsOn);
+    }
+
+    public synchronized Bootstrap addStage(String name, Stage stage, boolean background, String... dependsOn)
+    {
+        if (started)
+            throw new IllegalStateException("The bootstrap has been started already");
+
+        if (stages.containsKey(name))
+            throw new IllegalArgumentException("Stage " + name + " has been added already");
+
+        for (String dependency : dependsOn)
+        {
+            if (!stages.containsKey(dependency))
+                throw new IllegalArgumentException("Stage " + name + " depends on unknown stage " + dependency);
+        }
+
+        stages.put(name, new Entry(stage, Arrays.asList(dependsOn), new Timing(name, background)));
+        return this;
+    }
+
+    public synchronized boolean hasStage(String name)
+    {
+        return stages.containsKey(name);
+    }
+
+    public void start(BootstrapCallback callback)
+    {
+        synchronized (this)
+        {
+            if (started)
+                throw new IllegalStateException("The bootstrap has been started already");
+
+            this.started = true;
+            this.callback = callback;
+            this.startedAt = System.nanoTime();
+        }
+
+        proceed();
+    }
+
+    /**
+     * @return the timings so far
+     */
+    public synchronized Report getReport()
+    {
+        List<Timing> timings = new ArrayList<Timing>(stages.size());
+
+        for (Entry entry : stages.values())
+        {
+            timings.add(entry.timing);
+        }
+
+        return new Report(timings, completed ? completedAt : now());
+    }
+
+    private void proceed()
+    {
+        List<Entry> toRun = new ArrayList<Entry>();
+        BootstrapCallback complete = null;
+
+        synchronized (this)
+        {
+            boolean progress = true;
+
+            // skipping a stage may let the ones depending on it be skipped too
+            while (progress)
+            {
+                progress = false;
+
+                for (Entry entry : stages.values())
+                {
+                    if (entry.timing.state != State.pending)
+                        continue;
+
+                    Request.Result failed = null;
+                    boolean ready = true;
+
+                    for (String dependency : entry.dependsOn)
+                    {
+                        Timing timing = stages.get(dependency).timing;
+
+                        if (timing.state == State.skipped ||
+                            (timing.state == State.complete && timing.result != Request.Result.success))
+                        {
+                            failed = timing.result;
+                            break;
+                        }
+
+                        if (timing.state != State.complete)
+                        {
+                            ready = false;
+                        }
+                    }
+
+                    if (failed != null)
+                    {
+                        entry.timing.state = State.skipped;
+                        entry.timing.result = failed;
+                        entry.timing.startedAt = now();
+                        progress = true;
+                    }
+                    else if (ready)
+                    {
+                        entry.timing.state = State.running;
+                        toRun.add(entry);
+                    }
+                }
+            }
+
+            // the background stages just started do not hold it up, the others are running then
+            if (!completed && isDone())
+            {
+                completed = true;
+                completedAt = now();
+                complete = callback;
+            }
+        }
+
+        for (final Entry entry : toRun)
+        {
+            synchronized (this)
+            {
+                entry.timing.startedAt = now();
+            }
+
+            try
+            {
+                entry.stage.run(this, new StageCallback()
+                {
+                    @Override
+                    public void complete(Request.Result result)
+                    {
+                        completed(entry, result);
+                    }
+                });
+            }
+            catch (Exception e)
+            {
+                e.printStackTrace();
+                completed(entry, Request.Result.failed);
+            }
+        }
+
+        if (complete != null)
+        {
+            complete.complete(this, result, getReport());
+        }
+    }
+
+    private void completed(Entry entry, Request.Result result)
+    {
+        synchronized (this)
+        {
+            if (entry.timing.state != State.running)
+                return;
+
+            entry.timing.state = State.complete;
+            entry.timing.result = result != null ? result : Request.Result.failed;
+            entry.timing.completedAt = now();
+        }
+
+        proceed();
+    }
+
+    /**
+     * @return true once every stage that is not in the background has completed or has been skipped
+     */
+    private boolean isDone()
+    {
+        Request.Result result = Request.Result.success;
+
+        for (Entry entry : stages.values())
+        {
+            if (entry.timing.background)
+                continue;
+
+            State state = entry.timing.state;
+
+            if (state == State.pending || state == State.running)
+                return false;
+
+            if (result == Request.Result.success && entry.timing.result != Request.Result.success)
+            {
+                result = entry.timing.result;
+            }
+        }
+
+        this.result = result;
+        return true;
+    }
+
+    private double now()
+    {
+        return (System.nanoTime() - startedAt) / 1000000.0;
+    }
+}
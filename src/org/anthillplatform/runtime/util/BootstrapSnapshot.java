@@ -0,0 +1,97 @@
+package org.anthillplatform.runtime.util;
+
+import org.anthillplatform.runtime.services.DiscoveryService;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * What the bootstrap has learned last time: the environment variables and the locations of the services,
+ * kept in the Storage so the next launch can start using them right away (see AnthillRuntime.warmStart)
+ */
+public class BootstrapSnapshot
+{
+    private static final String STORAGE_PREFIX = "anthill-bootstrap:";
+
+    public JSONObject environment;
+    public Map<String, String> services;
+    public long time;
+
+    public BootstrapSnapshot(JSONObject environment, Map<String, String> services)
+    {
+        this.environment = environment;
+        this.services = services;
+        this.time = System.currentTimeMillis();
+    }
+
+    /**
+     * @return the snapshot stored for that environment and application, or null if there is none
+     */
+    public static BootstrapSnapshot load(Storage storage, String environmentLocation, ApplicationInfo applicationInfo)
+    {
+        String data = storage.get(getStorageKey(environmentLocation, applicationInfo));
+
+        if (data == null)
+            return null;
+
+        try
+        {
+            JSONObject object = new JSONObject(data);
+            JSONObject services = object.getJSONObject("services");
+
+            Map<String, String> locations = new HashMap<String, String>();
+
+            for (String id : services.keySet())
+            {
+                locations.put(id, services.getString(id));
+            }
+
+            BootstrapSnapshot snapshot = new BootstrapSnapshot(object.getJSONObject("environment"), locations);
+            snapshot.time = object.getLong("time");
+
+            return snapshot;
+        }
+        catch (JSONException e)
+        {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    public void save(Storage storage, String environmentLocation, ApplicationInfo applicationInfo)
+    {
+        JSONObject object = new JSONObject();
+
+        object.put("environment", environment);
+        object.put("services", new JSONObject(services));
+        object.put("time", time);
+
+        storage.set(getStorageKey(environmentLocation, applicationInfo), object.toString());
+        storage.save();
+    }
+
+    /**
+     * @return true if the snapshot knows the locations of all of these services
+     */
+    public boolean covers(String[] serviceIds)
+    {
+        if (services.get(DiscoveryService.ID) == null)
+            return false;
+
+        for (String serviceId : serviceIds)
+        {
+            if (!services.containsKey(serviceId))
+                return false;
+        }
+
+        return true;
+    }
+
+    private static String getStorageKey(String environmentLocation, ApplicationInfo applicationInfo)
+    {
+        return STORAGE_PREFIX + environmentLocation + ":" +
+            applicationInfo.applicationName + ":" + applicationInfo.applicationVersion;
+    }
+}
@@ -0,0 +1,174 @@
+package org.anthillplatform.runtime.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A lock-free map with primitive int keys, tuned for mostly sequential keys such as request ids.
+ *
+ * Entries live in a ring of slots indexed by the lower bits of the key, so as long as fewer than
+ * capacity keys are in flight, neither put nor remove allocate anything but the entry itself.
+ * Keys that collide with an occupied slot go to a concurrent overflow map.
+ *
+ * The caller should not put a key that is already present.
+ */
+public class ConcurrentIntMap<V>
+{
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    public interface Visitor<V>
+    {
+        void visit(int key, V value);
+    }
+
+    private static class Entry<V>
+    {
+        private final int key;
+        private final V value;
+
+        private Entry(int key, V value)
+        {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private final AtomicReferenceArray<Entry<V>> slots;
+    private final ConcurrentHashMap<Integer, V> overflow;
+    private final AtomicInteger size;
+    private final int mask;
+
+    public ConcurrentIntMap()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public ConcurrentIntMap(int capacity)
+    {
+        int actual = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+
+        this.slots = new AtomicReferenceArray<Entry<V>>(actual);
+        this.overflow = new ConcurrentHashMap<Integer, V>();
+        this.size = new AtomicInteger(0);
+        this.mask = actual - 1;
+    }
+
+    public void put(int key, V value)
+    {
+        if (value == null)
+            throw new NullPointerException();
+
+        int index = key & mask;
+
+        if (slots.get(index) != null || !slots.compareAndSet(index, null, new Entry<V>(key, value)))
+        {
+            overflow.put(key, value);
+        }
+
+        size.incrementAndGet();
+    }
+
+    public V get(int key)
+    {
+        Entry<V> entry = slots.get(key & mask);
+
+        if (entry != null && entry.key == key)
+            return entry.value;
+
+        return overflow.get(key);
+    }
+
+    public boolean contains(int key)
+    {
+        return get(key) != null;
+    }
+
+    public V remove(int key)
+    {
+        int index = key & mask;
+        Entry<V> entry = slots.get(index);
+
+        if (entry != null && entry.key == key && slots.compareAndSet(index, entry, null))
+        {
+            size.decrementAndGet();
+            return entry.value;
+        }
+
+        V value = overflow.remove(key);
+
+        if (value != null)
+        {
+            size.decrementAndGet();
+        }
+
+        return value;
+    }
+
+    /**
+     * Removes the key only if it is still mapped to the given value
+     */
+    public boolean remove(int key, V value)
+    {
+        int index = key & mask;
+        Entry<V> entry = slots.get(index);
+
+        if (entry != null && entry.key == key && entry.value == value)
+        {
+            if (slots.compareAndSet(index, entry, null))
+            {
+                size.decrementAndGet();
+                return true;
+            }
+
+            return false;
+        }
+
+        if (overflow.remove(key, value))
+        {
+            size.decrementAndGet();
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Removes every entry present, passing each one to the visitor. Every entry is visited only once,
+     * even if remove() is racing with it.
+     */
+    public void drain(Visitor<V> visitor)
+    {
+        for (int i = 0, t = slots.length(); i < t; i++)
+        {
+            Entry<V> entry = slots.get(i);
+
+            if (entry != null && slots.compareAndSet(i, entry, null))
+            {
+                size.decrementAndGet();
+                visitor.visit(entry.key, entry.value);
+            }
+        }
+
+        for (Integer key : overflow.keySet())
+        {
+            V value = overflow.remove(key);
+
+            if (value != null)
+            {
+                size.decrementAndGet();
+                visitor.visit(key, value);
+            }
+        }
+    }
+
+    public int size()
+    {
+        return size.get();
+    }
+
+    public boolean isEmpty()
+    {
+        return size.get() == 0;
+    }
+}
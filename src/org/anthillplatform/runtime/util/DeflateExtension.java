@@ -0,0 +1,292 @@
+package org.anthillplatform.runtime.util;
+
+import org.java_websocket.enums.Opcode;
+import org.java_websocket.exceptions.InvalidDataException;
+import org.java_websocket.extensions.CompressionExtension;
+import org.java_websocket.extensions.ExtensionRequestData;
+import org.java_websocket.extensions.IExtension;
+import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.framing.DataFrame;
+import org.java_websocket.framing.Framedata;
+import org.java_websocket.framing.FramedataImpl1;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A client side permessage-deflate (RFC 7692) websocket extension.
+ *
+ * Unlike the one bundled with the websocket library, this one negotiates the context takeover and
+ * the server window size according to WebSocketOptions, and leaves the messages smaller than
+ * WebSocketOptions.compressionThreshold uncompressed.
+ *
+ * java.util.zip always compresses with the largest (15 bits) window, so a server asking for a smaller
+ * client_max_window_bits is refused, and the connection goes on without compression.
+ */
+public class DeflateExtension extends CompressionExtension
+{
+    public static final String NAME = "permessage-deflate";
+
+    private static final String SERVER_NO_CONTEXT_TAKEOVER = "server_no_context_takeover";
+    private static final String CLIENT_NO_CONTEXT_TAKEOVER = "client_no_context_takeover";
+    private static final String SERVER_MAX_WINDOW_BITS = "server_max_window_bits";
+    private static final String CLIENT_MAX_WINDOW_BITS = "client_max_window_bits";
+
+    private static final int MAX_WINDOW_BITS = 15;
+    private static final int MIN_WINDOW_BITS = 8;
+    private static final byte[] TAIL = new byte[]{0x00, 0x00, (byte) 0xff, (byte) 0xff};
+
+    private final WebSocketOptions options;
+
+    private Deflater deflater;
+    private Inflater inflater;
+    private final byte[] deflateChunk = new byte[1024];
+    private final byte[] inflateChunk = new byte[1024];
+
+    private boolean clientNoContextTakeover;
+    private boolean serverNoContextTakeover;
+
+    private boolean deflating;
+    private boolean inflating;
+
+    public DeflateExtension(WebSocketOptions options)
+    {
+        this.options = options;
+    }
+
+    @Override
+    public String getProvidedExtensionAsClient()
+    {
+        StringBuilder offer = new StringBuilder(NAME);
+
+        if (options.clientNoContextTakeover)
+            offer.append("; ").append(CLIENT_NO_CONTEXT_TAKEOVER);
+
+        if (options.serverNoContextTakeover)
+            offer.append("; ").append(SERVER_NO_CONTEXT_TAKEOVER);
+
+        int windowBits = options.serverMaxWindowBits;
+
+        if (windowBits >= MIN_WINDOW_BITS && windowBits < MAX_WINDOW_BITS)
+            offer.append("; ").append(SERVER_MAX_WINDOW_BITS).append("=").append(windowBits);
+
+        return offer.toString();
+    }
+
+    @Override
+    public boolean acceptProvidedExtensionAsClient(String inputExtensionHeader)
+    {
+        if (inputExtensionHeader == null)
+            return false;
+
+        for (String response : inputExtensionHeader.split(","))
+        {
+            ExtensionRequestData data = ExtensionRequestData.parseExtensionRequest(response);
+
+            if (!NAME.equalsIgnoreCase(data.getExtensionName()))
+                continue;
+
+            Map<String, String> parameters = data.getExtensionParameters();
+            String clientWindowBits = parameters.get(CLIENT_MAX_WINDOW_BITS);
+
+            if (clientWindowBits != null && !clientWindowBits.equals(String.valueOf(MAX_WINDOW_BITS)))
+                return false;
+
+            // the server may impose the no context takeover on us even if we have not asked for it
+            clientNoContextTakeover = options.clientNoContextTakeover ||
+                parameters.containsKey(CLIENT_NO_CONTEXT_TAKEOVER);
+            serverNoContextTakeover = parameters.containsKey(SERVER_NO_CONTEXT_TAKEOVER);
+
+            return true;
+        }
+
+        return false;
+    }
+
+    @Override
+    public boolean acceptProvidedExtensionAsServer(String inputExtensionHeader)
+    {
+        return false;
+    }
+
+    @Override
+    public String getProvidedExtensionAsServer()
+    {
+        return "";
+    }
+
+    @Override
+    public void isFrameValid(Framedata inputFrame) throws InvalidDataException
+    {
+        if (inputFrame.getOpcode() == Opcode.CONTINUOUS && inputFrame.isRSV1())
+            throw new InvalidDataException(CloseFrame.POLICY_VALIDATION, "RSV1 bit can only be set for the first frame.");
+
+        super.isFrameValid(inputFrame);
+    }
+
+    @Override
+    public void decodeFrame(Framedata inputFrame) throws InvalidDataException
+    {
+        if (!(inputFrame instanceof DataFrame))
+            return;
+
+        if (inputFrame.getOpcode() != Opcode.CONTINUOUS)
+            inflating = inputFrame.isRSV1();
+
+        if (!inflating)
+            return;
+
+        if (inflater == null)
+            inflater = new Inflater(true);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        try
+        {
+            inflate(inputFrame.getPayloadData(), output);
+
+            if (inputFrame.isFin())
+            {
+                inflate(ByteBuffer.wrap(TAIL), output);
+
+                if (serverNoContextTakeover)
+                    inflater.reset();
+            }
+        }
+        catch (DataFormatException e)
+        {
+            throw new InvalidDataException(CloseFrame.POLICY_VALIDATION, e.getMessage());
+        }
+
+        ((DataFrame) inputFrame).setRSV1(false);
+        ((FramedataImpl1) inputFrame).setPayload(ByteBuffer.wrap(output.toByteArray()));
+    }
+
+    /**
+     * With the context takeover, the frames must hit the wire in the same order they're encoded in,
+     * so the caller should serialize the sending (see WebSocketJsonRPC)
+     */
+    @Override
+    public synchronized void encodeFrame(Framedata inputFrame)
+    {
+        if (!(inputFrame instanceof DataFrame))
+            return;
+
+        ByteBuffer payload = inputFrame.getPayloadData();
+
+        if (inputFrame.getOpcode() != Opcode.CONTINUOUS)
+        {
+            // the messages sent in one piece below the threshold aren't worth it
+            deflating = !inputFrame.isFin() || payload.remaining() >= options.compressionThreshold;
+
+            if (deflating)
+                ((DataFrame) inputFrame).setRSV1(true);
+        }
+
+        if (!deflating)
+            return;
+
+        if (deflater == null)
+            deflater = new Deflater(options.compressionLevel, true);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        deflate(payload, output);
+
+        byte[] compressed = output.toByteArray();
+        int length = compressed.length;
+
+        if (inputFrame.isFin())
+        {
+            if (endsWithTail(compressed))
+                length -= TAIL.length;
+
+            if (clientNoContextTakeover)
+                deflater.reset();
+        }
+
+        ((FramedataImpl1) inputFrame).setPayload(ByteBuffer.wrap(compressed, 0, length));
+    }
+
+    private void inflate(ByteBuffer payload, ByteArrayOutputStream output) throws DataFormatException
+    {
+        inflater.setInput(toArray(payload));
+
+        int read;
+
+        while ((read = inflater.inflate(inflateChunk)) > 0)
+        {
+            output.write(inflateChunk, 0, read);
+        }
+    }
+
+    private void deflate(ByteBuffer payload, ByteArrayOutputStream output)
+    {
+        deflater.setInput(toArray(payload));
+
+        int written;
+
+        do
+        {
+            written = deflater.deflate(deflateChunk, 0, deflateChunk.length, Deflater.SYNC_FLUSH);
+            output.write(deflateChunk, 0, written);
+        }
+        while (written == deflateChunk.length);
+    }
+
+    private static byte[] toArray(ByteBuffer payload)
+    {
+        ByteBuffer source = payload.duplicate();
+        byte[] result = new byte[source.remaining()];
+        source.get(result);
+        return result;
+    }
+
+    private static boolean endsWithTail(byte[] data)
+    {
+        if (data.length < TAIL.length)
+            return false;
+
+        for (int i = 0; i < TAIL.length; i++)
+        {
+            if (data[data.length - TAIL.length + i] != TAIL[i])
+                return false;
+        }
+
+        return true;
+    }
+
+    @Override
+    public synchronized void reset()
+    {
+        if (deflater != null)
+        {
+            deflater.end();
+            deflater = null;
+        }
+
+        if (inflater != null)
+        {
+            inflater.end();
+            inflater = null;
+        }
+
+        deflating = false;
+        inflating = false;
+    }
+
+    @Override
+    public IExtension copyInstance()
+    {
+        return new DeflateExtension(options);
+    }
+
+    @Override
+    public String toString()
+    {
+        return NAME;
+    }
+}
@@ -0,0 +1,275 @@
+package org.anthillplatform.runtime.util;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands the session events over to an executor, so slow listeners do not stall the connection threads
+ * (see WebSocketOptions.dispatcher).
+ *
+ * The events of the same key are delivered one by one, in order they have been dispatched, while
+ * the events of different keys may run in parallel. Keys are spread over a fixed number of stripes,
+ * every stripe has its own bounded queue.
+ *
+ * The overflow policy applies to dispatch only, the events of dispatchAlways (like the ones a session is
+ * opened or closed with) are never dropped nor waited for.
+ */
+public class EventDispatcher
+{
+    private static final int BATCH = 64;
+
+    /**
+     * What to do with an event once the queue of its stripe is full
+     */
+    public enum Overflow
+    {
+        /**
+         * Wait for the queue to drain (a listener should never dispatch into a full queue
+         * of its own stripe then). That stalls the connection thread, or the whole selector thread
+         * with WebSocketOptions.engine, so this one should not be used with the engine.
+         */
+        BLOCK,
+
+        /**
+         * Drop the new event
+         */
+        DROP_NEWEST,
+
+        /**
+         * Drop the oldest event of the stripe to make room for the new one
+         */
+        DROP_OLDEST
+    }
+
+    private final Executor executor;
+    private final Stripe[] stripes;
+    private final int queueLimit;
+    private final Overflow overflow;
+    private final AtomicLong dropped;
+
+    /**
+     * An event of dispatchAlways, DROP_OLDEST leaves it be
+     */
+    private static class Undroppable implements Runnable
+    {
+        private final Runnable event;
+
+        private Undroppable(Runnable event)
+        {
+            this.event = event;
+        }
+
+        @Override
+        public void run()
+        {
+            event.run();
+        }
+    }
+
+    private class Stripe implements Runnable
+    {
+        private final ArrayDeque<Runnable> events = new ArrayDeque<Runnable>();
+        private boolean scheduled;
+
+        @Override
+        public void run()
+        {
+            // a busy stripe gives the thread away every now and then, so other stripes are not starved
+            for (int i = 0; i < BATCH; i++)
+            {
+                Runnable event;
+
+                synchronized (this)
+                {
+                    event = events.poll();
+
+                    if (event == null)
+                    {
+                        scheduled = false;
+                        return;
+                    }
+
+                    if (overflow == Overflow.BLOCK)
+                    {
+                        notifyAll();
+                    }
+                }
+
+                try
+                {
+                    event.run();
+                }
+                catch (Exception e)
+                {
+                    e.printStackTrace();
+                }
+            }
+
+            schedule(this);
+        }
+    }
+
+    /**
+     * Drops the new events once a stripe has 1024 of them queued, see getDropped
+     */
+    public EventDispatcher(Executor executor)
+    {
+        this(executor, Runtime.getRuntime().availableProcessors() * 4, 1024, Overflow.DROP_NEWEST);
+    }
+
+    /**
+     * @param stripes how many keys may have their events run in parallel
+     * @param queueLimit how many events may wait in a stripe
+     */
+    public EventDispatcher(Executor executor, int stripes, int queueLimit, Overflow overflow)
+    {
+        if (stripes <= 0 || queueLimit <= 0)
+            throw new IllegalArgumentException("stripes and queueLimit should be positive");
+
+        this.executor = executor;
+        this.stripes = new Stripe[stripes];
+        this.queueLimit = queueLimit;
+        this.overflow = overflow;
+        this.dropped = new AtomicLong();
+
+        for (int i = 0; i < stripes; i++)
+        {
+            this.stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * @return false if the event has been dropped
+     */
+    public boolean dispatch(Object key, Runnable event)
+    {
+        Stripe stripe = stripes[index(key)];
+        boolean schedule;
+
+        synchronized (stripe)
+        {
+            while (stripe.events.size() >= queueLimit)
+            {
+                switch (overflow)
+                {
+                    case BLOCK:
+                    {
+                        try
+                        {
+                            stripe.wait();
+                        }
+                        catch (InterruptedException e)
+                        {
+                            Thread.currentThread().interrupt();
+                            dropped.incrementAndGet();
+                            return false;
+                        }
+
+                        break;
+                    }
+                    case DROP_OLDEST:
+                    {
+                        dropped.incrementAndGet();
+
+                        // nothing but the undroppable events queued, the new one goes then
+                        if (!dropOldest(stripe))
+                            return false;
+
+                        break;
+                    }
+                    default:
+                    {
+                        dropped.incrementAndGet();
+                        return false;
+                    }
+                }
+            }
+
+            stripe.events.add(event);
+
+            schedule = !stripe.scheduled;
+            stripe.scheduled = true;
+        }
+
+        if (schedule)
+        {
+            schedule(stripe);
+        }
+
+        return true;
+    }
+
+    /**
+     * Dispatches the event in order with the others of the key, even if the stripe is full
+     */
+    public void dispatchAlways(Object key, Runnable event)
+    {
+        Stripe stripe = stripes[index(key)];
+        boolean schedule;
+
+        synchronized (stripe)
+        {
+            stripe.events.add(new Undroppable(event));
+
+            schedule = !stripe.scheduled;
+            stripe.scheduled = true;
+        }
+
+        if (schedule)
+        {
+            schedule(stripe);
+        }
+    }
+
+    private static boolean dropOldest(Stripe stripe)
+    {
+        Iterator<Runnable> it = stripe.events.iterator();
+
+        while (it.hasNext())
+        {
+            if (!(it.next() instanceof Undroppable))
+            {
+                it.remove();
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return how many events have been dropped because of the overflow
+     */
+    public long getDropped()
+    {
+        return dropped.get();
+    }
+
+    private int index(Object key)
+    {
+        int hash = key != null ? key.hashCode() : 0;
+        hash ^= (hash >>> 16);
+        return (hash & 0x7fffffff) % stripes.length;
+    }
+
+    private void schedule(Stripe stripe)
+    {
+        try
+        {
+            executor.execute(stripe);
+        }
+        catch (RejectedExecutionException e)
+        {
+            e.printStackTrace();
+
+            // the events stay queued until the next one gets the stripe scheduled again
+            synchronized (stripe)
+            {
+                stripe.scheduled = false;
+            }
+        }
+    }
+}
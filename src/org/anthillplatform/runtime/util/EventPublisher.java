@@ -0,0 +1,326 @@
+package org.anthillplatform.runtime.util;
+
+import java.util.ArrayDeque;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A stream of session events any number of subscribers can subscribe to, following the Reactive Streams
+ * contract (Flow.Publisher is not available on Java 8): a subscriber gets no more items than it has
+ * requested, the rest are buffered for it, up to bufferSize (further items are dropped).
+ *
+ * Every item has a key (like the message type), a subscriber may be interested in some of the keys only.
+ * The publishing side asks hasSubscribers(key) first, so the items nobody wants are not even constructed.
+ *
+ * Items are delivered on the thread that publishes them, or on the one that requests more of them.
+ */
+public class EventPublisher<T>
+{
+    public interface Subscriber<T>
+    {
+        void onSubscribe(Subscription subscription);
+        void onNext(T item);
+        void onError(Throwable error);
+        void onComplete();
+    }
+
+    public interface Subscription
+    {
+        /**
+         * Allows n more items to be delivered
+         */
+        void request(long n);
+
+        /**
+         * Stops the delivery, the items still buffered are dropped
+         */
+        void cancel();
+    }
+
+    private final CopyOnWriteArrayList<Delivery> subscriptions;
+    private final int bufferSize;
+    private final AtomicLong dropped;
+    private volatile boolean closed;
+    private volatile Throwable closedError;
+
+    private class Delivery implements Subscription
+    {
+        private final Subscriber<? super T> subscriber;
+        private final Set<String> keys;
+        private final ArrayDeque<T> buffer;
+        private final AtomicLong demand;
+        private final AtomicInteger wip;
+        private volatile boolean cancelled;
+        private volatile boolean done;
+        private Throwable error;
+
+        private Delivery(Subscriber<? super T> subscriber, Set<String> keys)
+        {
+            this.subscriber = subscriber;
+            this.keys = keys;
+            this.buffer = new ArrayDeque<T>();
+            this.demand = new AtomicLong();
+            this.wip = new AtomicInteger();
+        }
+
+        private boolean accepts(String key)
+        {
+            return keys == null || keys.contains(key);
+        }
+
+        private void offer(T item)
+        {
+            synchronized (buffer)
+            {
+                if (buffer.size() >= bufferSize)
+                {
+                    dropped.incrementAndGet();
+                    return;
+                }
+
+                buffer.add(item);
+            }
+
+            drain();
+        }
+
+        private void terminate(Throwable error)
+        {
+            synchronized (buffer)
+            {
+                // the first error sticks, a completion does not override it
+                if (this.error == null)
+                {
+                    this.error = error;
+                }
+            }
+
+            done = true;
+            drain();
+        }
+
+        @Override
+        public void request(long n)
+        {
+            if (n <= 0)
+            {
+                // signalled by drain, so it does not overlap with an onNext on another thread
+                terminate(new IllegalArgumentException("Non-positive request: " + n));
+                return;
+            }
+
+            while (true)
+            {
+                long current = demand.get();
+                long next = current + n;
+
+                // saturate at Long.MAX_VALUE, which means unbounded
+                if (next < 0)
+                {
+                    next = Long.MAX_VALUE;
+                }
+
+                if (demand.compareAndSet(current, next))
+                    break;
+            }
+
+            drain();
+        }
+
+        @Override
+        public void cancel()
+        {
+            cancelled = true;
+            subscriptions.remove(this);
+
+            synchronized (buffer)
+            {
+                buffer.clear();
+            }
+        }
+
+        /**
+         * Delivers what is buffered and requested; only one thread does it at a time,
+         * others just let it know there is more to deliver
+         */
+        private void drain()
+        {
+            if (wip.getAndIncrement() != 0)
+                return;
+
+            int missed = 1;
+
+            while (true)
+            {
+                while (!cancelled && demand.get() > 0)
+                {
+                    T item;
+
+                    synchronized (buffer)
+                    {
+                        item = buffer.poll();
+                    }
+
+                    if (item == null)
+                        break;
+
+                    if (demand.get() != Long.MAX_VALUE)
+                    {
+                        demand.decrementAndGet();
+                    }
+
+                    try
+                    {
+                        subscriber.onNext(item);
+                    }
+                    catch (Exception e)
+                    {
+                        e.printStackTrace();
+                    }
+                }
+
+                if (!cancelled && done)
+                {
+                    Throwable error;
+                    boolean empty;
+
+                    synchronized (buffer)
+                    {
+                        error = this.error;
+                        empty = buffer.isEmpty();
+                    }
+
+                    // an error goes out right away, the completion waits for the buffered items
+                    if (error != null || empty)
+                    {
+                        cancelled = true;
+                        subscriptions.remove(this);
+
+                        if (error != null)
+                        {
+                            synchronized (buffer)
+                            {
+                                buffer.clear();
+                            }
+
+                            subscriber.onError(error);
+                        }
+                        else
+                        {
+                            subscriber.onComplete();
+                        }
+                    }
+                }
+
+                missed = wip.addAndGet(-missed);
+
+                if (missed == 0)
+                    break;
+            }
+        }
+    }
+
+    public EventPublisher()
+    {
+        this(256);
+    }
+
+    /**
+     * @param bufferSize how many items may wait for a subscriber to request them
+     */
+    public EventPublisher(int bufferSize)
+    {
+        this.subscriptions = new CopyOnWriteArrayList<Delivery>();
+        this.bufferSize = bufferSize;
+        this.dropped = new AtomicLong();
+    }
+
+    public void subscribe(Subscriber<? super T> subscriber)
+    {
+        subscribe(subscriber, null);
+    }
+
+    /**
+     * @param keys the keys of the items to deliver (null for any)
+     */
+    public void subscribe(Subscriber<? super T> subscriber, Set<String> keys)
+    {
+        Delivery subscription = new Delivery(subscriber, keys);
+
+        subscriber.onSubscribe(subscription);
+
+        if (subscription.cancelled)
+            return;
+
+        subscriptions.add(subscription);
+
+        // cancelled or closed in the meantime, complete() or error() may have missed it
+        if (subscription.cancelled)
+        {
+            subscriptions.remove(subscription);
+        }
+        else if (closed)
+        {
+            subscription.terminate(closedError);
+        }
+    }
+
+    /**
+     * @return true if anyone is subscribed to the items of that key
+     */
+    public boolean hasSubscribers(String key)
+    {
+        for (Delivery subscription : subscriptions)
+        {
+            if (subscription.accepts(key))
+                return true;
+        }
+
+        return false;
+    }
+
+    public void publish(String key, T item)
+    {
+        for (Delivery subscription : subscriptions)
+        {
+            if (subscription.accepts(key))
+            {
+                subscription.offer(item);
+            }
+        }
+    }
+
+    /**
+     * Completes every subscription (once the items already buffered are delivered)
+     */
+    public void complete()
+    {
+        closed = true;
+
+        for (Delivery subscription : subscriptions)
+        {
+            subscription.terminate(null);
+        }
+    }
+
+    public void error(Throwable error)
+    {
+        closedError = error;
+        closed = true;
+
+        for (Delivery subscription : subscriptions)
+        {
+            subscription.terminate(error);
+        }
+    }
+
+    /**
+     * @return how many items have been dropped because of subscribers not keeping up
+     */
+    public long getDropped()
+    {
+        return dropped.get();
+    }
+}
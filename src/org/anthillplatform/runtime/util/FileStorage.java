@@ -0,0 +1,540 @@
+package org.anthillplatform.runtime.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * A Storage kept in a memory-mapped file as a log of changes: every set or remove appends a record,
+ * so a change costs as much as the change itself, no matter how much is stored. An in-memory index
+ * points to the latest record of every key.
+ *
+ * Every record has a checksum, so a record torn by a crash is dropped (along with what follows) when
+ * the file is opened again. save() forces the file to disk, but no more often than once per
+ * syncInterval, the saves in between are batched into the next one.
+ *
+ * Once the records overwritten or removed take more space than the live ones, the live ones are
+ * written aside and copied over the start of the log (a file still mapped cannot be renamed on Windows).
+ */
+public class FileStorage extends Storage implements Closeable
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int MAGIC = 0x414e5453;
+    private static final int VERSION = 1;
+    private static final int HEADER = 8;
+
+    // key length + 1 (zero marks the end of the log), value length (-1 for removed), ..., checksum
+    private static final int RECORD_HEADER = 8;
+    private static final int RECORD_CHECKSUM = 4;
+
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+    private static final int COMPACT_THRESHOLD = 64 * 1024;
+    private static final long DEFAULT_SYNC_INTERVAL = 1000;
+
+    private static class Location
+    {
+        private final int record;
+        private final int value;
+        private final int length;
+
+        private Location(int record, int value, int length)
+        {
+            this.record = record;
+            this.value = value;
+            this.length = length;
+        }
+
+        private int size()
+        {
+            return value + length + RECORD_CHECKSUM - record;
+        }
+    }
+
+    private final File file;
+    private final long syncInterval;
+    private final Map<String, Location> index;
+    private final CRC32 crc;
+
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int position;
+    private int liveSize;
+    private int compactThreshold;
+    private long lastSync;
+    private HashedWheelTimer.Timeout syncTimeout;
+
+    public FileStorage(File file) throws IOException
+    {
+        this(file, DEFAULT_SYNC_INTERVAL);
+    }
+
+    /**
+     * @param syncInterval minimum time between the file being forced to disk, in milliseconds
+     */
+    public FileStorage(File file, long syncInterval) throws IOException
+    {
+        this.file = file;
+        this.syncInterval = syncInterval;
+        this.index = new HashMap<String, Location>();
+        this.crc = new CRC32();
+        this.compactThreshold = COMPACT_THRESHOLD;
+
+        recover();
+        open();
+    }
+
+    @Override
+    public synchronized void set(String key, String value)
+    {
+        if (value == null)
+        {
+            remove(key);
+            return;
+        }
+
+        Location existing = index.get(key);
+
+        if (existing != null && value.equals(read(existing)))
+            return;
+
+        append(key, value.getBytes(UTF8));
+    }
+
+    @Override
+    public synchronized String get(String key)
+    {
+        Location location = index.get(key);
+        return location != null ? read(location) : null;
+    }
+
+    @Override
+    public synchronized boolean has(String key)
+    {
+        return index.containsKey(key);
+    }
+
+    @Override
+    public synchronized void remove(String key)
+    {
+        if (!index.containsKey(key))
+            return;
+
+        append(key, null);
+    }
+
+    /**
+     * Forces the changes to disk, now or (if the last time has been less than syncInterval ago) a bit later
+     */
+    @Override
+    public synchronized void save()
+    {
+        long now = System.currentTimeMillis();
+        long wait = lastSync + syncInterval - now;
+
+        if (wait <= 0)
+        {
+            sync();
+            return;
+        }
+
+        if (syncTimeout != null)
+            return;
+
+        syncTimeout = HashedWheelTimer.getShared().newTimeout(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                synchronized (FileStorage.this)
+                {
+                    syncTimeout = null;
+
+                    if (channel != null)
+                    {
+                        sync();
+                    }
+                }
+            }
+        }, wait, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Forces the changes to disk and closes the file, the storage cannot be used after that
+     */
+    public synchronized void close()
+    {
+        if (channel == null)
+            return;
+
+        sync();
+
+        try
+        {
+            channel.close();
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+
+        channel = null;
+        buffer = null;
+    }
+
+    private void sync()
+    {
+        if (syncTimeout != null)
+        {
+            syncTimeout.cancel();
+            syncTimeout = null;
+        }
+
+        buffer.force();
+        lastSync = System.currentTimeMillis();
+    }
+
+    /**
+     * Opens the file, the current one is left as it is if that fails
+     */
+    private void open() throws IOException
+    {
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        MappedByteBuffer buffer;
+
+        try
+        {
+            long size = channel.size();
+
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("The storage file is too large: " + file);
+
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, INITIAL_CAPACITY));
+
+            if (size == 0)
+            {
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, VERSION);
+            }
+            else if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+            {
+                throw new IOException("Not a storage file: " + file);
+            }
+        }
+        catch (IOException e)
+        {
+            channel.close();
+            throw e;
+        }
+
+        this.channel = channel;
+        this.buffer = buffer;
+
+        replay();
+    }
+
+    /**
+     * Copies the compacted records over the log again if a compaction has been interrupted
+     * while doing that (see compact)
+     */
+    private void recover() throws IOException
+    {
+        Files.deleteIfExists(getPartialFile().toPath());
+
+        File compacted = getCompactedFile();
+
+        if (!compacted.exists())
+            return;
+
+        FileChannel source = new RandomAccessFile(compacted, "r").getChannel();
+
+        try
+        {
+            FileChannel target = new RandomAccessFile(file, "rw").getChannel();
+
+            try
+            {
+                long size = source.size();
+                long copied = 0;
+
+                target.truncate(0);
+
+                while (copied < size)
+                {
+                    copied += source.transferTo(copied, size - copied, target);
+                }
+
+                target.force(true);
+            }
+            finally
+            {
+                target.close();
+            }
+        }
+        finally
+        {
+            source.close();
+        }
+
+        Files.delete(compacted.toPath());
+    }
+
+    private File getCompactedFile()
+    {
+        return new File(file.getPath() + ".compact");
+    }
+
+    private File getPartialFile()
+    {
+        return new File(file.getPath() + ".compact.tmp");
+    }
+
+    /**
+     * Rebuilds the index from the log, up to the end of it, or to the first broken record
+     */
+    private void replay()
+    {
+        index.clear();
+        position = HEADER;
+        liveSize = 0;
+
+        int capacity = buffer.capacity();
+
+        while (position + RECORD_HEADER + RECORD_CHECKSUM <= capacity)
+        {
+            int keyLength = buffer.getInt(position) - 1;
+            int valueLength = buffer.getInt(position + 4);
+
+            if (keyLength < 0)
+                break;
+
+            int valueStart = position + RECORD_HEADER + keyLength;
+            int end = valueStart + Math.max(valueLength, 0);
+
+            if (valueLength < -1 || keyLength > capacity || end < 0 || end + RECORD_CHECKSUM > capacity ||
+                    checksum(position, end) != buffer.getInt(end))
+            {
+                // torn by a crash, the rest is not to be trusted either
+                clear(position, capacity);
+                break;
+            }
+
+            String key = new String(readBytes(position + RECORD_HEADER, keyLength), UTF8);
+            apply(key, new Location(position, valueStart, valueLength));
+
+            position = end + RECORD_CHECKSUM;
+        }
+    }
+
+    private void append(String key, byte[] value)
+    {
+        byte[] keyBytes = key.getBytes(UTF8);
+        int valueLength = value != null ? value.length : -1;
+        int size = RECORD_HEADER + keyBytes.length + (value != null ? value.length : 0) + RECORD_CHECKSUM;
+
+        ensureCapacity(size);
+
+        int record = position;
+        int valueStart = record + RECORD_HEADER + keyBytes.length;
+        int end = valueStart + Math.max(valueLength, 0);
+
+        // everything but the key length goes first, so a record torn in the middle ends the log
+        buffer.putInt(record + 4, valueLength);
+        writeBytes(record + RECORD_HEADER, keyBytes);
+
+        if (value != null)
+        {
+            writeBytes(valueStart, value);
+        }
+
+        buffer.putInt(record, keyBytes.length + 1);
+        buffer.putInt(end, checksum(record, end));
+
+        position = end + RECORD_CHECKSUM;
+
+        apply(key, new Location(record, valueStart, valueLength));
+        compactIfNeeded();
+    }
+
+    private void apply(String key, Location location)
+    {
+        Location previous = location.length >= 0 ? index.put(key, location) : index.remove(key);
+
+        if (previous != null)
+        {
+            liveSize -= previous.size();
+        }
+
+        if (location.length >= 0)
+        {
+            liveSize += location.size();
+        }
+    }
+
+    private void ensureCapacity(int size)
+    {
+        int capacity = buffer.capacity();
+
+        if (position + size + RECORD_HEADER <= capacity)
+            return;
+
+        int newCapacity = Math.max(capacity * 2, position + size + RECORD_HEADER);
+
+        try
+        {
+            buffer.force();
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, newCapacity);
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("Failed to grow the storage file " + file, e);
+        }
+    }
+
+    private void compactIfNeeded()
+    {
+        int deadSize = position - HEADER - liveSize;
+
+        if (deadSize < compactThreshold || deadSize < liveSize)
+            return;
+
+        try
+        {
+            compact();
+            compactThreshold = COMPACT_THRESHOLD;
+        }
+        catch (IOException e)
+        {
+            // the original log is back in place, still fine as it is, just larger;
+            // not tried again until it has grown twice as much
+            e.printStackTrace();
+            compactThreshold = deadSize * 2;
+        }
+    }
+
+    /**
+     * Writes the live records into a side file, and then copies them over the start of the log in place,
+     * clearing what is left of it behind them. The side file only takes its name once it is complete,
+     * so should the copy be interrupted, it is done again on the next open (see recover).
+     */
+    private void compact() throws IOException
+    {
+        File partial = getPartialFile();
+        File compacted = getCompactedFile();
+        ByteBuffer out = ByteBuffer.allocate(HEADER + liveSize);
+
+        out.putInt(MAGIC);
+        out.putInt(VERSION);
+
+        for (Location location : index.values())
+        {
+            int size = location.size();
+            out.put(readBytes(location.record, size));
+        }
+
+        FileChannel target = new RandomAccessFile(partial, "rw").getChannel();
+
+        try
+        {
+            out.flip();
+            target.truncate(0);
+
+            while (out.hasRemaining())
+            {
+                target.write(out);
+            }
+
+            target.force(true);
+        }
+        catch (IOException e)
+        {
+            target.close();
+            Files.deleteIfExists(partial.toPath());
+            throw e;
+        }
+
+        target.close();
+
+        try
+        {
+            Files.move(partial.toPath(), compacted.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e)
+        {
+            Files.deleteIfExists(partial.toPath());
+            throw e;
+        }
+
+        // the file is never renamed while mapped, the records are copied over its start instead
+        writeBytes(0, out.array());
+        clear(out.capacity(), position);
+        sync();
+        replay();
+
+        try
+        {
+            Files.delete(compacted.toPath());
+        }
+        catch (IOException e)
+        {
+            // copied over once again on the next open then, what changes nothing
+            e.printStackTrace();
+        }
+    }
+
+    private String read(Location location)
+    {
+        return new String(readBytes(location.value, location.length), UTF8);
+    }
+
+    private byte[] readBytes(int offset, int length)
+    {
+        byte[] bytes = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+
+        view.position(offset);
+        view.get(bytes);
+
+        return bytes;
+    }
+
+    private void writeBytes(int offset, byte[] bytes)
+    {
+        ByteBuffer view = buffer.duplicate();
+
+        view.position(offset);
+        view.put(bytes);
+    }
+
+    private void clear(int from, int to)
+    {
+        byte[] zeros = new byte[Math.min(Math.max(to - from, 0), 4096)];
+
+        for (int offset = from; offset < to; offset += zeros.length)
+        {
+            ByteBuffer view = buffer.duplicate();
+
+            view.position(offset);
+            view.put(zeros, 0, Math.min(zeros.length, to - offset));
+        }
+    }
+
+    private int checksum(int from, int to)
+    {
+        crc.reset();
+        crc.update(readBytes(from, to - from));
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,214 @@
+package org.anthillplatform.runtime.util;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A timer for large amounts of short-lived timeouts that mostly get cancelled (like request timeouts).
+ *
+ * Scheduling and cancelling are O(1) and lock-free; a single daemon thread advances a wheel of buckets
+ * once per tick, so a timeout fires within one tick after its deadline.
+ */
+public class HashedWheelTimer
+{
+    private static final long DEFAULT_TICK_MILLIS = 100;
+    private static final int DEFAULT_WHEEL_SIZE = 512;
+
+    private static final int STATE_WAITING = 0;
+    private static final int STATE_CANCELLED = 1;
+    private static final int STATE_EXPIRED = 2;
+
+    private static HashedWheelTimer shared;
+
+    public interface Timeout
+    {
+        /**
+         * @return false if the timeout has fired (or has been cancelled) already
+         */
+        boolean cancel();
+        boolean isExpired();
+    }
+
+    private static class WheelTimeout implements Timeout
+    {
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state;
+        private long remainingRounds;
+
+        private WheelTimeout(Runnable task, long deadline)
+        {
+            this.task = task;
+            this.deadline = deadline;
+            this.state = new AtomicInteger(STATE_WAITING);
+        }
+
+        @Override
+        public boolean cancel()
+        {
+            return state.compareAndSet(STATE_WAITING, STATE_CANCELLED);
+        }
+
+        @Override
+        public boolean isExpired()
+        {
+            return state.get() == STATE_EXPIRED;
+        }
+
+        private boolean isCancelled()
+        {
+            return state.get() == STATE_CANCELLED;
+        }
+
+        private void expire()
+        {
+            if (!state.compareAndSet(STATE_WAITING, STATE_EXPIRED))
+                return;
+
+            try
+            {
+                task.run();
+            }
+            catch (Throwable e)
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private final long tickDuration;
+    private final LinkedList<WheelTimeout>[] wheel;
+    private final int mask;
+    private final ConcurrentLinkedQueue<WheelTimeout> scheduled;
+    private final long startTime;
+    private final Thread worker;
+    private volatile boolean stopped;
+    private long tick;
+
+    public static synchronized HashedWheelTimer getShared()
+    {
+        if (shared == null)
+        {
+            shared = new HashedWheelTimer(DEFAULT_TICK_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_WHEEL_SIZE);
+        }
+
+        return shared;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public HashedWheelTimer(long tickDuration, TimeUnit unit, int wheelSize)
+    {
+        int size = Integer.highestOneBit(Math.max(wheelSize, 2) - 1) << 1;
+
+        this.tickDuration = Math.max(unit.toNanos(tickDuration), 1);
+        this.wheel = new LinkedList[size];
+        this.mask = size - 1;
+        this.scheduled = new ConcurrentLinkedQueue<WheelTimeout>();
+        this.startTime = System.nanoTime();
+        this.tick = 0;
+
+        for (int i = 0; i < size; i++)
+        {
+            wheel[i] = new LinkedList<WheelTimeout>();
+        }
+
+        this.worker = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                work();
+            }
+        }, "anthill-wheel-timer");
+
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    public Timeout newTimeout(Runnable task, long delay, TimeUnit unit)
+    {
+        WheelTimeout timeout = new WheelTimeout(task, System.nanoTime() - startTime + unit.toNanos(delay));
+        scheduled.add(timeout);
+        return timeout;
+    }
+
+    public void stop()
+    {
+        stopped = true;
+        worker.interrupt();
+    }
+
+    private void work()
+    {
+        while (!stopped)
+        {
+            long deadline = tickDuration * (tick + 1);
+            long sleep = deadline - (System.nanoTime() - startTime);
+
+            if (sleep > 0)
+            {
+                try
+                {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                }
+                catch (InterruptedException e)
+                {
+                    if (stopped)
+                        return;
+                }
+
+                continue;
+            }
+
+            transferScheduled();
+            expire(wheel[(int) (tick & mask)], deadline);
+
+            tick++;
+        }
+    }
+
+    private void transferScheduled()
+    {
+        WheelTimeout timeout;
+
+        while ((timeout = scheduled.poll()) != null)
+        {
+            if (timeout.isCancelled())
+                continue;
+
+            long calculated = timeout.deadline / tickDuration;
+            timeout.remainingRounds = (calculated - tick) / wheel.length;
+
+            // the ones that are already late go into the current bucket
+            long ticks = Math.max(calculated, tick);
+            wheel[(int) (ticks & mask)].add(timeout);
+        }
+    }
+
+    private void expire(LinkedList<WheelTimeout> bucket, long deadline)
+    {
+        Iterator<WheelTimeout> it = bucket.iterator();
+
+        while (it.hasNext())
+        {
+            WheelTimeout timeout = it.next();
+
+            if (timeout.isCancelled())
+            {
+                it.remove();
+            }
+            else if (timeout.remainingRounds <= 0 && timeout.deadline <= deadline)
+            {
+                it.remove();
+                timeout.expire();
+            }
+            else
+            {
+                timeout.remainingRounds--;
+            }
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package org.anthillplatform.runtime.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pings a websocket session every WebSocketOptions.heartbeatInterval, measuring the round trip time,
+ * and reports the peer dead once no pong comes back for WebSocketOptions.heartbeatTimeout.
+ *
+ * The pings carry the time they are sent at, so a pong alone tells the round trip time, and the pongs
+ * to the pings of someone else (with no such payload) are not mistaken for our own.
+ */
+abstract class Heartbeat
+{
+    private static final int PAYLOAD_SIZE = 9;
+    private static final byte PAYLOAD_MAGIC = 0x48;
+
+    // the smoothed estimate follows the new samples by 1/8, like the one of TCP (RFC 6298)
+    private static final int SMOOTHING = 8;
+
+    private final long interval;
+    private final long timeout;
+
+    private HashedWheelTimer.Timeout scheduled;
+    private boolean running;
+    private long lastPongAt;
+    // in nanoseconds, so the smoothing does not round the small changes away
+    private long lastRoundTripTime = -1;
+    private long roundTripTime = -1;
+
+    Heartbeat(long interval, long timeout)
+    {
+        this.interval = interval;
+        this.timeout = Math.max(timeout, interval);
+    }
+
+    /**
+     * @return true if the connection is established (a ping can be sent)
+     */
+    protected abstract boolean isOpen();
+
+    /**
+     * @return true if the connection is closed for good (the heartbeat stops)
+     */
+    protected abstract boolean isClosed();
+
+    protected abstract void ping(ByteBuffer payload);
+
+    /**
+     * Called once no pong has come back in time
+     */
+    protected abstract void dead();
+
+    protected abstract void roundTripTimeChanged(long roundTripTime, long smoothedRoundTripTime);
+
+    public boolean isEnabled()
+    {
+        return interval > 0;
+    }
+
+    public synchronized void start()
+    {
+        if (!isEnabled() || running)
+            return;
+
+        running = true;
+        lastPongAt = System.nanoTime();
+        schedule();
+    }
+
+    public synchronized void stop()
+    {
+        running = false;
+
+        if (scheduled != null)
+        {
+            scheduled.cancel();
+            scheduled = null;
+        }
+    }
+
+    /**
+     * @return the smoothed round trip time in milliseconds, or -1 if not measured yet
+     */
+    public synchronized long getRoundTripTime()
+    {
+        return toMillis(roundTripTime);
+    }
+
+    /**
+     * @return the last round trip time measured in milliseconds, or -1 if not measured yet
+     */
+    public synchronized long getLastRoundTripTime()
+    {
+        return toMillis(lastRoundTripTime);
+    }
+
+    private static long toMillis(long nanos)
+    {
+        return nanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    public void pong(ByteBuffer payload)
+    {
+        long now = System.nanoTime();
+
+        if (payload == null || payload.remaining() != PAYLOAD_SIZE || payload.get(payload.position()) != PAYLOAD_MAGIC)
+            return;
+
+        long sentAt = payload.getLong(payload.position() + 1);
+        long sample = now - sentAt;
+
+        if (sample < 0)
+            return;
+
+        long smoothed;
+
+        synchronized (this)
+        {
+            lastPongAt = now;
+            lastRoundTripTime = sample;
+            roundTripTime = roundTripTime < 0 ? sample : roundTripTime + (sample - roundTripTime) / SMOOTHING;
+            smoothed = roundTripTime;
+        }
+
+        roundTripTimeChanged(toMillis(sample), toMillis(smoothed));
+    }
+
+    private void schedule()
+    {
+        scheduled = HashedWheelTimer.getShared().newTimeout(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                tick();
+            }
+        }, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private void tick()
+    {
+        long now = System.nanoTime();
+        boolean isDead = false;
+
+        synchronized (this)
+        {
+            if (!running)
+                return;
+
+            if (isClosed())
+            {
+                running = false;
+                scheduled = null;
+                return;
+            }
+
+            if (!isOpen())
+            {
+                // still connecting, the time to answer starts once connected
+                lastPongAt = now;
+            }
+            else if (TimeUnit.NANOSECONDS.toMillis(now - lastPongAt) >= timeout)
+            {
+                isDead = true;
+                running = false;
+                scheduled = null;
+            }
+
+            if (!isDead)
+            {
+                schedule();
+            }
+        }
+
+        if (isDead)
+        {
+            dead();
+            return;
+        }
+
+        if (isOpen())
+        {
+            ByteBuffer payload = ByteBuffer.allocate(PAYLOAD_SIZE);
+            payload.put(PAYLOAD_MAGIC);
+            payload.putLong(now);
+            payload.flip();
+
+            ping(payload);
+        }
+    }
+}
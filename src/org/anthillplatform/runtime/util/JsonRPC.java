@@ -4,20 +4,76 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public abstract class JsonRPC
 {
+    public static final int ERROR_REQUEST_TIMEOUT = -32000;
+    public static final int ERROR_CONNECTION_CLOSED = -32001;
+    public static final int ERROR_SEND_QUEUE_FULL = -32002;
+
+    public static final long DEFAULT_REQUEST_TIMEOUT = 60000;
+
     private static final ResponseHandler NoResponse = new ResponseHandler()
     {
         public void success(Object response) {}
         public void error(int code, String message, String data) {}
     };
 
-    private HashMap<String, MethodHandler> handlers;
-    private HashMap<Integer, ResponseHandler> responseHandlers;
-    private int nextId = 1;
+    private Map<String, MethodHandler> handlers;
+    private ConcurrentIntMap<PendingRequest> responseHandlers;
+    private AtomicInteger nextId = new AtomicInteger(1);
+    private HashedWheelTimer timer;
+    private volatile long requestTimeout;
+
+    private static class PendingRequest
+    {
+        private final ResponseHandler handler;
+        private volatile HashedWheelTimer.Timeout timeout;
+        // the requests that have been superseded by this one, and get its response too
+        private volatile PendingRequest merged;
+
+        private PendingRequest(ResponseHandler handler)
+        {
+            this.handler = handler;
+        }
+
+        private void succeeded(Object response)
+        {
+            for (PendingRequest it = this; it != null; it = it.merged)
+            {
+                it.handler.success(response);
+            }
+        }
+
+        private void failed(int code, String message, String data)
+        {
+            for (PendingRequest it = this; it != null; it = it.merged)
+            {
+                it.handler.error(code, message, data);
+            }
+        }
+
+        private void cancelTimeout()
+        {
+            HashedWheelTimer.Timeout timeout = this.timeout;
+
+            if (timeout != null)
+            {
+                timeout.cancel();
+            }
+        }
+    }
 
+    /**
+     * Return a Deferred from called() to respond asynchronously
+     */
     public interface MethodHandler
     {
         Object called(Object params) throws JsonRPCException;
@@ -29,13 +85,28 @@ public abstract class JsonRPC
         void error(int code, String message, String data);
     }
 
-    protected abstract void send(String data);
     public abstract void onError(int code, String message, String data);
 
     public JsonRPC()
     {
-        this.handlers = new HashMap<String, MethodHandler>();
-        this.responseHandlers = new HashMap<Integer, ResponseHandler>();
+        this.handlers = new ConcurrentHashMap<String, MethodHandler>();
+        this.responseHandlers = new ConcurrentIntMap<PendingRequest>();
+        this.timer = HashedWheelTimer.getShared();
+        this.requestTimeout = DEFAULT_REQUEST_TIMEOUT;
+    }
+
+    /**
+     * Sets the time (in milliseconds) after which a request without a response fails with
+     * ERROR_REQUEST_TIMEOUT. Zero disables the timeout.
+     */
+    public void setRequestTimeout(long requestTimeout)
+    {
+        this.requestTimeout = requestTimeout;
+    }
+
+    public long getRequestTimeout()
+    {
+        return requestTimeout;
     }
 
     public class JsonRPCException extends Exception
@@ -57,6 +128,122 @@ public abstract class JsonRPC
         }
     }
 
+    /**
+     * A result a MethodHandler can return when it cannot respond right away. The response is written
+     * once resolve (or reject) is called, from any thread, so the handler does not block the reader.
+     */
+    public static class Deferred
+    {
+        private interface Callback
+        {
+            void resolved(Object result);
+            void rejected(int code, String message, String data);
+        }
+
+        private Callback callback;
+        private boolean completed;
+        private boolean failed;
+        private Object result;
+        private int code;
+        private String message;
+        private String data;
+
+        public void resolve(Object result)
+        {
+            complete(false, result, 0, null, null);
+        }
+
+        public void reject(int code, String message, String data)
+        {
+            complete(true, null, code, message, data);
+        }
+
+        public void reject(int code, String message)
+        {
+            reject(code, message, null);
+        }
+
+        private void complete(boolean failed, Object result, int code, String message, String data)
+        {
+            Callback callback;
+
+            synchronized (this)
+            {
+                if (completed)
+                    return;
+
+                this.completed = true;
+                this.failed = failed;
+                this.result = result;
+                this.code = code;
+                this.message = message;
+                this.data = data;
+
+                callback = this.callback;
+            }
+
+            if (callback != null)
+            {
+                dispatch(callback);
+            }
+        }
+
+        private void then(Callback callback)
+        {
+            synchronized (this)
+            {
+                this.callback = callback;
+
+                if (!completed)
+                    return;
+            }
+
+            dispatch(callback);
+        }
+
+        private void dispatch(Callback callback)
+        {
+            if (failed)
+            {
+                callback.rejected(code, message, data);
+            }
+            else
+            {
+                callback.resolved(result);
+            }
+        }
+    }
+
+    private class BatchReplies
+    {
+        private final JSONArray replies = new JSONArray();
+        private int waiting = 1;
+
+        private synchronized void add(JSONObject reply)
+        {
+            replies.put(reply);
+        }
+
+        private synchronized void hold()
+        {
+            waiting++;
+        }
+
+        private void release()
+        {
+            synchronized (this)
+            {
+                if (--waiting > 0)
+                    return;
+            }
+
+            if (replies.length() > 0)
+            {
+                offer(replies);
+            }
+        }
+    }
+
     public void addHandler(String method, MethodHandler handler)
     {
         handlers.put(method, handler);
@@ -77,17 +264,17 @@ public abstract class JsonRPC
         return error;
     }
 
-    private void writeError(int code, String message)
+    private void writeError(BatchReplies replies, int code, String message)
     {
-        writeError(code, message, null);
+        writeError(replies, code, message, null);
     }
 
-    private void writeError(int code, String message, String data)
+    private void writeError(BatchReplies replies, int code, String message, String data)
     {
-        writeError(code, message, data, -1);
+        writeError(replies, code, message, data, -1);
     }
 
-    private void writeError(int code, String message, String data, int id)
+    private void writeError(BatchReplies replies, int code, String message, String data, int id)
     {
         JSONObject toWrite = new JSONObject();
 
@@ -99,15 +286,10 @@ public abstract class JsonRPC
             toWrite.put("id", id);
         }
 
-        send(toWrite.toString());
+        write(replies, toWrite);
     }
 
-    private void writeResponse(Object result)
-    {
-        writeResponse(result, -1);
-    }
-
-    private void writeResponse(Object result, int id)
+    private void writeResponse(BatchReplies replies, Object result, int id)
     {
         JSONObject toWrite = new JSONObject();
 
@@ -119,102 +301,253 @@ public abstract class JsonRPC
             toWrite.put("id", id);
         }
 
-        send(toWrite.toString());
+        write(replies, toWrite);
     }
 
+    private void writeDeferredResponse(final BatchReplies replies, Deferred deferred, final int id)
+    {
+        if (replies != null)
+        {
+            replies.hold();
+        }
+
+        deferred.then(new Deferred.Callback()
+        {
+            @Override
+            public void resolved(Object result)
+            {
+                if (result != null)
+                {
+                    writeResponse(replies, result, id);
+                }
+                else
+                {
+                    writeError(replies, -32603, "Internal error", "Response cannot be null", id);
+                }
+
+                if (replies != null)
+                {
+                    replies.release();
+                }
+            }
+
+            @Override
+            public void rejected(int code, String message, String data)
+            {
+                writeError(replies, code, message, data, id);
+
+                if (replies != null)
+                {
+                    replies.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Replies to the messages of a batch are collected to be sent back as a single batch
+     */
+    private void write(BatchReplies replies, JSONObject toWrite)
+    {
+        if (replies != null)
+        {
+            replies.add(toWrite);
+        }
+        else
+        {
+            offer(toWrite);
+        }
+    }
+
+    /**
+     * Hands a message (a JSONObject, or a JSONArray batch) over to the transport, which encodes and sends it
+     * (WebSocketJsonRPC queues the messages, and encodes them as JSON text or MessagePack)
+     * @return false if the message cannot be sent, and has been dropped
+     */
+    protected abstract boolean offer(Object message);
+
     public void received(String message)
     {
-        JSONObject msg;
+        Object msg;
 
         try
         {
-            msg = new JSONObject(message);
+            msg = JsonRPCEnvelope.parse(message);
         }
         catch (JSONException e)
         {
-            writeError(-32700, "Parse error");
+            writeError(null, -32700, "Parse error");
             return;
         }
 
-        if (!msg.has("jsonrpc"))
+        dispatch(msg);
+    }
+
+    /**
+     * Same as received(String), but for a MessagePack-encoded message
+     */
+    public void received(ByteBuffer message)
+    {
+        Object msg;
+
+        try
         {
-            writeError(-32600, "Invalid Request", "No 'jsonrpc' field.");
+            msg = JsonRPCEnvelope.of(MessagePack.decode(message));
+        }
+        catch (JSONException e)
+        {
+            writeError(null, -32700, "Parse error");
             return;
         }
 
-        if (!msg.getString("jsonrpc").equals("2.0"))
+        dispatch(msg);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void dispatch(Object msg)
+    {
+        if (msg instanceof JsonRPCEnvelope)
         {
-            writeError(-32600, "Bad version of 'jsonrpc': " + msg.getString("jsonrpc") + ".");
+            process(((JsonRPCEnvelope) msg), null);
+        }
+        else if (msg instanceof List)
+        {
+            List<JsonRPCEnvelope> batch = ((List<JsonRPCEnvelope>) msg);
+
+            if (batch.isEmpty())
+            {
+                writeError(null, -32600, "Invalid Request", "Empty batch.");
+                return;
+            }
+
+            BatchReplies replies = new BatchReplies();
+
+            for (JsonRPCEnvelope entry : batch)
+            {
+                if (entry != null)
+                {
+                    process(entry, replies);
+                }
+                else
+                {
+                    writeError(replies, -32600, "Invalid Request");
+                }
+            }
+
+            replies.release();
+        }
+        else
+        {
+            writeError(null, -32600, "Invalid Request");
+        }
+    }
+
+    private void process(JsonRPCEnvelope msg, BatchReplies replies)
+    {
+        try
+        {
+            processEnvelope(msg, replies);
+        }
+        catch (JSONException e)
+        {
+            // params or result turned out to be malformed once parsed
+            int id = msg.getId();
+
+            // a notification is never replied to
+            if (id <= 0 && msg.getMethod() != null)
+                return;
+
+            writeError(replies, -32700, "Parse error", null, id > 0 ? id : -1);
+        }
+    }
+
+    private void processEnvelope(JsonRPCEnvelope msg, BatchReplies replies) throws JSONException
+    {
+        if (msg.version == null)
+        {
+            writeError(replies, -32600, "Invalid Request", "No 'jsonrpc' field.");
+            return;
+        }
+
+        if (!"2.0".equals(msg.version))
+        {
+            writeError(replies, -32600, "Bad version of 'jsonrpc': " + msg.version + ".");
             return;
         }
 
-        boolean hasId = msg.has("id") && msg.optInt("id") > 0;
-        boolean hasMethod = msg.has("method") && !msg.optString("method").isEmpty();
-        boolean hasParams = msg.has("params");
-        boolean hasResult = msg.has("result");
-        boolean hasError = msg.has("error");
+        int id = msg.getId();
+        String method = msg.getMethod();
+
+        boolean hasId = id > 0;
+        boolean hasMethod = method != null;
+        boolean hasResult = msg.hasResult();
+        boolean hasError = msg.error != null;
 
-        Object params = hasParams ? msg.get("params") : null;
-        String method = hasMethod ? msg.getString("method") : null;
-        int id = hasId ? msg.getInt("id") : 0;
-        JSONObject error = hasError ? msg.getJSONObject("error") : null;
-        Object result = hasResult ? msg.get("result") : null;
+        JSONObject error = hasError && msg.error instanceof JSONObject ? ((JSONObject) msg.error) : null;
 
         if (hasId && hasMethod)
         {
             // a request
-            if (handlers.containsKey(method))
+            MethodHandler handler = handlers.get(method);
+
+            if (handler != null)
             {
                 // call a request
                 Object response;
 
                 try
                 {
-                    response = handlers.get(method).called(params);
+                    response = handler.called(msg.getParams());
                 }
                 catch (JsonRPCException e)
                 {
-                    writeError(e.code, e.message, e.data, id);
+                    writeError(replies, e.code, e.message, e.data, id);
                     return;
                 }
 
-                if (response != null)
+                if (response instanceof Deferred)
                 {
-                    // if a result of callback is a deffered object, then handle it asynchronously
-                    writeResponse(response, id);
+                    // a result of callback is a deferred object, so handle it asynchronously
+                    writeDeferredResponse(replies, ((Deferred) response), id);
+                }
+                else if (response != null)
+                {
+                    writeResponse(replies, response, id);
                 }
                 else
                 {
-                    writeError(-32603, "Internal error", "Response cannot be null", id);
+                    writeError(replies, -32603, "Internal error", "Response cannot be null", id);
                 }
             }
             else
             {
-                writeError(-32601, "Method not found");
+                writeError(replies, -32601, "Method not found", null, id);
             }
         }
         else if (hasId)
         {
             if (hasError == hasResult)
             {
-                writeError(-32600, "Invalid Request", "Should be (only) one 'result' or 'error' field.");
+                writeError(replies, -32600, "Invalid Request", "Should be (only) one 'result' or 'error' field.");
                 return;
             }
 
             // a success
 
-            if (responseHandlers.containsKey(id))
+            PendingRequest pendingRequest = responseHandlers.remove(id);
+
+            if (pendingRequest != null)
             {
-                ResponseHandler handler = responseHandlers.get(id);
-                responseHandlers.remove(id);
+                pendingRequest.cancelTimeout();
 
                 if (hasResult)
                 {
-                    handler.success(result);
+                    pendingRequest.succeeded(msg.getResult());
                 }
                 else
                 {
-                    if (error.has("code") &&
+                    if (error != null &&
+                            error.has("code") &&
                             error.has("message"))
                     {
                         int responseCode = error.getInt("code");
@@ -222,27 +555,29 @@ public abstract class JsonRPC
                         String responseData = error.has("data") ? error.getString("data") : null;
 
                         // hasError
-                        handler.error(responseCode, responseMessage, responseData);
+                        pendingRequest.failed(responseCode, responseMessage, responseData);
                     }
                     else
                     {
-                        writeError(-32600, "Invalid Request", "Bad 'error' field.");
+                        writeError(replies, -32600, "Invalid Request", "Bad 'error' field.");
                     }
                 }
             }
             else
             {
-                writeError(-32600, "Invalid Request", "No such handler.", id);
+                writeError(replies, -32600, "Invalid Request", "No such handler.", id);
             }
         }
         else if (hasMethod)
         {
             // an rpc
-            if (handlers.containsKey(method))
+            MethodHandler handler = handlers.get(method);
+
+            if (handler != null)
             {
                 try
                 {
-                    handlers.get(method).called(params);
+                    handler.called(msg.getParams());
                 }
                 catch (JsonRPCException ignored)
                 {
@@ -252,7 +587,8 @@ public abstract class JsonRPC
         }
         else if (hasError)
         {
-            if (error.has("code") &&
+            if (error != null &&
+                error.has("code") &&
                 error.has("message"))
             {
                 int code = error.getInt("code");
@@ -264,31 +600,143 @@ public abstract class JsonRPC
             }
             else
             {
-                writeError(-32600, "Invalid Request", "Bad 'error' field.");
+                writeError(replies, -32600, "Invalid Request", "Bad 'error' field.");
             }
         }
         else
         {
-            writeError(-32600, "Invalid Request", "No 'method' nor 'id' field.");
+            writeError(replies, -32600, "Invalid Request", "No 'method' nor 'id' field.");
+        }
+    }
+
+    /**
+     * Allocates a new request id and registers the handler under it. Ids are always positive,
+     * and on a wraparound the ones still waiting for a response are skipped.
+     */
+    private int registerResponseHandler(ResponseHandler responseHandler, long timeout)
+    {
+        if (responseHandler == null)
+            responseHandler = NoResponse;
+
+        final PendingRequest pendingRequest = new PendingRequest(responseHandler);
+        int id;
+
+        do
+        {
+            id = nextId.getAndIncrement() & Integer.MAX_VALUE;
+        }
+        while (id == 0 || responseHandlers.contains(id));
+
+        responseHandlers.put(id, pendingRequest);
+
+        if (timeout > 0)
+        {
+            final int requestId = id;
+
+            pendingRequest.timeout = timer.newTimeout(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    if (responseHandlers.remove(requestId, pendingRequest))
+                    {
+                        pendingRequest.failed(ERROR_REQUEST_TIMEOUT, "Request timeout", null);
+                    }
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+        }
+
+        return id;
+    }
+
+    /**
+     * Fails every request still waiting for a response, for example once the connection is lost
+     */
+    public void failPendingRequests(final int code, final String message)
+    {
+        responseHandlers.drain(new ConcurrentIntMap.Visitor<PendingRequest>()
+        {
+            @Override
+            public void visit(int key, PendingRequest pendingRequest)
+            {
+                pendingRequest.cancelTimeout();
+                pendingRequest.failed(code, message, null);
+            }
+        });
+    }
+
+    private void failRequest(int id, int code, String message)
+    {
+        PendingRequest pendingRequest = responseHandlers.remove(id);
+
+        if (pendingRequest != null)
+        {
+            pendingRequest.cancelTimeout();
+            pendingRequest.failed(code, message, null);
+        }
+    }
+
+    /**
+     * Makes the request byId answer the request id as well, once the latter has been dropped
+     * from sending in favor of the former
+     */
+    void supersedeRequest(int id, int byId)
+    {
+        PendingRequest superseded = responseHandlers.remove(id);
+
+        if (superseded == null)
+            return;
+
+        superseded.cancelTimeout();
+
+        PendingRequest by = responseHandlers.get(byId);
+
+        if (by == null)
+        {
+            // the one that took over is gone already (timed out, most likely)
+            superseded.failed(ERROR_REQUEST_TIMEOUT, "Request timeout", null);
+            return;
+        }
+
+        PendingRequest tail = superseded;
+
+        while (tail.merged != null)
+        {
+            tail = tail.merged;
         }
+
+        tail.merged = by.merged;
+        by.merged = superseded;
+    }
+
+    /**
+     * @return amount of requests sent that are still waiting for a response
+     */
+    public int getPendingRequestsCount()
+    {
+        return responseHandlers.size();
     }
 
     public void request(String method, ResponseHandler responseHandler, JSONObject params)
+    {
+        requestWithTimeout(method, responseHandler, requestTimeout, params);
+    }
+
+    public void requestWithTimeout(String method, ResponseHandler responseHandler, long timeout, JSONObject params)
     {
         JSONObject toWrite = new JSONObject();
 
+        int id = registerResponseHandler(responseHandler, timeout);
+
         toWrite.put("jsonrpc", "2.0");
         toWrite.put("method", method);
-        toWrite.put("id", nextId);
+        toWrite.put("id", id);
         toWrite.put("params", params);
 
-        if (responseHandler == null)
-            responseHandler = NoResponse;
-
-        responseHandlers.put(nextId, responseHandler);
-        nextId++;
-
-        send(toWrite.toString());
+        if (!offer(toWrite))
+        {
+            failRequest(id, ERROR_SEND_QUEUE_FULL, "Send queue is full");
+        }
     }
 
     public void request(String method, ResponseHandler responseHandler, Object... params)
@@ -305,19 +753,21 @@ public abstract class JsonRPC
             p.put(param);
         }
 
-        toWrite.put("id", nextId);
-        toWrite.put("params", p);
-
-        if (responseHandler == null)
-            responseHandler = NoResponse;
+        int id = registerResponseHandler(responseHandler, requestTimeout);
 
-        responseHandlers.put(nextId, responseHandler);
-        nextId++;
+        toWrite.put("id", id);
+        toWrite.put("params", p);
 
-        send(toWrite.toString());
+        if (!offer(toWrite))
+        {
+            failRequest(id, ERROR_SEND_QUEUE_FULL, "Send queue is full");
+        }
     }
 
-    public void rpc(String method, JSONObject params)
+    /**
+     * @return false if the call could not be sent
+     */
+    public boolean rpc(String method, JSONObject params)
     {
         JSONObject toWrite = new JSONObject();
 
@@ -325,10 +775,10 @@ public abstract class JsonRPC
         toWrite.put("method", method);
         toWrite.put("params", params);
 
-        send(toWrite.toString());
+        return offer(toWrite);
     }
 
-    public void rpc(String method, Object... params)
+    public boolean rpc(String method, Object... params)
     {
         JSONObject toWrite = new JSONObject();
 
@@ -344,6 +794,118 @@ public abstract class JsonRPC
 
         toWrite.put("params", p);
 
-        send(toWrite.toString());
+        return offer(toWrite);
+    }
+
+    /**
+     * A number of calls to be sent as a single JSON-RPC 2.0 batch (in one frame).
+     * Nothing is sent (and no request id is allocated) until JsonRPC.sendBatch is called.
+     */
+    public static class Batch
+    {
+        private static class Call
+        {
+            private final String method;
+            private final Object params;
+            private final boolean request;
+            private final ResponseHandler responseHandler;
+            private final long timeout;
+
+            private Call(String method, Object params, boolean request, ResponseHandler responseHandler, long timeout)
+            {
+                this.method = method;
+                this.params = params;
+                this.request = request;
+                this.responseHandler = responseHandler;
+                this.timeout = timeout;
+            }
+        }
+
+        private final List<Call> calls = new ArrayList<Call>();
+
+        public Batch request(String method, ResponseHandler responseHandler, JSONObject params)
+        {
+            calls.add(new Call(method, params, true, responseHandler, -1));
+            return this;
+        }
+
+        public Batch requestWithTimeout(String method, ResponseHandler responseHandler, long timeout, JSONObject params)
+        {
+            calls.add(new Call(method, params, true, responseHandler, timeout));
+            return this;
+        }
+
+        public Batch rpc(String method, JSONObject params)
+        {
+            calls.add(new Call(method, params, false, null, -1));
+            return this;
+        }
+
+        public int size()
+        {
+            return calls.size();
+        }
+
+        public boolean isEmpty()
+        {
+            return calls.isEmpty();
+        }
+
+        /**
+         * Fails the requests of the batch without sending it, for example if there is no connection
+         */
+        public void fail(int code, String message)
+        {
+            for (Call call : calls)
+            {
+                if (call.request && call.responseHandler != null)
+                {
+                    call.responseHandler.error(code, message, null);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return false if the batch could not be sent (its requests are failed with ERROR_SEND_QUEUE_FULL)
+     */
+    public boolean sendBatch(Batch batch)
+    {
+        if (batch.isEmpty())
+            return true;
+
+        JSONArray toWrite = new JSONArray();
+        List<Integer> ids = new ArrayList<Integer>();
+
+        for (Batch.Call call : batch.calls)
+        {
+            JSONObject entry = new JSONObject();
+
+            entry.put("jsonrpc", "2.0");
+            entry.put("method", call.method);
+
+            if (call.request)
+            {
+                long timeout = call.timeout >= 0 ? call.timeout : requestTimeout;
+                int id = registerResponseHandler(call.responseHandler, timeout);
+
+                entry.put("id", id);
+                ids.add(id);
+            }
+
+            entry.put("params", call.params);
+
+            toWrite.put(entry);
+        }
+
+        if (offer(toWrite.length() == 1 ? toWrite.getJSONObject(0) : toWrite))
+            return true;
+
+        for (int id : ids)
+        {
+            failRequest(id, ERROR_SEND_QUEUE_FULL, "Send queue is full");
+        }
+
+        return false;
     }
 }
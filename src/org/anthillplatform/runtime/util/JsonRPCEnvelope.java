@@ -0,0 +1,320 @@
+package org.anthillplatform.runtime.util;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The header fields of a JSON-RPC message (jsonrpc, id, method and error), read in a single pass
+ * without building a JSONObject for the message itself.
+ *
+ * The params and result objects (or arrays) are only skipped over, and get parsed on the first
+ * getParams() / getResult(), so a message nobody is waiting for costs the same whatever the size.
+ */
+class JsonRPCEnvelope
+{
+    private static final Set<String> NO_LAZY_FIELDS = Collections.emptySet();
+
+    private static final int NOT_PRESENT = -1;
+
+    Object version;
+    Object id;
+    Object method;
+    Object error;
+
+    private String source;
+    private int paramsAt = NOT_PRESENT;
+    private int resultAt = NOT_PRESENT;
+    private boolean hasParams;
+    private boolean hasResult;
+    private Object params;
+    private Object result;
+
+    private JsonRPCEnvelope()
+    {
+    }
+
+    /**
+     * @return a JsonRPCEnvelope for an object, a list of them for an array (with nulls in place of
+     *   entries that are not objects), or null if the message is neither
+     * @throws JSONException if the message is not a valid JSON
+     */
+    public static Object parse(String message) throws JSONException
+    {
+        LazyJSONParser parser = new LazyJSONParser(message, NO_LAZY_FIELDS);
+        Object result;
+
+        parser.skipWhitespace();
+
+        switch (parser.peek())
+        {
+            case '{':
+            {
+                result = parseObject(parser);
+                break;
+            }
+            case '[':
+            {
+                List<JsonRPCEnvelope> batch = new ArrayList<JsonRPCEnvelope>();
+
+                parser.expect('[');
+                parser.skipWhitespace();
+
+                if (parser.peek() == ']')
+                {
+                    parser.next();
+                }
+                else
+                {
+                    while (true)
+                    {
+                        parser.skipWhitespace();
+
+                        if (parser.peek() == '{')
+                        {
+                            batch.add(parseObject(parser));
+                        }
+                        else
+                        {
+                            parser.skipValue();
+                            batch.add(null);
+                        }
+
+                        parser.skipWhitespace();
+
+                        char c = parser.next();
+
+                        if (c == ']')
+                            break;
+
+                        if (c != ',')
+                            throw parser.error("Expected ',' or ']'");
+                    }
+                }
+
+                result = batch;
+                break;
+            }
+            default:
+            {
+                parser.skipValue();
+                result = null;
+                break;
+            }
+        }
+
+        parser.skipWhitespace();
+
+        if (parser.getPosition() < message.length())
+            throw parser.error("Unexpected trailing data");
+
+        return result;
+    }
+
+    /**
+     * Same as parse(String), for an already decoded message (see MessagePack)
+     */
+    public static Object of(Object message)
+    {
+        if (message instanceof JSONObject)
+            return of(((JSONObject) message));
+
+        if (message instanceof JSONArray)
+        {
+            JSONArray array = ((JSONArray) message);
+            List<JsonRPCEnvelope> batch = new ArrayList<JsonRPCEnvelope>(array.length());
+
+            for (int i = 0, t = array.length(); i < t; i++)
+            {
+                JSONObject entry = array.optJSONObject(i);
+                batch.add(entry != null ? of(entry) : null);
+            }
+
+            return batch;
+        }
+
+        return null;
+    }
+
+    private static JsonRPCEnvelope of(JSONObject message)
+    {
+        JsonRPCEnvelope envelope = new JsonRPCEnvelope();
+
+        envelope.version = message.opt("jsonrpc");
+        envelope.id = message.opt("id");
+        envelope.method = message.opt("method");
+        envelope.error = message.opt("error");
+        envelope.hasParams = message.has("params");
+        envelope.params = message.opt("params");
+        envelope.hasResult = message.has("result");
+        envelope.result = message.opt("result");
+
+        return envelope;
+    }
+
+    private static JsonRPCEnvelope parseObject(LazyJSONParser parser) throws JSONException
+    {
+        JsonRPCEnvelope envelope = new JsonRPCEnvelope();
+        envelope.source = parser.getSource();
+
+        parser.expect('{');
+        parser.skipWhitespace();
+
+        if (parser.peek() == '}')
+        {
+            parser.next();
+            return envelope;
+        }
+
+        while (true)
+        {
+            parser.skipWhitespace();
+
+            if (parser.peek() != '"')
+                throw parser.error("Expected a key");
+
+            String key = parser.nextString();
+
+            parser.skipWhitespace();
+            parser.expect(':');
+            parser.skipWhitespace();
+
+            if (key.equals("params"))
+            {
+                envelope.hasParams = true;
+                envelope.params = null;
+                envelope.paramsAt = skipContainer(parser);
+
+                if (envelope.paramsAt == NOT_PRESENT)
+                    envelope.params = parser.nextValue();
+            }
+            else if (key.equals("result"))
+            {
+                envelope.hasResult = true;
+                envelope.result = null;
+                envelope.resultAt = skipContainer(parser);
+
+                if (envelope.resultAt == NOT_PRESENT)
+                    envelope.result = parser.nextValue();
+            }
+            else if (key.equals("jsonrpc"))
+            {
+                envelope.version = parser.nextValue();
+            }
+            else if (key.equals("id"))
+            {
+                envelope.id = parser.nextValue();
+            }
+            else if (key.equals("method"))
+            {
+                envelope.method = parser.nextValue();
+            }
+            else if (key.equals("error"))
+            {
+                envelope.error = parser.nextValue();
+            }
+            else
+            {
+                parser.skipValue();
+            }
+
+            parser.skipWhitespace();
+
+            char c = parser.next();
+
+            if (c == '}')
+                return envelope;
+
+            if (c != ',')
+                throw parser.error("Expected ',' or '}'");
+        }
+    }
+
+    /**
+     * Skips an object or an array
+     * @return the position it starts at, or NOT_PRESENT if the value is something else (and is not skipped)
+     */
+    private static int skipContainer(LazyJSONParser parser) throws JSONException
+    {
+        char c = parser.peek();
+
+        if (c != '{' && c != '[')
+            return NOT_PRESENT;
+
+        int position = parser.getPosition();
+        parser.skipValue();
+        return position;
+    }
+
+    public boolean hasParams()
+    {
+        return hasParams;
+    }
+
+    public boolean hasResult()
+    {
+        return hasResult;
+    }
+
+    public Object getParams() throws JSONException
+    {
+        if (paramsAt != NOT_PRESENT)
+        {
+            params = LazyJSONParser.parseValue(source, paramsAt, NO_LAZY_FIELDS);
+            paramsAt = NOT_PRESENT;
+        }
+
+        return params;
+    }
+
+    public Object getResult() throws JSONException
+    {
+        if (resultAt != NOT_PRESENT)
+        {
+            result = LazyJSONParser.parseValue(source, resultAt, NO_LAZY_FIELDS);
+            resultAt = NOT_PRESENT;
+        }
+
+        return result;
+    }
+
+    /**
+     * @return the id as JSONObject.optInt would see it
+     */
+    public int getId()
+    {
+        if (id instanceof Number)
+            return ((Number) id).intValue();
+
+        if (id instanceof String)
+        {
+            try
+            {
+                return (int) Double.parseDouble((String) id);
+            }
+            catch (NumberFormatException e)
+            {
+                return 0;
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * @return the method name, or null if there is none
+     */
+    public String getMethod()
+    {
+        if (method == null || method == JSONObject.NULL)
+            return null;
+
+        String name = method.toString();
+        return name.isEmpty() ? null : name;
+    }
+}
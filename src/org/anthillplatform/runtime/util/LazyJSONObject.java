@@ -0,0 +1,131 @@
+package org.anthillplatform.runtime.util;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONString;
+
+/**
+ * A lazy view of a JSON object that keeps its raw source text and only parses it on the first access.
+ * Used for opaque payloads (like profiles) that are often never read.
+ */
+public class LazyJSONObject implements JSONString
+{
+    private final String source;
+    private volatile JSONObject object;
+    private volatile JSONException parseError;
+
+    public LazyJSONObject(String source)
+    {
+        this.source = source;
+    }
+
+    private LazyJSONObject(JSONObject object)
+    {
+        this.source = null;
+        this.object = object;
+    }
+
+    public static LazyJSONObject of(JSONObject object)
+    {
+        if (object == null)
+            return null;
+
+        return new LazyJSONObject(object);
+    }
+
+    /**
+     * Returns a view of the value under the key, no matter if it has been parsed already or not
+     * @return null if there is no such key, or the value is not an object
+     */
+    public static LazyJSONObject opt(JSONObject data, String key)
+    {
+        Object value = data.opt(key);
+
+        if (value instanceof LazyJSONObject)
+            return ((LazyJSONObject) value);
+
+        if (value instanceof JSONObject)
+            return new LazyJSONObject(((JSONObject) value));
+
+        return null;
+    }
+
+    /**
+     * Same as JSONObject.optJSONObject, but also understands values left unparsed by LazyJSONParser
+     */
+    public static JSONObject optJSONObject(JSONObject data, String key)
+    {
+        LazyJSONObject view = opt(data, key);
+        return view != null ? view.get() : null;
+    }
+
+    /**
+     * @return the parsed object, or an empty one if the source is malformed (see getParseError)
+     */
+    public JSONObject get()
+    {
+        JSONObject result = object;
+
+        if (result == null)
+        {
+            synchronized (this)
+            {
+                result = object;
+
+                if (result == null)
+                {
+                    try
+                    {
+                        result = new JSONObject(source);
+                    }
+                    catch (JSONException e)
+                    {
+                        e.printStackTrace();
+                        parseError = e;
+                        result = new JSONObject();
+                    }
+
+                    object = result;
+                }
+            }
+        }
+
+        return result;
+    }
+
+    public boolean isParsed()
+    {
+        return object != null;
+    }
+
+    /**
+     * @return the reason get() has returned an empty object instead, or null if the source has parsed fine
+     *   (or is not parsed yet)
+     */
+    public JSONException getParseError()
+    {
+        return parseError;
+    }
+
+    public boolean isMalformed()
+    {
+        return parseError != null;
+    }
+
+    @Override
+    public String toJSONString()
+    {
+        JSONObject parsed = object;
+
+        if (parsed != null)
+            return parsed.toString();
+
+        return source;
+    }
+
+    @Override
+    public String toString()
+    {
+        return toJSONString();
+    }
+}
@@ -0,0 +1,332 @@
+package org.anthillplatform.runtime.util;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Set;
+
+/**
+ * A JSON parser that builds the usual JSONObject tree, except the object values of the given fields
+ * (on any depth), which are only skipped over and stored as LazyJSONObject slices of the source.
+ *
+ * Use LazyJSONObject.opt(object, field) to access such fields.
+ */
+public class LazyJSONParser
+{
+    private final String source;
+    private final Set<String> lazyFields;
+    private int position;
+
+    LazyJSONParser(String source, Set<String> lazyFields)
+    {
+        this(source, 0, lazyFields);
+    }
+
+    LazyJSONParser(String source, int position, Set<String> lazyFields)
+    {
+        this.source = source;
+        this.lazyFields = lazyFields;
+        this.position = position;
+    }
+
+    public static JSONObject parse(String source, Set<String> lazyFields) throws JSONException
+    {
+        LazyJSONParser parser = new LazyJSONParser(source, lazyFields);
+
+        parser.skipWhitespace();
+
+        if (parser.peek() != '{')
+            throw parser.error("A JSONObject text must begin with '{'");
+
+        JSONObject result = parser.nextObject();
+
+        parser.skipWhitespace();
+
+        if (parser.position < source.length())
+            throw parser.error("Unexpected trailing data");
+
+        return result;
+    }
+
+    /**
+     * Parses a single value that starts at the given position of the source (like the one skipped
+     * with skipValue() before)
+     */
+    public static Object parseValue(String source, int position, Set<String> lazyFields) throws JSONException
+    {
+        return new LazyJSONParser(source, position, lazyFields).nextValue();
+    }
+
+    int getPosition()
+    {
+        return position;
+    }
+
+    String getSource()
+    {
+        return source;
+    }
+
+    JSONException error(String message)
+    {
+        return new JSONException(message + " at " + position);
+    }
+
+    char peek()
+    {
+        return position < source.length() ? source.charAt(position) : 0;
+    }
+
+    char next() throws JSONException
+    {
+        if (position >= source.length())
+            throw error("Unexpected end of data");
+
+        return source.charAt(position++);
+    }
+
+    void expect(char c) throws JSONException
+    {
+        if (next() != c)
+            throw error("Expected '" + c + "'");
+    }
+
+    void skipWhitespace()
+    {
+        while (position < source.length() && source.charAt(position) <= ' ')
+        {
+            position++;
+        }
+    }
+
+    Object nextValue() throws JSONException
+    {
+        skipWhitespace();
+
+        switch (peek())
+        {
+            case '{':
+                return nextObject();
+            case '[':
+                return nextArray();
+            case '"':
+                return nextString();
+            default:
+                return nextLiteral();
+        }
+    }
+
+    JSONObject nextObject() throws JSONException
+    {
+        JSONObject object = new JSONObject();
+
+        expect('{');
+        skipWhitespace();
+
+        if (peek() == '}')
+        {
+            position++;
+            return object;
+        }
+
+        while (true)
+        {
+            skipWhitespace();
+
+            if (peek() != '"')
+                throw error("Expected a key");
+
+            String key = nextString();
+
+            skipWhitespace();
+            expect(':');
+            skipWhitespace();
+
+            if (peek() == '{' && lazyFields.contains(key))
+            {
+                int start = position;
+                skipValue();
+                object.put(key, new LazyJSONObject(source.substring(start, position)));
+            }
+            else
+            {
+                object.put(key, nextValue());
+            }
+
+            skipWhitespace();
+
+            char c = next();
+
+            if (c == '}')
+                return object;
+
+            if (c != ',')
+                throw error("Expected ',' or '}'");
+        }
+    }
+
+    private JSONArray nextArray() throws JSONException
+    {
+        JSONArray array = new JSONArray();
+
+        expect('[');
+        skipWhitespace();
+
+        if (peek() == ']')
+        {
+            position++;
+            return array;
+        }
+
+        while (true)
+        {
+            array.put(nextValue());
+
+            skipWhitespace();
+
+            char c = next();
+
+            if (c == ']')
+                return array;
+
+            if (c != ',')
+                throw error("Expected ',' or ']'");
+        }
+    }
+
+    String nextString() throws JSONException
+    {
+        expect('"');
+
+        StringBuilder sb = null;
+        int start = position;
+
+        while (true)
+        {
+            char c = next();
+
+            if (c == '"')
+            {
+                if (sb == null)
+                    return source.substring(start, position - 1);
+
+                return sb.toString();
+            }
+
+            if (c == '\\')
+            {
+                if (sb == null)
+                {
+                    sb = new StringBuilder();
+                    sb.append(source, start, position - 1);
+                }
+
+                c = next();
+
+                switch (c)
+                {
+                    case 'b': sb.append('\b'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'n': sb.append('\n'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 'u':
+                    {
+                        if (position + 4 > source.length())
+                            throw error("Illegal escape");
+
+                        try
+                        {
+                            sb.append((char) Integer.parseInt(source.substring(position, position + 4), 16));
+                        }
+                        catch (NumberFormatException e)
+                        {
+                            throw error("Illegal escape");
+                        }
+
+                        position += 4;
+                        break;
+                    }
+                    case '"':
+                    case '\'':
+                    case '\\':
+                    case '/':
+                        sb.append(c);
+                        break;
+                    default:
+                        throw error("Illegal escape");
+                }
+            }
+            else if (sb != null)
+            {
+                sb.append(c);
+            }
+        }
+    }
+
+    Object nextLiteral() throws JSONException
+    {
+        int start = position;
+
+        while (position < source.length())
+        {
+            char c = source.charAt(position);
+
+            if (c <= ' ' || c == ',' || c == ']' || c == '}' || c == ':')
+                break;
+
+            position++;
+        }
+
+        if (start == position)
+            throw error("Missing value");
+
+        return JSONObject.stringToValue(source.substring(start, position));
+    }
+
+    /**
+     * Skips over the next value without building anything (but a literal)
+     */
+    void skipValue() throws JSONException
+    {
+        skipWhitespace();
+
+        char first = peek();
+
+        if (first != '{' && first != '[' && first != '"')
+        {
+            nextLiteral();
+            return;
+        }
+
+        int depth = 0;
+
+        do
+        {
+            char c = next();
+
+            switch (c)
+            {
+                case '{':
+                case '[':
+                    depth++;
+                    break;
+                case '}':
+                case ']':
+                    depth--;
+                    break;
+                case '"':
+                {
+                    while ((c = next()) != '"')
+                    {
+                        if (c == '\\')
+                            next();
+                    }
+                    break;
+                }
+            }
+        }
+        while (depth > 0);
+    }
+}
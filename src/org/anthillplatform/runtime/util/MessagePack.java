@@ -0,0 +1,479 @@
+package org.anthillplatform.runtime.util;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONString;
+import org.json.JSONTokener;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * A minimal MessagePack (https://msgpack.org) codec for the org.json object model, used as a binary
+ * alternative to JSON text frames. Only the types JSON can represent are supported.
+ */
+public class MessagePack
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public static byte[] encode(Object value) throws JSONException
+    {
+        Packer packer = new Packer();
+        packer.pack(value);
+        return packer.toByteArray();
+    }
+
+    /**
+     * @return the header of an array of the given size, so the array can be assembled out of
+     *   the elements encoded separately
+     */
+    public static byte[] encodeArrayHeader(int size)
+    {
+        Packer packer = new Packer();
+        packer.packArrayHeader(size);
+        return packer.toByteArray();
+    }
+
+    /**
+     * @return a JSONObject, JSONArray, String, Number, Boolean or JSONObject.NULL
+     */
+    public static Object decode(ByteBuffer source) throws JSONException
+    {
+        ByteBuffer data = source.duplicate().order(ByteOrder.BIG_ENDIAN);
+
+        try
+        {
+            Object result = unpack(data);
+
+            if (data.hasRemaining())
+                throw new JSONException("Unexpected trailing data");
+
+            return result;
+        }
+        catch (RuntimeException e)
+        {
+            if (e instanceof JSONException)
+                throw e;
+
+            throw new JSONException("Corrupted MessagePack data: " + e);
+        }
+    }
+
+    private static class Packer
+    {
+        private byte[] buffer = new byte[256];
+        private int length = 0;
+
+        private void ensure(int extra)
+        {
+            if (length + extra > buffer.length)
+            {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+            }
+        }
+
+        private void writeByte(int b)
+        {
+            ensure(1);
+            buffer[length++] = (byte) b;
+        }
+
+        private void writeShort(int v)
+        {
+            ensure(2);
+            buffer[length++] = (byte) (v >> 8);
+            buffer[length++] = (byte) v;
+        }
+
+        private void writeInt(int v)
+        {
+            ensure(4);
+            buffer[length++] = (byte) (v >> 24);
+            buffer[length++] = (byte) (v >> 16);
+            buffer[length++] = (byte) (v >> 8);
+            buffer[length++] = (byte) v;
+        }
+
+        private void writeLong(long v)
+        {
+            writeInt((int) (v >> 32));
+            writeInt((int) v);
+        }
+
+        private void writeBytes(byte[] data)
+        {
+            ensure(data.length);
+            System.arraycopy(data, 0, buffer, length, data.length);
+            length += data.length;
+        }
+
+        private byte[] toByteArray()
+        {
+            return Arrays.copyOf(buffer, length);
+        }
+
+        private void pack(Object value) throws JSONException
+        {
+            if (value == null || value == JSONObject.NULL)
+            {
+                writeByte(0xc0);
+            }
+            else if (value instanceof Boolean)
+            {
+                writeByte(((Boolean) value) ? 0xc3 : 0xc2);
+            }
+            else if (value instanceof Integer || value instanceof Long ||
+                value instanceof Short || value instanceof Byte)
+            {
+                packLong(((Number) value).longValue());
+            }
+            else if (value instanceof BigInteger)
+            {
+                BigInteger big = ((BigInteger) value);
+
+                if (big.bitLength() < 64)
+                {
+                    packLong(big.longValue());
+                }
+                else if (big.signum() > 0 && big.bitLength() == 64)
+                {
+                    writeByte(0xcf);
+                    writeLong(big.longValue());
+                }
+                else
+                {
+                    packDouble(big.doubleValue());
+                }
+            }
+            else if (value instanceof Float)
+            {
+                writeByte(0xca);
+                writeInt(Float.floatToIntBits((Float) value));
+            }
+            else if (value instanceof Number)
+            {
+                packDouble(((Number) value).doubleValue());
+            }
+            else if (value instanceof String)
+            {
+                packString(((String) value));
+            }
+            else if (value instanceof JSONObject)
+            {
+                JSONObject object = ((JSONObject) value);
+                int size = object.length();
+
+                if (size < 16)
+                {
+                    writeByte(0x80 | size);
+                }
+                else if (size < 0x10000)
+                {
+                    writeByte(0xde);
+                    writeShort(size);
+                }
+                else
+                {
+                    writeByte(0xdf);
+                    writeInt(size);
+                }
+
+                for (String key : object.keySet())
+                {
+                    packString(key);
+                    pack(object.opt(key));
+                }
+            }
+            else if (value instanceof JSONArray)
+            {
+                JSONArray array = ((JSONArray) value);
+                int size = array.length();
+
+                packArrayHeader(size);
+
+                for (int i = 0; i < size; i++)
+                {
+                    pack(array.opt(i));
+                }
+            }
+            else if (value instanceof LazyJSONObject)
+            {
+                pack(((LazyJSONObject) value).get());
+            }
+            else if (value instanceof JSONString)
+            {
+                pack(new JSONTokener(((JSONString) value).toJSONString()).nextValue());
+            }
+            else
+            {
+                Object wrapped = JSONObject.wrap(value);
+
+                if (wrapped == null || wrapped == value)
+                {
+                    packString(value.toString());
+                }
+                else
+                {
+                    pack(wrapped);
+                }
+            }
+        }
+
+        private void packArrayHeader(int size)
+        {
+            if (size < 16)
+            {
+                writeByte(0x90 | size);
+            }
+            else if (size < 0x10000)
+            {
+                writeByte(0xdc);
+                writeShort(size);
+            }
+            else
+            {
+                writeByte(0xdd);
+                writeInt(size);
+            }
+        }
+
+        private void packLong(long v)
+        {
+            if (v >= 0)
+            {
+                if (v < 128)
+                {
+                    writeByte((int) v);
+                }
+                else if (v < 0x100)
+                {
+                    writeByte(0xcc);
+                    writeByte((int) v);
+                }
+                else if (v < 0x10000)
+                {
+                    writeByte(0xcd);
+                    writeShort((int) v);
+                }
+                else if (v < 0x100000000L)
+                {
+                    writeByte(0xce);
+                    writeInt((int) v);
+                }
+                else
+                {
+                    writeByte(0xcf);
+                    writeLong(v);
+                }
+            }
+            else
+            {
+                if (v >= -32)
+                {
+                    writeByte((int) v);
+                }
+                else if (v >= Byte.MIN_VALUE)
+                {
+                    writeByte(0xd0);
+                    writeByte((int) v);
+                }
+                else if (v >= Short.MIN_VALUE)
+                {
+                    writeByte(0xd1);
+                    writeShort((int) v);
+                }
+                else if (v >= Integer.MIN_VALUE)
+                {
+                    writeByte(0xd2);
+                    writeInt((int) v);
+                }
+                else
+                {
+                    writeByte(0xd3);
+                    writeLong(v);
+                }
+            }
+        }
+
+        private void packDouble(double v)
+        {
+            writeByte(0xcb);
+            writeLong(Double.doubleToLongBits(v));
+        }
+
+        private void packString(String value)
+        {
+            byte[] data = value.getBytes(UTF8);
+            int size = data.length;
+
+            if (size < 32)
+            {
+                writeByte(0xa0 | size);
+            }
+            else if (size < 0x100)
+            {
+                writeByte(0xd9);
+                writeByte(size);
+            }
+            else if (size < 0x10000)
+            {
+                writeByte(0xda);
+                writeShort(size);
+            }
+            else
+            {
+                writeByte(0xdb);
+                writeInt(size);
+            }
+
+            writeBytes(data);
+        }
+    }
+
+    private static Object unpack(ByteBuffer data) throws JSONException
+    {
+        int type = data.get() & 0xff;
+
+        if (type <= 0x7f)
+            return type;
+
+        if (type >= 0xe0)
+            return (int) (byte) type;
+
+        if ((type & 0xf0) == 0x80)
+            return unpackMap(data, type & 0x0f);
+
+        if ((type & 0xf0) == 0x90)
+            return unpackArray(data, type & 0x0f);
+
+        if ((type & 0xe0) == 0xa0)
+            return unpackString(data, type & 0x1f);
+
+        switch (type)
+        {
+            case 0xc0:
+                return JSONObject.NULL;
+            case 0xc2:
+                return Boolean.FALSE;
+            case 0xc3:
+                return Boolean.TRUE;
+            case 0xc4:
+                return unpackBinary(data, data.get() & 0xff);
+            case 0xc5:
+                return unpackBinary(data, data.getShort() & 0xffff);
+            case 0xc6:
+                return unpackBinary(data, data.getInt());
+            case 0xca:
+                return (double) data.getFloat();
+            case 0xcb:
+                return data.getDouble();
+            case 0xcc:
+                return data.get() & 0xff;
+            case 0xcd:
+                return data.getShort() & 0xffff;
+            case 0xce:
+                return narrow(data.getInt() & 0xffffffffL);
+            case 0xcf:
+            {
+                long v = data.getLong();
+
+                if (v >= 0)
+                    return narrow(v);
+
+                return new BigInteger(1, ByteBuffer.allocate(8).putLong(v).array());
+            }
+            case 0xd0:
+                return (int) data.get();
+            case 0xd1:
+                return (int) data.getShort();
+            case 0xd2:
+                return data.getInt();
+            case 0xd3:
+                return narrow(data.getLong());
+            case 0xd9:
+                return unpackString(data, data.get() & 0xff);
+            case 0xda:
+                return unpackString(data, data.getShort() & 0xffff);
+            case 0xdb:
+                return unpackString(data, data.getInt());
+            case 0xdc:
+                return unpackArray(data, data.getShort() & 0xffff);
+            case 0xdd:
+                return unpackArray(data, data.getInt());
+            case 0xde:
+                return unpackMap(data, data.getShort() & 0xffff);
+            case 0xdf:
+                return unpackMap(data, data.getInt());
+            default:
+                throw new JSONException("Unsupported MessagePack type: 0x" + Integer.toHexString(type));
+        }
+    }
+
+    private static Object narrow(long v)
+    {
+        if (v >= Integer.MIN_VALUE && v <= Integer.MAX_VALUE)
+            return (int) v;
+
+        return v;
+    }
+
+    private static String unpackString(ByteBuffer data, int size) throws JSONException
+    {
+        if (size < 0 || size > data.remaining())
+            throw new JSONException("Bad MessagePack string size");
+
+        if (data.hasArray())
+        {
+            String result = new String(data.array(), data.arrayOffset() + data.position(), size, UTF8);
+            data.position(data.position() + size);
+            return result;
+        }
+
+        return new String(unpackBinary(data, size), UTF8);
+    }
+
+    private static byte[] unpackBinary(ByteBuffer data, int size) throws JSONException
+    {
+        if (size < 0 || size > data.remaining())
+            throw new JSONException("Bad MessagePack binary size");
+
+        byte[] result = new byte[size];
+        data.get(result);
+        return result;
+    }
+
+    private static JSONArray unpackArray(ByteBuffer data, int size) throws JSONException
+    {
+        if (size < 0 || size > data.remaining())
+            throw new JSONException("Bad MessagePack array size");
+
+        JSONArray array = new JSONArray();
+
+        for (int i = 0; i < size; i++)
+        {
+            array.put(unpack(data));
+        }
+
+        return array;
+    }
+
+    private static JSONObject unpackMap(ByteBuffer data, int size) throws JSONException
+    {
+        if (size < 0 || size > data.remaining())
+            throw new JSONException("Bad MessagePack map size");
+
+        JSONObject object = new JSONObject();
+
+        for (int i = 0; i < size; i++)
+        {
+            String key = String.valueOf(unpack(data));
+            object.put(key, unpack(data));
+        }
+
+        return object;
+    }
+}
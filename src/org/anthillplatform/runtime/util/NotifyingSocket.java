@@ -0,0 +1,279 @@
+package org.anthillplatform.runtime.util;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Proxy;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+
+/**
+ * A socket that lets WebSocketJsonRPC know every time the writing thread of WebSocketClient has flushed
+ * a frame out, so its send queue can follow up right away (WebSocketClient has no such event of its own).
+ *
+ * The socket delegates to the one the actual factory makes, layering TLS of the shared TLSContext over it
+ * for wss if there is no factory (a proxied connection), like WebSocketClient does with the default one.
+ */
+class NotifyingSocket extends Socket
+{
+    private Socket socket;
+    private final String tlsHost;
+    private final Runnable flushed;
+
+    /**
+     * @param socketFactory the factory set with setSocketFactory, null if none
+     * @param proxy the proxy set with setProxy
+     * @param tlsHost the host to layer TLS for, null if not needed
+     */
+    static SocketFactory createFactory(final SocketFactory socketFactory, final Proxy proxy,
+                                       final String tlsHost, final Runnable flushed)
+    {
+        return new SocketFactory()
+        {
+            @Override
+            public Socket createSocket() throws IOException
+            {
+                if (socketFactory != null)
+                    return new NotifyingSocket(socketFactory.createSocket(), null, flushed);
+
+                return new NotifyingSocket(new Socket(proxy), tlsHost, flushed);
+            }
+
+            @Override
+            public Socket createSocket(String host, int port) throws IOException
+            {
+                throw new SocketException("Unconnected sockets only");
+            }
+
+            @Override
+            public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+                throws IOException
+            {
+                throw new SocketException("Unconnected sockets only");
+            }
+
+            @Override
+            public Socket createSocket(InetAddress host, int port) throws IOException
+            {
+                throw new SocketException("Unconnected sockets only");
+            }
+
+            @Override
+            public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+                throws IOException
+            {
+                throw new SocketException("Unconnected sockets only");
+            }
+        };
+    }
+
+    private NotifyingSocket(Socket socket, String tlsHost, Runnable flushed)
+    {
+        this.socket = socket;
+        this.tlsHost = tlsHost;
+        this.flushed = flushed;
+    }
+
+    @Override
+    public void connect(SocketAddress endpoint) throws IOException
+    {
+        connect(endpoint, 0);
+    }
+
+    @Override
+    public void connect(SocketAddress endpoint, int timeout) throws IOException
+    {
+        socket.connect(endpoint, timeout);
+
+        if (tlsHost != null)
+        {
+            socket = TLSContext.getShared().getSocketFactory().createSocket(
+                socket, tlsHost, socket.getPort(), true);
+        }
+
+        // what WebSocketClient does for an SSLSocket, and cannot see through this one
+        if (socket instanceof SSLSocket)
+        {
+            SSLSocket sslSocket = ((SSLSocket) socket);
+            SSLParameters parameters = sslSocket.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            sslSocket.setSSLParameters(parameters);
+        }
+    }
+
+    @Override
+    public void bind(SocketAddress bindpoint) throws IOException
+    {
+        socket.bind(bindpoint);
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException
+    {
+        return socket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException
+    {
+        return new FilterOutputStream(socket.getOutputStream())
+        {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException
+            {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void flush() throws IOException
+            {
+                out.flush();
+                flushed.run();
+            }
+        };
+    }
+
+    @Override
+    public InetAddress getInetAddress()
+    {
+        return socket.getInetAddress();
+    }
+
+    @Override
+    public InetAddress getLocalAddress()
+    {
+        return socket.getLocalAddress();
+    }
+
+    @Override
+    public int getPort()
+    {
+        return socket.getPort();
+    }
+
+    @Override
+    public int getLocalPort()
+    {
+        return socket.getLocalPort();
+    }
+
+    @Override
+    public SocketAddress getRemoteSocketAddress()
+    {
+        return socket.getRemoteSocketAddress();
+    }
+
+    @Override
+    public SocketAddress getLocalSocketAddress()
+    {
+        return socket.getLocalSocketAddress();
+    }
+
+    @Override
+    public void setTcpNoDelay(boolean on) throws SocketException
+    {
+        socket.setTcpNoDelay(on);
+    }
+
+    @Override
+    public boolean getTcpNoDelay() throws SocketException
+    {
+        return socket.getTcpNoDelay();
+    }
+
+    @Override
+    public void setReuseAddress(boolean on) throws SocketException
+    {
+        socket.setReuseAddress(on);
+    }
+
+    @Override
+    public boolean getReuseAddress() throws SocketException
+    {
+        return socket.getReuseAddress();
+    }
+
+    @Override
+    public void setSoTimeout(int timeout) throws SocketException
+    {
+        socket.setSoTimeout(timeout);
+    }
+
+    @Override
+    public int getSoTimeout() throws SocketException
+    {
+        return socket.getSoTimeout();
+    }
+
+    @Override
+    public void setKeepAlive(boolean on) throws SocketException
+    {
+        socket.setKeepAlive(on);
+    }
+
+    @Override
+    public boolean getKeepAlive() throws SocketException
+    {
+        return socket.getKeepAlive();
+    }
+
+    @Override
+    public void shutdownInput() throws IOException
+    {
+        socket.shutdownInput();
+    }
+
+    @Override
+    public void shutdownOutput() throws IOException
+    {
+        socket.shutdownOutput();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        socket.close();
+    }
+
+    @Override
+    public boolean isConnected()
+    {
+        return socket.isConnected();
+    }
+
+    @Override
+    public boolean isBound()
+    {
+        return socket.isBound();
+    }
+
+    @Override
+    public boolean isClosed()
+    {
+        return socket.isClosed();
+    }
+
+    @Override
+    public boolean isInputShutdown()
+    {
+        return socket.isInputShutdown();
+    }
+
+    @Override
+    public boolean isOutputShutdown()
+    {
+        return socket.isOutputShutdown();
+    }
+
+    @Override
+    public String toString()
+    {
+        return socket.toString();
+    }
+}
@@ -0,0 +1,144 @@
+package org.anthillplatform.runtime.util;
+
+import org.java_websocket.framing.CloseFrame;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schedules the reconnection attempts of a session once its connection is lost, according to
+ * WebSocketOptions.reconnect*
+ */
+public abstract class Reconnector
+{
+    public interface Listener
+    {
+        /**
+         * The connection has been lost (or the attempt has failed), next attempt is in delay milliseconds
+         */
+        void onReconnecting(int attempt, long delay);
+        void onReconnected(int attempts);
+    }
+
+    private final WebSocketOptions options;
+    private final Backoff backoff;
+    private HashedWheelTimer.Timeout scheduled;
+    private boolean wasConnected;
+    private boolean stopped;
+    private volatile Listener listener;
+
+    public Reconnector(WebSocketOptions options)
+    {
+        this.options = options;
+        this.backoff = new Backoff(options.reconnectInitialDelay, options.reconnectMaxDelay);
+    }
+
+    /**
+     * Called from the timer thread when it's time to try again
+     */
+    protected abstract void reconnect();
+
+    public void setListener(Listener listener)
+    {
+        this.listener = listener;
+    }
+
+    /**
+     * @return true if the session has been connected before, so it is a reconnection
+     */
+    public boolean connected()
+    {
+        int attempts;
+        boolean reconnected;
+
+        synchronized (this)
+        {
+            attempts = backoff.getAttempts();
+            reconnected = wasConnected;
+
+            wasConnected = true;
+            backoff.reset();
+        }
+
+        Listener listener = this.listener;
+
+        if (reconnected && listener != null)
+        {
+            listener.onReconnected(attempts);
+        }
+
+        return reconnected;
+    }
+
+    /**
+     * @return true if a reconnection has been scheduled, false if the session should be closed for good
+     */
+    public boolean connectionLost(int code)
+    {
+        long delay;
+        int attempt;
+
+        synchronized (this)
+        {
+            if (!options.reconnect || stopped || !wasConnected || !isRecoverable(code))
+                return false;
+
+            if (options.reconnectMaxAttempts > 0 && backoff.getAttempts() >= options.reconnectMaxAttempts)
+                return false;
+
+            delay = backoff.nextDelay();
+            attempt = backoff.getAttempts();
+
+            scheduled = HashedWheelTimer.getShared().newTimeout(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    synchronized (Reconnector.this)
+                    {
+                        if (stopped)
+                            return;
+                    }
+
+                    reconnect();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+
+        Listener listener = this.listener;
+
+        if (listener != null)
+        {
+            listener.onReconnecting(attempt, delay);
+        }
+
+        return true;
+    }
+
+    /**
+     * The session is being closed on purpose, so no more attempts
+     */
+    public synchronized void stop()
+    {
+        stopped = true;
+
+        if (scheduled != null)
+        {
+            scheduled.cancel();
+            scheduled = null;
+        }
+    }
+
+    public synchronized boolean isReconnecting()
+    {
+        return !stopped && backoff.getAttempts() > 0;
+    }
+
+    /**
+     * A normal close, a policy violation or an application-defined (4xxx) code mean the server has
+     * closed the session on purpose, and connecting again would not help
+     */
+    private static boolean isRecoverable(int code)
+    {
+        return code != CloseFrame.NORMAL && code != CloseFrame.POLICY_VALIDATION && code < 4000;
+    }
+}
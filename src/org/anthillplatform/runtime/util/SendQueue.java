@@ -0,0 +1,404 @@
+package org.anthillplatform.runtime.util;
+
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The outbound queue of a websocket session (see WebSocketJsonRPC and WebSocketOptions).
+ *
+ * Messages are written as soon as the connection has nothing buffered, otherwise they stay in the
+ * queue, where the newer ones can supersede the older ones, and go out together once the connection
+ * has drained its buffer (or has been open, for the messages sent before that).
+ */
+abstract class SendQueue
+{
+    private static final int NOT_SUPERSEDED = 0;
+    private static final int SUPERSEDED = 1;
+    private static final int REJECTED = 2;
+
+    private static class Entry
+    {
+        private Object message;
+        private final String method;
+        private int id;
+        private String key;
+        private Object encoded;
+        private int size;
+
+        private Entry(Object message)
+        {
+            this.message = message;
+
+            if (message instanceof JSONObject)
+            {
+                JSONObject object = ((JSONObject) message);
+
+                this.method = object.has("method") ? object.optString("method") : null;
+                this.id = object.optInt("id", 0);
+            }
+            else
+            {
+                this.method = null;
+                this.id = 0;
+            }
+        }
+
+        private boolean isCall()
+        {
+            return method != null;
+        }
+    }
+
+    private final WebSocketOptions options;
+    private final ArrayDeque<Entry> queue;
+    private final Map<String, Entry> superseding;
+    private long queuedSize;
+    private boolean writable;
+    private volatile WebSocketJsonRPC.WritabilityListener writabilityListener;
+
+    SendQueue(WebSocketOptions options)
+    {
+        this.options = options;
+        this.queue = new ArrayDeque<Entry>();
+        this.superseding = new HashMap<String, Entry>();
+        this.queuedSize = 0;
+        this.writable = true;
+    }
+
+    /**
+     * @return true if the connection can take the encoded messages right away
+     */
+    protected abstract boolean isReady();
+    protected abstract boolean isBinary();
+
+    /**
+     * Writes the encoded messages (String or byte[]), in that order
+     */
+    protected abstract void write(List<Object> encoded);
+
+    /**
+     * Called when a queued request gets dropped in favor of a newer one
+     */
+    protected abstract void superseded(int id, int byId);
+
+    public void setWritabilityListener(WebSocketJsonRPC.WritabilityListener writabilityListener)
+    {
+        this.writabilityListener = writabilityListener;
+    }
+
+    /**
+     * @return true if the queue holds the messages back while the connection is busy (to supersede or coalesce
+     *   them, or to report the writability), so the connection has to let it know once it has drained
+     */
+    public boolean needsDrainNotification()
+    {
+        return options.coalesce || !options.superseding.isEmpty() || writabilityListener != null;
+    }
+
+    public synchronized boolean isWritable()
+    {
+        return writable;
+    }
+
+    public synchronized long getQueuedSize()
+    {
+        return queuedSize;
+    }
+
+    /**
+     * @return false if the message does not fit into the queue
+     */
+    public boolean offer(Object message)
+    {
+        Entry entry = new Entry(message);
+        boolean changed;
+
+        synchronized (this)
+        {
+            int superseded = supersede(entry);
+
+            if (superseded == REJECTED)
+                return false;
+
+            if (superseded == NOT_SUPERSEDED)
+            {
+                encode(entry);
+
+                if (!queue.isEmpty() && queuedSize + entry.size > options.sendQueueLimit)
+                    return false;
+
+                queue.add(entry);
+                queuedSize += entry.size;
+
+                if (entry.key != null)
+                {
+                    superseding.put(entry.key, entry);
+                }
+            }
+
+            flushQueue();
+            changed = updateWritability();
+        }
+
+        notifyWritability(changed);
+        return true;
+    }
+
+    /**
+     * Writes whatever is queued, if the connection is ready to take it
+     */
+    public void flush()
+    {
+        boolean changed;
+
+        synchronized (this)
+        {
+            flushQueue();
+            changed = updateWritability();
+        }
+
+        notifyWritability(changed);
+    }
+
+    /**
+     * Drops everything queued, for example once the connection is closed
+     */
+    public void clear()
+    {
+        boolean changed;
+
+        synchronized (this)
+        {
+            queue.clear();
+            superseding.clear();
+            queuedSize = 0;
+            changed = updateWritability();
+        }
+
+        notifyWritability(changed);
+    }
+
+    /**
+     * Merges the entry into a queued one of the same key, if any
+     * @return NOT_SUPERSEDED if the entry has to be queued (entry.key is set if it can be superseded later),
+     *   SUPERSEDED if it has been merged, REJECTED if the merged message does not fit into the queue
+     *   (the queued one is kept as it was then)
+     */
+    private int supersede(Entry entry)
+    {
+        if (!entry.isCall() || !(entry.message instanceof JSONObject))
+            return NOT_SUPERSEDED;
+
+        WebSocketOptions.Superseding policy = options.superseding.get(entry.method);
+
+        if (policy == null)
+            return NOT_SUPERSEDED;
+
+        JSONObject params = ((JSONObject) entry.message).optJSONObject("params");
+
+        if (params == null)
+            return NOT_SUPERSEDED;
+
+        Object key = policy.key(params);
+
+        if (key == null)
+            return NOT_SUPERSEDED;
+
+        String index = entry.method + "\n" + key;
+        Entry queued = superseding.get(index);
+
+        // only a request can take over a request, and only a notification can take over a notification
+        if (queued == null || (queued.id > 0) != (entry.id > 0))
+        {
+            entry.key = index;
+            return NOT_SUPERSEDED;
+        }
+
+        JSONObject queuedMessage = ((JSONObject) queued.message);
+        JSONObject merged = policy.merge(queuedMessage.optJSONObject("params"), params);
+
+        // the queued one keeps its place, but takes over the newer one's id
+        JSONObject message = new JSONObject((JSONObject) entry.message, JSONObject.getNames((JSONObject) entry.message));
+        message.put("params", merged);
+
+        Entry replacement = new Entry(message);
+        encode(replacement);
+
+        long size = queuedSize - queued.size + replacement.size;
+
+        if (queue.size() > 1 && size > options.sendQueueLimit)
+            return REJECTED;
+
+        queued.message = replacement.message;
+        queued.encoded = replacement.encoded;
+        queued.size = replacement.size;
+        queuedSize = size;
+
+        if (queued.id > 0)
+        {
+            superseded(queued.id, entry.id);
+            queued.id = entry.id;
+        }
+
+        return SUPERSEDED;
+    }
+
+    private void encode(Entry entry)
+    {
+        if (isBinary())
+        {
+            byte[] encoded = MessagePack.encode(entry.message);
+            entry.encoded = encoded;
+            entry.size = encoded.length;
+        }
+        else
+        {
+            String encoded = entry.message.toString();
+            entry.encoded = encoded;
+            entry.size = encoded.length();
+        }
+    }
+
+    private void flushQueue()
+    {
+        if (queue.isEmpty())
+            return;
+
+        // flush() is called again once the connection has written out what it has buffered
+        if (!isReady())
+            return;
+
+        boolean binary = isBinary();
+        List<Object> toWrite = new ArrayList<Object>();
+        List<Entry> group = new ArrayList<Entry>();
+        int groupSize = 0;
+
+        Entry entry;
+
+        while ((entry = queue.poll()) != null)
+        {
+            queuedSize -= entry.size;
+
+            if (entry.key != null && superseding.get(entry.key) == entry)
+            {
+                superseding.remove(entry.key);
+            }
+
+            // the connection may have switched the mode since the message has been queued
+            if ((entry.encoded instanceof byte[]) != binary)
+            {
+                encode(entry);
+            }
+
+            if (options.coalesce && entry.isCall())
+            {
+                if (!group.isEmpty() && groupSize + entry.size > options.coalesceLimit)
+                {
+                    toWrite.add(coalesce(group, binary));
+                    group.clear();
+                    groupSize = 0;
+                }
+
+                group.add(entry);
+                groupSize += entry.size;
+            }
+            else
+            {
+                if (!group.isEmpty())
+                {
+                    toWrite.add(coalesce(group, binary));
+                    group.clear();
+                    groupSize = 0;
+                }
+
+                toWrite.add(entry.encoded);
+            }
+        }
+
+        if (!group.isEmpty())
+        {
+            toWrite.add(coalesce(group, binary));
+        }
+
+        queuedSize = 0;
+        write(toWrite);
+    }
+
+    /**
+     * Joins the already encoded calls into a batch without encoding them again
+     */
+    private static Object coalesce(List<Entry> group, boolean binary)
+    {
+        if (group.size() == 1)
+            return group.get(0).encoded;
+
+        if (binary)
+        {
+            ByteArrayOutputStream batch = new ByteArrayOutputStream();
+            byte[] header = MessagePack.encodeArrayHeader(group.size());
+
+            batch.write(header, 0, header.length);
+
+            for (Entry entry : group)
+            {
+                byte[] encoded = ((byte[]) entry.encoded);
+                batch.write(encoded, 0, encoded.length);
+            }
+
+            return batch.toByteArray();
+        }
+
+        StringBuilder batch = new StringBuilder("[");
+
+        for (Entry entry : group)
+        {
+            if (batch.length() > 1)
+            {
+                batch.append(",");
+            }
+
+            batch.append(((String) entry.encoded));
+        }
+
+        return batch.append("]").toString();
+    }
+
+    /**
+     * @return true if the writability has changed
+     */
+    private boolean updateWritability()
+    {
+        if (writable && queuedSize >= options.sendQueueHighWatermark)
+        {
+            writable = false;
+            return true;
+        }
+
+        if (!writable && queuedSize <= options.sendQueueLowWatermark)
+        {
+            writable = true;
+            return true;
+        }
+
+        return false;
+    }
+
+    private void notifyWritability(boolean changed)
+    {
+        if (!changed)
+            return;
+
+        WebSocketJsonRPC.WritabilityListener listener = this.writabilityListener;
+
+        if (listener != null)
+        {
+            listener.writabilityChanged(isWritable());
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package org.anthillplatform.runtime.util;
+
+import com.mashape.unirest.http.Unirest;
+import com.mashape.unirest.http.async.utils.AsyncIdleConnectionMonitorThread;
+import com.mashape.unirest.http.options.Option;
+import com.mashape.unirest.http.options.Options;
+import org.apache.http.HttpHost;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.nio.reactor.IOSession;
+import org.apache.http.nio.reactor.ssl.SSLIOSession;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A TLS context shared by the HTTP requests and the websocket sessions, so the connections to
+ * the same host resume the TLS sessions of each other instead of doing a full handshake every time.
+ *
+ * Counts the handshakes, and the ones of them that have resumed a cached session.
+ *
+ * The websocket sessions use the shared context on their own, the HTTP requests only once it is installed
+ * into Unirest with install.
+ */
+public class TLSContext
+{
+    private static final String STARTED_AT = "tls.started-at";
+
+    // Unirest's default, which it does not expose
+    private static final long HTTP_SOCKET_TIMEOUT = 60000;
+
+    private static TLSContext shared;
+
+    private final SSLContext context;
+    private final SSLSocketFactory socketFactory;
+    private final AtomicLong handshakes;
+    private final AtomicLong resumedHandshakes;
+
+    public TLSContext(SSLContext context)
+    {
+        this.context = context;
+        this.socketFactory = new TrackingSocketFactory(context.getSocketFactory());
+        this.handshakes = new AtomicLong();
+        this.resumedHandshakes = new AtomicLong();
+    }
+
+    public static synchronized TLSContext getShared()
+    {
+        if (shared == null)
+        {
+            try
+            {
+                SSLContext context = SSLContext.getInstance("TLS");
+                context.init(null, null, null);
+
+                shared = new TLSContext(context);
+            }
+            catch (Exception e)
+            {
+                throw new RuntimeException("Failed to initialize TLS", e);
+            }
+        }
+
+        return shared;
+    }
+
+    public SSLContext getContext()
+    {
+        return context;
+    }
+
+    /**
+     * @return a socket factory that reports the handshakes of its sockets to this context
+     */
+    public SSLSocketFactory getSocketFactory()
+    {
+        return socketFactory;
+    }
+
+    /**
+     * @return a strategy for the HTTP client connections that reports the handshakes to this context
+     */
+    public SSLIOSessionStrategy getIOSessionStrategy()
+    {
+        return new SSLIOSessionStrategy(context, SSLIOSessionStrategy.BROWSER_COMPATIBLE_HOSTNAME_VERIFIER)
+        {
+            @Override
+            public SSLIOSession upgrade(HttpHost host, IOSession iosession) throws IOException
+            {
+                iosession.setAttribute(STARTED_AT, System.currentTimeMillis());
+                return super.upgrade(host, iosession);
+            }
+
+            @Override
+            protected void verifySession(HttpHost host, IOSession iosession, SSLSession sslsession) throws SSLException
+            {
+                super.verifySession(host, iosession, sslsession);
+
+                Object startedAt = iosession.getAttribute(STARTED_AT);
+
+                if (startedAt instanceof Long)
+                {
+                    handshakeCompleted(sslsession, ((Long) startedAt));
+                }
+            }
+        };
+    }
+
+    /**
+     * Replaces the HTTP client of Unirest with one like its default (the pool, the timeouts, the proxy and
+     * the idle connection monitor are taken from the Unirest options), but with the TLS of this context,
+     * so the requests and the websocket sessions resume the TLS sessions of each other.
+     *
+     * Unirest.setTimeouts, setProxy and setConcurrency rebuild the client of Unirest without this context,
+     * so they should be called first (or install called again after them). The client replaced is closed.
+     */
+    public void install()
+    {
+        PoolingNHttpClientConnectionManager manager;
+
+        try
+        {
+            manager = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(),
+                RegistryBuilder.<SchemeIOSessionStrategy>create()
+                    .register("http", NoopIOSessionStrategy.INSTANCE)
+                    .register("https", getIOSessionStrategy())
+                    .build());
+        }
+        catch (IOReactorException e)
+        {
+            throw new RuntimeException("Failed to create the HTTP client", e);
+        }
+
+        manager.setMaxTotal(getHttpOption(Option.MAX_TOTAL, Options.MAX_TOTAL));
+        manager.setDefaultMaxPerRoute(getHttpOption(Option.MAX_PER_ROUTE, Options.MAX_PER_ROUTE));
+
+        long socketTimeout = getHttpOption(Option.SOCKET_TIMEOUT, HTTP_SOCKET_TIMEOUT);
+
+        RequestConfig config = RequestConfig.custom()
+            .setConnectTimeout((int) getHttpOption(Option.CONNECTION_TIMEOUT, Options.CONNECTION_TIMEOUT))
+            .setSocketTimeout((int) socketTimeout)
+            .setConnectionRequestTimeout((int) socketTimeout)
+            .setProxy((HttpHost) Options.getOption(Option.PROXY))
+            .build();
+
+        Object current = Options.getOption(Option.ASYNCHTTPCLIENT);
+        Object monitor = Options.getOption(Option.ASYNC_MONITOR);
+
+        Unirest.setAsyncHttpClient(HttpAsyncClientBuilder.create()
+            .setDefaultRequestConfig(config)
+            .setConnectionManager(manager)
+            .build());
+
+        Options.setOption(Option.ASYNC_MONITOR, new AsyncIdleConnectionMonitorThread(manager));
+
+        if (current instanceof CloseableHttpAsyncClient)
+        {
+            try
+            {
+                ((CloseableHttpAsyncClient) current).close();
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+
+        if (monitor instanceof Thread)
+        {
+            ((Thread) monitor).interrupt();
+        }
+    }
+
+    private static long getHttpOption(Option option, long def)
+    {
+        Object value = Options.getOption(option);
+        return value instanceof Number ? ((Number) value).longValue() : def;
+    }
+
+    private static int getHttpOption(Option option, int def)
+    {
+        Object value = Options.getOption(option);
+        return value instanceof Number ? ((Number) value).intValue() : def;
+    }
+
+    /**
+     * Number of cached sessions to keep, zero for no limit
+     */
+    public void setSessionCacheSize(int size)
+    {
+        context.getClientSessionContext().setSessionCacheSize(size);
+    }
+
+    /**
+     * For how long (in seconds) a cached session can be resumed, zero for no limit
+     */
+    public void setSessionTimeout(int seconds)
+    {
+        context.getClientSessionContext().setSessionTimeout(seconds);
+    }
+
+    /**
+     * Counts a handshake completed, the one that has got a session created before it has been started
+     * has resumed that session
+     */
+    public void handshakeCompleted(SSLSession session, long startedAt)
+    {
+        handshakes.incrementAndGet();
+
+        if (session.getCreationTime() < startedAt)
+        {
+            resumedHandshakes.incrementAndGet();
+        }
+    }
+
+    public long getHandshakes()
+    {
+        return handshakes.get();
+    }
+
+    public long getResumedHandshakes()
+    {
+        return resumedHandshakes.get();
+    }
+
+    /**
+     * @return the share of the handshakes that have resumed a session (0..1)
+     */
+    public double getResumptionRate()
+    {
+        long total = handshakes.get();
+        return total > 0 ? (double) resumedHandshakes.get() / total : 0;
+    }
+
+    private class TrackingSocketFactory extends SSLSocketFactory
+    {
+        private final SSLSocketFactory factory;
+
+        private TrackingSocketFactory(SSLSocketFactory factory)
+        {
+            this.factory = factory;
+        }
+
+        private Socket track(Socket socket)
+        {
+            if (socket instanceof SSLSocket)
+            {
+                final long startedAt = System.currentTimeMillis();
+
+                ((SSLSocket) socket).addHandshakeCompletedListener(new HandshakeCompletedListener()
+                {
+                    @Override
+                    public void handshakeCompleted(HandshakeCompletedEvent event)
+                    {
+                        TLSContext.this.handshakeCompleted(event.getSession(), startedAt);
+                    }
+                });
+            }
+
+            return socket;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites()
+        {
+            return factory.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites()
+        {
+            return factory.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket() throws IOException
+        {
+            return track(factory.createSocket());
+        }
+
+        @Override
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException
+        {
+            return track(factory.createSocket(socket, host, port, autoClose));
+        }
+
+        @Override
+        public Socket createSocket(Socket socket, InputStream consumed, boolean autoClose) throws IOException
+        {
+            return track(factory.createSocket(socket, consumed, autoClose));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException
+        {
+            return track(factory.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException
+        {
+            return track(factory.createSocket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException
+        {
+            return track(factory.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+            throws IOException
+        {
+            return track(factory.createSocket(address, port, localAddress, localPort));
+        }
+    }
+}
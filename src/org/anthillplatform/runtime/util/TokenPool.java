@@ -0,0 +1,462 @@
+package org.anthillplatform.runtime.util;
+
+import org.anthillplatform.runtime.requests.Request;
+import org.anthillplatform.runtime.services.LoginService;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A pool of access tokens of many (anonymous or dev) accounts at once, for bots and load tests.
+ *
+ * The accounts are authenticated concurrently, but no more than parallelism of them at a time,
+ * and their tokens are kept in the Storage, so the next run only authenticates the ones that
+ * have expired. Once started, the pool revalidates the tokens it holds and replaces the expiring
+ * or rejected ones in the background.
+ */
+public class TokenPool
+{
+    private static final long AUTH_TIMEOUT = 30000;
+    private static final long EXPIRATION_MARGIN = 60000;
+    private static final String STORAGE_PREFIX = "token-pool:";
+
+    public interface FillCallback
+    {
+        /**
+         * @param ready how many accounts have got a valid token
+         * @param failed how many accounts have failed to authenticate
+         */
+        void complete(TokenPool pool, int ready, int failed);
+    }
+
+    private static class Entry
+    {
+        private final String username;
+        private final String password;
+        private LoginService.AccessToken token;
+        private boolean authenticating;
+        private boolean leased;
+        private boolean failed;
+
+        private Entry(String username, String password)
+        {
+            this.username = username;
+            this.password = password;
+        }
+    }
+
+    private final LoginService loginService;
+    private final Storage storage;
+    private final String credentialType;
+    private final String gamespace;
+    private final LoginService.Scopes scopes;
+    private final int parallelism;
+
+    private final List<Entry> entries;
+    private final ArrayDeque<Entry> pending;
+    private final ArrayDeque<Entry> available;
+    private final Map<LoginService.AccessToken, Entry> leased;
+    private final List<FillCallback> fillCallbacks;
+    private int inFlight;
+    private boolean storageDirty;
+    private long maintenanceInterval;
+    private HashedWheelTimer.Timeout maintenance;
+
+    /**
+     * @param credentialType "anonymous" or "dev"
+     * @param storage where to keep the tokens between runs, may be null
+     * @param parallelism how many accounts may be authenticating at the same time
+     */
+    public TokenPool(LoginService loginService, Storage storage, String credentialType, String gamespace,
+                     LoginService.Scopes scopes, int parallelism)
+    {
+        this.loginService = loginService;
+        this.storage = storage;
+        this.credentialType = credentialType;
+        this.gamespace = gamespace;
+        this.scopes = scopes;
+        this.parallelism = Math.max(parallelism, 1);
+
+        this.entries = new ArrayList<Entry>();
+        this.pending = new ArrayDeque<Entry>();
+        this.available = new ArrayDeque<Entry>();
+        this.leased = new IdentityHashMap<LoginService.AccessToken, Entry>();
+        this.fillCallbacks = new ArrayList<FillCallback>();
+    }
+
+    /**
+     * Adds an account to the pool, picking up its stored token if it's still valid
+     */
+    public synchronized void add(String username, String password)
+    {
+        Entry entry = new Entry(username, password);
+
+        if (storage != null)
+        {
+            String raw = storage.get(getStorageKey(entry));
+
+            if (raw != null)
+            {
+                LoginService.AccessToken token = loginService.newAccessToken(raw);
+
+                if (isValid(token))
+                {
+                    entry.token = token;
+                    available.add(entry);
+                }
+            }
+        }
+
+        entries.add(entry);
+    }
+
+    /**
+     * Authenticates every account that has no valid token yet
+     */
+    public void fill(FillCallback callback)
+    {
+        synchronized (this)
+        {
+            if (callback != null)
+            {
+                fillCallbacks.add(callback);
+            }
+
+            for (Entry entry : entries)
+            {
+                if (!entry.authenticating && !entry.leased && entry.token == null)
+                {
+                    entry.authenticating = true;
+                    entry.failed = false;
+                    pending.add(entry);
+                }
+            }
+        }
+
+        proceed();
+    }
+
+    /**
+     * Hands out a valid token of an account nobody else has got, until it's released
+     *
+     * @return null if there is no such token at the moment
+     */
+    public LoginService.AccessToken acquire()
+    {
+        boolean refill = false;
+        LoginService.AccessToken result = null;
+
+        synchronized (this)
+        {
+            Entry entry;
+
+            while ((entry = available.poll()) != null)
+            {
+                if (entry.token != null && isValid(entry.token))
+                {
+                    entry.leased = true;
+                    leased.put(entry.token, entry);
+                    result = entry.token;
+                    break;
+                }
+
+                entry.token = null;
+                refill = true;
+            }
+        }
+
+        if (refill)
+        {
+            fill(null);
+        }
+
+        return result;
+    }
+
+    public synchronized void release(LoginService.AccessToken token)
+    {
+        Entry entry = leased.remove(token);
+
+        if (entry == null)
+            return;
+
+        entry.leased = false;
+
+        if (entry.token != null)
+        {
+            available.add(entry);
+        }
+    }
+
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+
+    /**
+     * @return how many tokens can be acquired right now
+     */
+    public synchronized int getAvailable()
+    {
+        return available.size();
+    }
+
+    /**
+     * Revalidates the tokens every interval milliseconds, and authenticates again the accounts
+     * which tokens are about to expire or have been rejected
+     */
+    public synchronized void start(long interval)
+    {
+        stop();
+
+        this.maintenanceInterval = interval;
+        scheduleMaintenance();
+    }
+
+    public synchronized void stop()
+    {
+        if (maintenance != null)
+        {
+            maintenance.cancel();
+            maintenance = null;
+        }
+
+        maintenanceInterval = 0;
+    }
+
+    private void scheduleMaintenance()
+    {
+        maintenance = HashedWheelTimer.getShared().newTimeout(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                maintain();
+            }
+        }, maintenanceInterval, TimeUnit.MILLISECONDS);
+    }
+
+    private void maintain()
+    {
+        List<Entry> toValidate = new ArrayList<Entry>();
+
+        synchronized (this)
+        {
+            if (maintenanceInterval <= 0)
+                return;
+
+            for (Entry entry : available)
+            {
+                if (!isValid(entry.token))
+                {
+                    entry.token = null;
+                }
+                else
+                {
+                    toValidate.add(entry);
+                }
+            }
+
+            removeUnavailable();
+            scheduleMaintenance();
+        }
+
+        for (final Entry entry : toValidate)
+        {
+            final LoginService.AccessToken token = entry.token;
+
+            if (token == null)
+                continue;
+
+            loginService.validateAccessToken(token, new LoginService.ValidationCallback()
+            {
+                @Override
+                public void complete(LoginService service, Request request, Request.Result result,
+                                     String account, String credential, LoginService.Scopes scopes)
+                {
+                    if (result == Request.Result.forbidden || result == Request.Result.gone)
+                    {
+                        rejected(entry, token);
+                    }
+                }
+            });
+        }
+
+        fill(null);
+    }
+
+    private void rejected(Entry entry, LoginService.AccessToken token)
+    {
+        synchronized (this)
+        {
+            if (entry.token != token || entry.leased)
+                return;
+
+            entry.token = null;
+            removeUnavailable();
+        }
+
+        fill(null);
+    }
+
+    private void removeUnavailable()
+    {
+        List<Entry> keep = new ArrayList<Entry>(available.size());
+
+        for (Entry entry : available)
+        {
+            if (entry.token != null)
+            {
+                keep.add(entry);
+            }
+        }
+
+        available.clear();
+        available.addAll(keep);
+    }
+
+    private void proceed()
+    {
+        List<Entry> toAuthenticate = new ArrayList<Entry>();
+
+        synchronized (this)
+        {
+            while (inFlight < parallelism && !pending.isEmpty())
+            {
+                toAuthenticate.add(pending.poll());
+                inFlight++;
+            }
+        }
+
+        for (Entry entry : toAuthenticate)
+        {
+            authenticate(entry);
+        }
+
+        completeFill();
+    }
+
+    private void authenticate(final Entry entry)
+    {
+        final AtomicBoolean done = new AtomicBoolean();
+
+        // the authentication may never complete (if the account needs to be merged, for example)
+        final HashedWheelTimer.Timeout timeout = HashedWheelTimer.getShared().newTimeout(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (done.compareAndSet(false, true))
+                {
+                    authenticated(entry, null);
+                }
+            }
+        }, AUTH_TIMEOUT, TimeUnit.MILLISECONDS);
+
+        Request.Fields other = new Request.Fields();
+        other.put("username", entry.username);
+        other.put("key", entry.password);
+
+        loginService.authenticate(credentialType, gamespace, scopes, other,
+            new LoginService.AuthenticationCallback()
+        {
+            @Override
+            public void complete(LoginService service, Request request, Request.Result result,
+                                 LoginService.AccessToken accessToken, String account, String credential,
+                                 LoginService.Scopes scopes)
+            {
+                if (!done.compareAndSet(false, true))
+                    return;
+
+                timeout.cancel();
+                authenticated(entry, result == Request.Result.success ? accessToken : null);
+            }
+        }, null);
+    }
+
+    private void authenticated(Entry entry, LoginService.AccessToken token)
+    {
+        synchronized (this)
+        {
+            inFlight--;
+            entry.authenticating = false;
+
+            if (token != null)
+            {
+                entry.token = token;
+                available.add(entry);
+
+                if (storage != null)
+                {
+                    storage.set(getStorageKey(entry), token.get());
+                    storageDirty = true;
+                }
+            }
+            else
+            {
+                entry.failed = true;
+            }
+        }
+
+        proceed();
+    }
+
+    private void completeFill()
+    {
+        List<FillCallback> callbacks;
+        int ready = 0;
+        int failed = 0;
+
+        synchronized (this)
+        {
+            if (inFlight > 0 || !pending.isEmpty())
+                return;
+
+            // saved once for the whole fill, not for every account
+            if (storageDirty)
+            {
+                storageDirty = false;
+                storage.save();
+            }
+
+            if (fillCallbacks.isEmpty())
+                return;
+
+            callbacks = new ArrayList<FillCallback>(fillCallbacks);
+            fillCallbacks.clear();
+
+            for (Entry entry : entries)
+            {
+                if (entry.token != null)
+                {
+                    ready++;
+                }
+                else if (entry.failed)
+                {
+                    failed++;
+                }
+            }
+        }
+
+        for (FillCallback callback : callbacks)
+        {
+            callback.complete(this, ready, failed);
+        }
+    }
+
+    private boolean isValid(LoginService.AccessToken token)
+    {
+        long expiresAt = loginService.getExpiration(token);
+        return expiresAt == 0 || expiresAt > System.currentTimeMillis() + EXPIRATION_MARGIN;
+    }
+
+    private String getStorageKey(Entry entry)
+    {
+        return STORAGE_PREFIX + credentialType + ":" + gamespace + ":" + entry.username;
+    }
+}
@@ -0,0 +1,686 @@
+package org.anthillplatform.runtime.util;
+
+import org.java_websocket.SSLSocketChannel2;
+import org.java_websocket.SocketChannelIOHelper;
+import org.java_websocket.WebSocketImpl;
+import org.java_websocket.WrappedByteChannel;
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.handshake.HandshakeImpl1Client;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the websocket connections on a few NIO selector threads, instead of the two threads
+ * per connection WebSocketClient spawns, so a single process can hold thousands of sessions.
+ *
+ * To use it, set WebSocketOptions.engine (one engine can be shared by any number of sessions).
+ * The socket factory, the proxy and the custom headers of WebSocketClient are not supported,
+ * and a client cannot be reconnected with WebSocketClient.reconnect (the sessions create a new one).
+ */
+public class WebSocketEngine
+{
+    // the library's own writes (pongs, close replies) do not wake the selector up, so they are
+    // picked up on a regular scan at most this late
+    private static final long SCAN_INTERVAL = 50;
+
+    private static WebSocketEngine shared;
+
+    private final Loop[] loops;
+    private final AtomicInteger next;
+    private final ExecutorService executor;
+    private volatile TLSContext tlsContext;
+
+    private static class Connection
+    {
+        private final WebSocketClient client;
+        private final WebSocketImpl ws;
+        private final Loop loop;
+        private SocketChannel socketChannel;
+        private ByteChannel channel;
+        private SelectionKey key;
+        private SSLEngine sslEngine;
+        private long handshakeStartedAt;
+        private boolean handshakeCompleted;
+
+        private Connection(WebSocketClient client, Loop loop)
+        {
+            this.client = client;
+            this.ws = ((WebSocketImpl) client.getConnection());
+            this.loop = loop;
+        }
+
+        private boolean hasOutput()
+        {
+            return !ws.outQueue.isEmpty() ||
+                (channel instanceof WrappedByteChannel && ((WrappedByteChannel) channel).isNeedWrite());
+        }
+    }
+
+    public WebSocketEngine(int threads)
+    {
+        this.loops = new Loop[Math.max(threads, 1)];
+        this.next = new AtomicInteger();
+
+        // takes the blocking parts off the selector threads: the name resolution and the TLS handshake tasks,
+        // bounded so a burst of connections queues up instead of starting a thread each
+        int workers = loops.length * 2;
+
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+        {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "WebSocketEngine-worker-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        executor.allowCoreThreadTimeOut(true);
+        this.executor = executor;
+
+        for (int i = 0; i < loops.length; i++)
+        {
+            try
+            {
+                loops[i] = new Loop(i);
+            }
+            catch (IOException e)
+            {
+                throw new RuntimeException(e);
+            }
+
+            loops[i].start();
+        }
+    }
+
+    /**
+     * @return an engine with a selector per available processor, up to four
+     */
+    public static synchronized WebSocketEngine getShared()
+    {
+        if (shared == null)
+        {
+            shared = new WebSocketEngine(Math.min(Runtime.getRuntime().availableProcessors(), 4));
+        }
+
+        return shared;
+    }
+
+    /**
+     * The context for the wss connections, TLSContext.getShared if not set
+     */
+    public void setTLSContext(TLSContext tlsContext)
+    {
+        this.tlsContext = tlsContext;
+    }
+
+    private TLSContext getTLSContext()
+    {
+        TLSContext context = this.tlsContext;
+        return context != null ? context : TLSContext.getShared();
+    }
+
+    /**
+     * Starts connecting the client, what WebSocketClient.connect would do
+     */
+    public void connect(final WebSocketClient client)
+    {
+        final Loop loop = loops[Math.abs(next.getAndIncrement() % loops.length)];
+        final Connection connection = new Connection(client, loop);
+
+        executor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                final InetSocketAddress address;
+
+                try
+                {
+                    URI uri = client.getURI();
+                    address = new InetSocketAddress(uri.getHost(), getPort(uri));
+
+                    if (address.isUnresolved())
+                        throw new IOException("Cannot resolve " + uri.getHost());
+                }
+                catch (Exception e)
+                {
+                    failed(connection, e);
+                    return;
+                }
+
+                loop.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        loop.open(connection, address);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Lets the engine know the client has something to write
+     */
+    public void flush(WebSocketClient client)
+    {
+        WebSocketImpl ws = ((WebSocketImpl) client.getConnection());
+        SelectionKey key = ws.getSelectionKey();
+
+        if (key == null)
+            return;
+
+        Connection connection = ((Connection) key.attachment());
+
+        if (connection != null)
+        {
+            connection.loop.demand(connection);
+        }
+    }
+
+    public void stop()
+    {
+        for (Loop loop : loops)
+        {
+            loop.interrupt();
+        }
+
+        executor.shutdown();
+    }
+
+    private static int getPort(URI uri)
+    {
+        int port = uri.getPort();
+
+        if (port != -1)
+            return port;
+
+        return "wss".equals(uri.getScheme()) ? WebSocketImpl.DEFAULT_WSS_PORT : WebSocketImpl.DEFAULT_PORT;
+    }
+
+    private static void failed(Connection connection, Exception e)
+    {
+        try
+        {
+            connection.client.onWebsocketError(connection.ws, e);
+        }
+        catch (RuntimeException error)
+        {
+            error.printStackTrace();
+        }
+
+        connection.ws.closeConnection(CloseFrame.NEVER_CONNECTED, e.getMessage());
+    }
+
+    /**
+     * Unlike its parent, keeps the session valid on close, so the next connection can resume it
+     */
+    private static class ResumableSSLSocketChannel extends SSLSocketChannel2
+    {
+        private ResumableSSLSocketChannel(SocketChannel channel, SSLEngine sslEngine, ExecutorService executor,
+                                          SelectionKey key) throws IOException
+        {
+            super(channel, sslEngine, executor, key);
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            sslEngine.closeOutbound();
+
+            try
+            {
+                if (socketChannel.isOpen())
+                {
+                    // send the close_notify
+                    outCrypt.clear();
+                    sslEngine.wrap(emptybuffer, outCrypt);
+                    outCrypt.flip();
+                    socketChannel.write(outCrypt);
+                }
+            }
+            finally
+            {
+                socketChannel.close();
+            }
+        }
+    }
+
+    private class Loop extends Thread
+    {
+        private final Selector selector;
+        private final Queue<Runnable> tasks;
+        private final Queue<Connection> demanded;
+        private final ByteBuffer buffer;
+        private long lastScan;
+
+        private Loop(int index) throws IOException
+        {
+            super("WebSocketEngine-selector-" + index);
+            setDaemon(true);
+
+            this.selector = Selector.open();
+            this.tasks = new ConcurrentLinkedQueue<Runnable>();
+            this.demanded = new ConcurrentLinkedQueue<Connection>();
+            this.buffer = ByteBuffer.allocate(WebSocketImpl.RCVBUF);
+        }
+
+        private void execute(Runnable task)
+        {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        private void demand(Connection connection)
+        {
+            demanded.add(connection);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                while (!isInterrupted())
+                {
+                    selector.select(SCAN_INTERVAL);
+
+                    Runnable task;
+
+                    while ((task = tasks.poll()) != null)
+                    {
+                        try
+                        {
+                            task.run();
+                        }
+                        catch (RuntimeException e)
+                        {
+                            // the tasks take care of their connections, but the loop has to go on anyway
+                            e.printStackTrace();
+                        }
+                    }
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+
+                    while (it.hasNext())
+                    {
+                        SelectionKey key = it.next();
+                        it.remove();
+
+                        try
+                        {
+                            process(key);
+                        }
+                        catch (RuntimeException e)
+                        {
+                            // thrown by a listener while the connection was failing
+                            dropped(((Connection) key.attachment()), e);
+                        }
+                    }
+
+                    Connection connection;
+
+                    while ((connection = demanded.poll()) != null)
+                    {
+                        refresh(connection);
+                    }
+
+                    long now = System.currentTimeMillis();
+
+                    if (now - lastScan >= SCAN_INTERVAL)
+                    {
+                        lastScan = now;
+
+                        for (SelectionKey key : selector.keys())
+                        {
+                            refresh(((Connection) key.attachment()));
+                        }
+                    }
+                }
+            }
+            catch (ClosedSelectorException e)
+            {
+                // stopped
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+            finally
+            {
+                for (SelectionKey key : selector.keys())
+                {
+                    try
+                    {
+                        ((Connection) key.attachment()).ws.closeConnection(CloseFrame.ABNORMAL_CLOSE, "Engine stopped");
+                    }
+                    catch (RuntimeException e)
+                    {
+                        e.printStackTrace();
+                    }
+                }
+
+                try
+                {
+                    selector.close();
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void open(Connection connection, InetSocketAddress address)
+        {
+            try
+            {
+                SocketChannel channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(connection.client.isTcpNoDelay());
+
+                connection.socketChannel = channel;
+                connection.key = channel.register(selector, SelectionKey.OP_CONNECT, connection);
+
+                if (channel.connect(address))
+                {
+                    connected(connection);
+                }
+            }
+            catch (Exception e)
+            {
+                if (connection.socketChannel != null)
+                {
+                    try
+                    {
+                        connection.socketChannel.close();
+                    }
+                    catch (IOException ignored)
+                    {
+                        //
+                    }
+                }
+
+                failed(connection, e);
+            }
+        }
+
+        private void connected(Connection connection) throws Exception
+        {
+            URI uri = connection.client.getURI();
+
+            if ("wss".equals(uri.getScheme()))
+            {
+                // created for the host and port, so the engine can resume a cached session
+                SSLEngine sslEngine = getTLSContext().getContext().createSSLEngine(uri.getHost(), getPort(uri));
+                sslEngine.setUseClientMode(true);
+
+                SSLParameters parameters = sslEngine.getSSLParameters();
+                parameters.setEndpointIdentificationAlgorithm("HTTPS");
+                sslEngine.setSSLParameters(parameters);
+
+                connection.sslEngine = sslEngine;
+                connection.handshakeStartedAt = System.currentTimeMillis();
+                connection.channel = new ResumableSSLSocketChannel(connection.socketChannel, sslEngine, executor, connection.key);
+            }
+            else
+            {
+                connection.channel = connection.socketChannel;
+            }
+
+            connection.ws.setChannel(connection.channel);
+            connection.ws.setSelectionKey(connection.key);
+            connection.key.interestOps(SelectionKey.OP_READ);
+
+            String path = uri.getRawPath();
+            String query = uri.getRawQuery();
+
+            if (path == null || path.length() == 0)
+                path = "/";
+
+            if (query != null)
+                path += '?' + query;
+
+            int port = getPort(uri);
+
+            HandshakeImpl1Client handshake = new HandshakeImpl1Client();
+            handshake.setResourceDescriptor(path);
+            handshake.put("Host", uri.getHost() +
+                (port != WebSocketImpl.DEFAULT_PORT && port != WebSocketImpl.DEFAULT_WSS_PORT ? ":" + port : ""));
+
+            connection.ws.startHandshake(handshake);
+            updateInterest(connection);
+        }
+
+        private void process(SelectionKey key)
+        {
+            Connection connection = ((Connection) key.attachment());
+
+            try
+            {
+                if (!key.isValid())
+                    return;
+
+                if (key.isConnectable())
+                {
+                    try
+                    {
+                        connection.socketChannel.finishConnect();
+                    }
+                    catch (IOException e)
+                    {
+                        key.cancel();
+                        connection.socketChannel.close();
+                        failed(connection, e);
+                        return;
+                    }
+
+                    connected(connection);
+                    return;
+                }
+
+                if (key.isReadable())
+                {
+                    read(connection);
+                }
+
+                if (key.isValid() && key.isWritable())
+                {
+                    SocketChannelIOHelper.batch(connection.ws, connection.channel);
+
+                    if (!connection.ws.hasBufferedData() && connection.client instanceof WebSocketJsonRPC)
+                    {
+                        ((WebSocketJsonRPC) connection.client).outputDrained();
+                    }
+
+                    // records read ahead of the end of the handshake, nothing would wake the selector up for them
+                    if (key.isValid() && !isHandshaking(connection) && connection.channel instanceof WrappedByteChannel &&
+                        ((WrappedByteChannel) connection.channel).isNeedRead())
+                    {
+                        read(connection);
+                    }
+                }
+
+                updateInterest(connection);
+            }
+            catch (IOException e)
+            {
+                if (e instanceof SSLException)
+                {
+                    connection.client.onWebsocketError(connection.ws, e);
+                }
+
+                connection.ws.eot();
+            }
+            catch (RuntimeException e)
+            {
+                // a cancelled key, or a listener that has thrown
+                dropped(connection, e);
+            }
+            catch (Exception e)
+            {
+                failed(connection, e);
+            }
+        }
+
+        private void read(Connection connection) throws IOException
+        {
+            SocketChannelIOHelper.read(buffer, connection.ws, connection.channel);
+
+            if (buffer.hasRemaining())
+            {
+                connection.ws.decode(buffer);
+            }
+
+            if (connection.sslEngine != null)
+            {
+                if (!connection.handshakeCompleted && connection.ws.isOpen())
+                {
+                    // the websocket handshake is over, so the TLS one is as well
+                    connection.handshakeCompleted = true;
+                    getTLSContext().handshakeCompleted(connection.sslEngine.getSession(), connection.handshakeStartedAt);
+                }
+
+                // once the peer's close_notify is in, the TLS channel never reports the end of the stream
+                if (connection.sslEngine.isInboundDone())
+                {
+                    connection.ws.eot();
+                    return;
+                }
+            }
+
+            if (!(connection.channel instanceof WrappedByteChannel))
+                return;
+
+            WrappedByteChannel wrapped = ((WrappedByteChannel) connection.channel);
+
+            // the TLS channel may have decrypted more than fits into the buffer
+            while (!connection.ws.isClosed() && wrapped.isNeedRead() && !isHandshaking(connection))
+            {
+                boolean more = SocketChannelIOHelper.readMore(buffer, connection.ws, wrapped);
+
+                if (buffer.hasRemaining())
+                {
+                    connection.ws.decode(buffer);
+                }
+
+                if (!more)
+                    break;
+            }
+        }
+
+        /**
+         * updateInterest for the connections other than the one being processed, so an exception
+         * fails just that connection
+         */
+        private void refresh(Connection connection)
+        {
+            try
+            {
+                updateInterest(connection);
+            }
+            catch (CancelledKeyException e)
+            {
+                // closed from another thread in the meantime, this just makes sure of it
+                connection.ws.closeConnection(CloseFrame.ABNORMAL_CLOSE, "Connection key cancelled");
+            }
+            catch (RuntimeException e)
+            {
+                dropped(connection, e);
+            }
+        }
+
+        /**
+         * Closes the connection an unexpected exception has come out of, so the others on the loop
+         * are not affected
+         */
+        private void dropped(Connection connection, RuntimeException e)
+        {
+            if (connection.key != null)
+            {
+                connection.key.cancel();
+            }
+
+            try
+            {
+                connection.client.onWebsocketError(connection.ws, e);
+            }
+            catch (RuntimeException error)
+            {
+                error.printStackTrace();
+            }
+
+            try
+            {
+                connection.ws.closeConnection(CloseFrame.ABNORMAL_CLOSE, String.valueOf(e.getMessage()));
+            }
+            catch (RuntimeException error)
+            {
+                error.printStackTrace();
+            }
+        }
+
+        /**
+         * The TLS channel moves the handshake on with the writes only (OP_WRITE is kept while it is not
+         * over), reading what is left of it just spins. With TLS 1.3 the handshake may be still going when
+         * the first records have been read.
+         */
+        private boolean isHandshaking(Connection connection)
+        {
+            if (connection.sslEngine == null)
+                return false;
+
+            SSLEngineResult.HandshakeStatus status = connection.sslEngine.getHandshakeStatus();
+
+            return status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING &&
+                status != SSLEngineResult.HandshakeStatus.FINISHED;
+        }
+
+        private void updateInterest(Connection connection)
+        {
+            SelectionKey key = connection.key;
+
+            if (key == null || !key.isValid() || connection.channel == null)
+                return;
+
+            int ops = connection.hasOutput() ?
+                SelectionKey.OP_READ | SelectionKey.OP_WRITE :
+                SelectionKey.OP_READ;
+
+            if (key.interestOps() != ops)
+            {
+                key.interestOps(ops);
+            }
+        }
+    }
+}
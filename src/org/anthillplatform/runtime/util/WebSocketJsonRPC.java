@@ -1,24 +1,178 @@
 package org.anthillplatform.runtime.util;
 
+import org.java_websocket.WebSocket;
 import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
+import org.java_websocket.extensions.IExtension;
+import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.framing.Framedata;
+import org.java_websocket.framing.PingFrame;
+import org.java_websocket.handshake.ServerHandshake;
+import org.java_websocket.protocols.IProtocol;
+import org.java_websocket.protocols.Protocol;
 import org.json.JSONObject;
 
+import javax.net.SocketFactory;
+import java.net.Proxy;
+import java.net.Socket;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 public abstract class WebSocketJsonRPC extends WebSocketClient
 {
+    public static final String BINARY_PROTOCOL = "jsonrpc-msgpack";
+
+    // what WebSocketClient's own connection lost check does by default, for the engine sessions
+    private static final long ENGINE_HEARTBEAT_INTERVAL = 60000;
+    private static final long ENGINE_HEARTBEAT_TIMEOUT = 90000;
+
     private JsonRPC rpc;
+    private SendQueue sendQueue;
+    private Heartbeat heartbeat;
+    private final WebSocketEngine engine;
+    private volatile LatencyListener latencyListener;
+    private SocketFactory socketFactory;
+    private Proxy proxy;
+    private boolean socketSet;
+
+    // true once the connection lets the send queue know it has written its buffered data
+    private volatile boolean drainNotified;
+
+    public interface WritabilityListener
+    {
+        /**
+         * Called once the send queue grows over WebSocketOptions.sendQueueHighWatermark (writable is false),
+         * and once it drains down to WebSocketOptions.sendQueueLowWatermark again
+         */
+        void writabilityChanged(boolean writable);
+    }
+
+    public interface LatencyListener
+    {
+        /**
+         * Called upon every pong received (see WebSocketOptions.heartbeatInterval), with the round trip
+         * time of it and the smoothed estimate, in milliseconds
+         */
+        void latencyChanged(long roundTripTime, long smoothedRoundTripTime);
+    }
 
     public WebSocketJsonRPC(URI serverURI)
     {
-        super(serverURI);
+        this(serverURI, new WebSocketOptions());
+    }
+
+    public WebSocketJsonRPC(URI serverURI, WebSocketOptions options)
+    {
+        super(serverURI, createDraft(options));
+
+        this.engine = options.engine;
+        this.proxy = Proxy.NO_PROXY;
+
+        sendQueue = new SendQueue(options)
+        {
+            @Override
+            protected boolean isReady()
+            {
+                // without the notification nothing would flush the queue later, so it does not wait
+                return isOpen() && !(drainNotified && getConnection().hasBufferedData());
+            }
+
+            @Override
+            protected boolean isBinary()
+            {
+                return WebSocketJsonRPC.this.isBinary();
+            }
+
+            @Override
+            protected void write(List<Object> encoded)
+            {
+                writeFrames(encoded);
+            }
+
+            @Override
+            protected void superseded(int id, int byId)
+            {
+                rpc.supersedeRequest(id, byId);
+            }
+        };
+
+        long heartbeatInterval = options.heartbeatInterval;
+        long heartbeatTimeout = options.heartbeatTimeout;
+
+        if (engine != null && heartbeatInterval <= 0)
+        {
+            // WebSocketClient's check would start a thread per session, the heartbeat runs on the shared timer
+            heartbeatInterval = ENGINE_HEARTBEAT_INTERVAL;
+            heartbeatTimeout = ENGINE_HEARTBEAT_TIMEOUT;
+        }
+
+        heartbeat = new Heartbeat(heartbeatInterval, heartbeatTimeout)
+        {
+            @Override
+            protected boolean isOpen()
+            {
+                return WebSocketJsonRPC.this.isOpen();
+            }
+
+            @Override
+            protected boolean isClosed()
+            {
+                return WebSocketJsonRPC.this.isClosed();
+            }
+
+            @Override
+            protected void ping(ByteBuffer payload)
+            {
+                PingFrame frame = new PingFrame();
+                frame.setPayload(payload);
+
+                try
+                {
+                    sendFrame(frame);
+                }
+                catch (WebsocketNotConnectedException e)
+                {
+                    // the next tick stops the heartbeat
+                }
+
+                flushEngine();
+            }
+
+            @Override
+            protected void dead()
+            {
+                closeConnection(CloseFrame.ABNORMAL_CLOSE, "No heartbeat response");
+            }
+
+            @Override
+            protected void roundTripTimeChanged(long roundTripTime, long smoothedRoundTripTime)
+            {
+                LatencyListener listener = latencyListener;
+
+                if (listener != null)
+                {
+                    listener.latencyChanged(roundTripTime, smoothedRoundTripTime);
+                }
+            }
+        };
+
+        if (heartbeat.isEnabled())
+        {
+            // the heartbeat detects the connection lost already (always on with the engine)
+            setConnectionLostTimeout(0);
+        }
 
         rpc = new JsonRPC()
         {
             @Override
-            protected void send(String data)
+            protected boolean offer(Object message)
             {
-                WebSocketJsonRPC.this.send(data);
+                return sendQueue.offer(message);
             }
 
             @Override
@@ -29,32 +183,324 @@ public abstract class WebSocketJsonRPC extends WebSocketClient
         };
     }
 
+    /**
+     * Hands all of the frames over to the connection at once. Called by the send queue only,
+     * so the frames are encoded (and compressed) in the same order they're written.
+     */
+    private void writeFrames(List<Object> encoded)
+    {
+        Draft draft = getConnection().getDraft();
+        List<Framedata> frames = new ArrayList<Framedata>();
+
+        for (Object message : encoded)
+        {
+            if (message instanceof byte[])
+            {
+                frames.addAll(draft.createFrames(ByteBuffer.wrap((byte[]) message), true));
+            }
+            else
+            {
+                frames.addAll(draft.createFrames(((String) message), true));
+            }
+        }
+
+        try
+        {
+            sendFrame(frames);
+        }
+        catch (WebsocketNotConnectedException e)
+        {
+            // the requests get failed once onClose is called
+        }
+
+        flushEngine();
+    }
+
+    private void flushEngine()
+    {
+        if (engine != null)
+        {
+            engine.flush(this);
+        }
+    }
+
+    @Override
+    public void connect()
+    {
+        if (engine != null)
+        {
+            drainNotified = true;
+            engine.connect(this);
+        }
+        else
+        {
+            if (!socketSet)
+            {
+                applySocketFactory();
+            }
+
+            super.connect();
+        }
+
+        heartbeat.start();
+    }
+
+    /**
+     * WebSocketClient layers TLS with the default context, the shared TLSContext is used for wss instead.
+     * The socket is wrapped into a NotifyingSocket only if the send queue waits for the connection to drain,
+     * or to layer TLS over a proxied socket.
+     */
+    private void applySocketFactory()
+    {
+        boolean tls = "wss".equals(getURI().getScheme());
+        SocketFactory factory = socketFactory;
+
+        // WebSocketClient ignores the proxy once there is a factory
+        if (factory == null && tls && Proxy.NO_PROXY.equals(proxy))
+        {
+            factory = TLSContext.getShared().getSocketFactory();
+        }
+
+        if (sendQueue.needsDrainNotification() || (factory == null && tls))
+        {
+            String tlsHost = tls ? getURI().getHost() : null;
+
+            super.setSocketFactory(NotifyingSocket.createFactory(factory, proxy, tlsHost, new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    outputDrained();
+                }
+            }));
+
+            drainNotified = true;
+        }
+        else if (factory != null)
+        {
+            super.setSocketFactory(factory);
+        }
+    }
+
+    /**
+     * Called by the connection once it has written out what it has had buffered
+     */
+    void outputDrained()
+    {
+        if (!getConnection().hasBufferedData())
+        {
+            sendQueue.flush();
+        }
+    }
+
+    @Override
+    public void setSocketFactory(SocketFactory socketFactory)
+    {
+        // applied on connect, see NotifyingSocket
+        this.socketFactory = socketFactory;
+    }
+
+    @Override
+    public void setProxy(Proxy proxy)
+    {
+        this.proxy = proxy;
+        super.setProxy(proxy);
+    }
+
+    @Override
+    public void setSocket(Socket socket)
+    {
+        // the socket is used as it is, the send queue cannot wait for it to drain then
+        socketSet = true;
+        super.setSocket(socket);
+    }
+
+    /**
+     * Make sure to call super.onOpen once overridden, so the messages sent before the connection has been
+     * open go out
+     */
+    @Override
+    public void onOpen(ServerHandshake handshake)
+    {
+        sendQueue.flush();
+    }
+
+    @Override
+    public void close()
+    {
+        if (engine != null)
+        {
+            // WebSocketClient.close only works with its own threads running
+            getConnection().close(CloseFrame.NORMAL);
+            flushEngine();
+        }
+        else
+        {
+            super.close();
+        }
+    }
+
+    @Override
+    public void close(int code, String message)
+    {
+        super.close(code, message);
+        flushEngine();
+    }
+
+    @Override
+    public void onWebsocketPong(WebSocket conn, Framedata f)
+    {
+        heartbeat.pong(f.getPayloadData());
+    }
+
+    /**
+     * @return the smoothed round trip time in milliseconds, or -1 if not measured yet
+     *   (or the heartbeat is disabled)
+     */
+    public long getRoundTripTime()
+    {
+        return heartbeat.getRoundTripTime();
+    }
+
+    /**
+     * @return the last round trip time measured in milliseconds, or -1 if not measured yet
+     */
+    public long getLastRoundTripTime()
+    {
+        return heartbeat.getLastRoundTripTime();
+    }
+
+    public void setLatencyListener(LatencyListener latencyListener)
+    {
+        this.latencyListener = latencyListener;
+    }
+
+    public boolean isWritable()
+    {
+        return sendQueue.isWritable();
+    }
+
+    /**
+     * Set before connect, so the connection lets the send queue know once it has drained
+     */
+    public void setWritabilityListener(WritabilityListener writabilityListener)
+    {
+        sendQueue.setWritabilityListener(writabilityListener);
+    }
+
+    /**
+     * @return the size of the messages waiting to be sent
+     */
+    public long getQueuedSize()
+    {
+        return sendQueue.getQueuedSize();
+    }
+
+    /**
+     * @return true if the server has accepted the permessage-deflate extension
+     */
+    public boolean isCompressed()
+    {
+        Draft draft = getConnection().getDraft();
+        return draft instanceof Draft_6455 && ((Draft_6455) draft).getExtension() instanceof DeflateExtension;
+    }
+
+    private static Draft createDraft(WebSocketOptions options)
+    {
+        ArrayList<IProtocol> protocols = new ArrayList<IProtocol>();
+
+        if (options.binary)
+        {
+            protocols.add(new Protocol(BINARY_PROTOCOL));
+        }
+
+        // an empty protocol lets the connection through if the server accepts none of the above
+        protocols.add(new Protocol(""));
+
+        List<IExtension> extensions = options.compression ?
+            Collections.<IExtension>singletonList(new DeflateExtension(options)) :
+            Collections.<IExtension>emptyList();
+
+        return new Draft_6455(extensions, protocols);
+    }
+
     protected abstract void onError(int code, String message, String data);
 
+    /**
+     * @return true if the server has accepted the binary (MessagePack) subprotocol
+     */
+    public boolean isBinary()
+    {
+        Draft draft = getConnection().getDraft();
+
+        if (!(draft instanceof Draft_6455))
+            return false;
+
+        IProtocol protocol = ((Draft_6455) draft).getProtocol();
+        return protocol != null && BINARY_PROTOCOL.equals(protocol.getProvidedProtocol());
+    }
+
     @Override
     public void onMessage(String message)
     {
         rpc.received(message);
     }
 
+    @Override
+    public void onMessage(ByteBuffer bytes)
+    {
+        rpc.received(bytes);
+    }
+
+    /**
+     * Make sure to call super.onClose once overridden, so the requests pending get failed
+     */
+    @Override
+    public void onClose(int code, String reason, boolean remote)
+    {
+        heartbeat.stop();
+        sendQueue.clear();
+        rpc.failPendingRequests(JsonRPC.ERROR_CONNECTION_CLOSED, "Connection closed");
+    }
+
+    public void setRequestTimeout(long requestTimeout)
+    {
+        rpc.setRequestTimeout(requestTimeout);
+    }
+
+    public int getPendingRequestsCount()
+    {
+        return rpc.getPendingRequestsCount();
+    }
+
     public void request(String method, JsonRPC.ResponseHandler responseHandler, JSONObject params)
     {
         rpc.request(method, responseHandler, params);
     }
 
+    public void requestWithTimeout(String method, JsonRPC.ResponseHandler responseHandler, long timeout, JSONObject params)
+    {
+        rpc.requestWithTimeout(method, responseHandler, timeout, params);
+    }
+
     public void request(String method, JsonRPC.ResponseHandler responseHandler, Object... params)
     {
         rpc.request(method, responseHandler, params);
     }
 
-    public void rpc(String method, JSONObject params)
+    public boolean rpc(String method, JSONObject params)
+    {
+        return rpc.rpc(method, params);
+    }
+
+    public boolean rpc(String method, Object... params)
     {
-        rpc.rpc(method, params);
+        return rpc.rpc(method, params);
     }
 
-    public void rpc(String method, Object... params)
+    public boolean sendBatch(JsonRPC.Batch batch)
     {
-        rpc.rpc(method, params);
+        return rpc.sendBatch(batch);
     }
 
     public void addHandler(String method, JsonRPC.MethodHandler handler)
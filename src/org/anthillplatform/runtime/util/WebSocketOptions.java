@@ -0,0 +1,136 @@
+package org.anthillplatform.runtime.util;
+
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * Connection options for the websocket sessions (see MessageService and GameService)
+ */
+public class WebSocketOptions
+{
+    /**
+     * Decides which queued message a newer one of the same method supersedes
+     */
+    public interface Superseding
+    {
+        /**
+         * @return a key the messages of the same method supersede each other by,
+         *   or null if this message should not supersede anything
+         */
+        Object key(JSONObject params);
+
+        /**
+         * @return params to send instead of both messages (just the latest ones to drop the queued message)
+         */
+        JSONObject merge(JSONObject queued, JSONObject latest);
+    }
+
+    /**
+     * Offer the binary (MessagePack) subprotocol. Text JSON frames are used anyway if the server
+     * does not accept it.
+     */
+    public boolean binary = false;
+
+    /**
+     * Offer the permessage-deflate extension. Like with the binary protocol, the connection stays
+     * uncompressed if the server does not accept it.
+     */
+    public boolean compression = false;
+
+    /**
+     * Reset the compression context after each message sent, trading the compression ratio for memory
+     */
+    public boolean clientNoContextTakeover = false;
+
+    /**
+     * Ask the server to reset its compression context after each message
+     */
+    public boolean serverNoContextTakeover = false;
+
+    /**
+     * Ask the server to use a smaller LZ77 window (8..15 bits) for its messages
+     */
+    public int serverMaxWindowBits = 15;
+
+    /**
+     * Deflater compression level (0..9)
+     */
+    public int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+    /**
+     * The messages smaller than that (in bytes) are sent uncompressed
+     */
+    public int compressionThreshold = 64;
+
+    /**
+     * The messages waiting to be sent are limited by this amount of characters (bytes in binary mode),
+     * the ones that do not fit are rejected (the requests are failed with JsonRPC.ERROR_SEND_QUEUE_FULL)
+     */
+    public int sendQueueLimit = 1024 * 1024;
+
+    /**
+     * The session becomes not writable once that much is queued, and writable again once the queue
+     * gets down to sendQueueLowWatermark
+     */
+    public int sendQueueHighWatermark = 256 * 1024;
+    public int sendQueueLowWatermark = 64 * 1024;
+
+    /**
+     * Send the calls queued up together as a single JSON-RPC batch frame (up to coalesceLimit in size).
+     * The server has to support batches.
+     */
+    public boolean coalesce = false;
+    public int coalesceLimit = 16 * 1024;
+
+    /**
+     * Per method, a message still in the queue gets replaced (or merged) with the newer one of
+     * the same key. A superseded request gets the response of the one that has replaced it.
+     */
+    public final Map<String, Superseding> superseding = new HashMap<String, Superseding>();
+
+    /**
+     * Connect again once the connection is lost (but not when closed by either side on purpose),
+     * after a jittered exponential delay between reconnectInitialDelay and reconnectMaxDelay
+     * (in milliseconds). Zero reconnectMaxAttempts means no limit.
+     */
+    public boolean reconnect = false;
+    public long reconnectInitialDelay = 500;
+    public long reconnectMaxDelay = 30000;
+    public int reconnectMaxAttempts = 0;
+
+    /**
+     * Once reconnected, a message session fetches up to that many last messages
+     * to deliver the ones missed while disconnected
+     */
+    public int backfillLimit = 100;
+
+    /**
+     * Ping the server every heartbeatInterval milliseconds (zero disables the heartbeat), measuring
+     * the round trip time, and drop the connection as dead once no pong is received for
+     * heartbeatTimeout milliseconds (a dropped connection is reconnected if reconnect is set).
+     * The engine sessions (see engine) ping every minute if the heartbeat is disabled, and drop the
+     * connection after a minute and a half of silence, what WebSocketClient would do on its own thread.
+     */
+    public long heartbeatInterval = 0;
+    public long heartbeatTimeout = 10000;
+
+    /**
+     * Run the connections on the selector threads of that engine instead of a couple of threads
+     * per connection (see WebSocketEngine.getShared)
+     */
+    public WebSocketEngine engine = null;
+
+    /**
+     * Deliver the session events to the listeners with that dispatcher instead of right on the
+     * connection thread (events of a session keep their order, and the ones it is opened or closed with
+     * are never dropped)
+     */
+    public EventDispatcher dispatcher = null;
+
+    public WebSocketOptions()
+    {
+    }
+}
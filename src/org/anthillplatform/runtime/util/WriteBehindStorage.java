@@ -0,0 +1,354 @@
+package org.anthillplatform.runtime.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Wraps a Storage so the disk is never touched on the calling thread (except for the first read of a key):
+ * reads are served from memory, and the changes are written to the wrapped storage in the background,
+ * once save() is called. The changes made to a key in between are coalesced into the last one, and any
+ * number of save() calls made while a batch is being written end up in a single save of the next batch.
+ *
+ * AnthillRuntime.release() closes the storage it has been created with, closing the wrapped one as well
+ * (if Closeable, like FileStorage).
+ */
+public class WriteBehindStorage extends Storage
+{
+    // before a batch that has failed to be written is tried again, in milliseconds
+    private static final long RETRY_DELAY = 1000;
+
+    // stands for a removed key in the maps below
+    private static final String REMOVED = new String("removed");
+
+    private final Storage storage;
+    private final Map<String, String> values;
+    private final Map<String, String> pending;
+    private final Thread writer;
+
+    private long requested;
+    private long taken;
+    private long written;
+    private long requestedAt;
+    private volatile long flushLatency;
+    private boolean closed;
+    private boolean closedFlushed;
+
+    public WriteBehindStorage(Storage storage)
+    {
+        this.storage = storage;
+        this.values = new HashMap<String, String>();
+        this.pending = new LinkedHashMap<String, String>();
+
+        this.writer = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                write();
+            }
+        }, "anthill-storage-writer");
+
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public void set(String key, String value)
+    {
+        if (value == null)
+        {
+            remove(key);
+            return;
+        }
+
+        synchronized (this)
+        {
+            checkOpen();
+
+            values.put(key, value);
+            pending.put(key, value);
+        }
+    }
+
+    @Override
+    public String get(String key)
+    {
+        synchronized (this)
+        {
+            String value = values.get(key);
+
+            if (value != null)
+                return value == REMOVED ? null : value;
+        }
+
+        String value;
+
+        synchronized (storage)
+        {
+            value = storage.get(key);
+        }
+
+        synchronized (this)
+        {
+            // unless it has been changed in the meantime
+            if (!values.containsKey(key))
+            {
+                values.put(key, value != null ? value : REMOVED);
+            }
+
+            String current = values.get(key);
+            return current == REMOVED ? null : current;
+        }
+    }
+
+    @Override
+    public boolean has(String key)
+    {
+        return get(key) != null;
+    }
+
+    @Override
+    public void remove(String key)
+    {
+        synchronized (this)
+        {
+            checkOpen();
+
+            values.put(key, REMOVED);
+            pending.put(key, REMOVED);
+        }
+    }
+
+    /**
+     * Requests the changes to be written, returns right away
+     */
+    @Override
+    public synchronized void save()
+    {
+        // the first save after the last batch has been taken is the one the next batch is late for
+        if (requested == taken)
+        {
+            requestedAt = System.nanoTime();
+        }
+
+        requested++;
+        notifyAll();
+    }
+
+    /**
+     * Writes the changes made so far, and waits for that to finish
+     *
+     * @param timeout how long to wait, in milliseconds
+     * @return false if the changes have not been written in time
+     */
+    public synchronized boolean flush(long timeout)
+    {
+        save();
+
+        long target = requested;
+        long deadline = System.currentTimeMillis() + timeout;
+
+        while (written < target && writer.isAlive())
+        {
+            long wait = deadline - System.currentTimeMillis();
+
+            if (wait <= 0)
+                return false;
+
+            try
+            {
+                wait(wait);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        return written >= target;
+    }
+
+    /**
+     * Flushes the changes, stops the background thread and closes the wrapped storage (if Closeable),
+     * the storage cannot be changed after that. Closing it again just returns the result of the first time.
+     *
+     * @return false if the changes have not been written in time (what is left of them is lost)
+     */
+    public boolean close(long timeout)
+    {
+        synchronized (this)
+        {
+            if (closed)
+                return closedFlushed;
+        }
+
+        boolean flushed = flush(timeout);
+
+        synchronized (this)
+        {
+            closed = true;
+            closedFlushed = flushed;
+            notifyAll();
+        }
+
+        // after the batch being written, if any
+        synchronized (storage)
+        {
+            if (storage instanceof Closeable)
+            {
+                try
+                {
+                    ((Closeable) storage).close();
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        return flushed;
+    }
+
+    private synchronized boolean isClosed()
+    {
+        return closed;
+    }
+
+    private void checkOpen()
+    {
+        if (closed)
+            throw new IllegalStateException("The storage has been closed");
+    }
+
+    /**
+     * @return how many keys have been changed but not yet written
+     */
+    public synchronized int getBacklog()
+    {
+        return pending.size();
+    }
+
+    /**
+     * @return how long it took the last batch to be saved since it was requested, in milliseconds
+     */
+    public double getFlushLatency()
+    {
+        return flushLatency / 1000000.0;
+    }
+
+    public Storage getStorage()
+    {
+        return storage;
+    }
+
+    private void write()
+    {
+        while (true)
+        {
+            Map<String, String> batch;
+            long target;
+            long startedAt;
+
+            synchronized (this)
+            {
+                while (requested == written && !closed)
+                {
+                    try
+                    {
+                        wait();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                }
+
+                // closed once flushed, what the flush has not made in time is not written anymore
+                if (closed || requested == written)
+                    return;
+
+                batch = new LinkedHashMap<String, String>(pending);
+                pending.clear();
+                target = requested;
+                taken = target;
+                startedAt = requestedAt;
+            }
+
+            boolean failed = false;
+
+            try
+            {
+                synchronized (storage)
+                {
+                    // the wrapped storage has been closed since the batch was taken
+                    if (isClosed())
+                        return;
+
+                    for (Map.Entry<String, String> entry : batch.entrySet())
+                    {
+                        if (entry.getValue() == REMOVED)
+                        {
+                            storage.remove(entry.getKey());
+                        }
+                        else
+                        {
+                            storage.set(entry.getKey(), entry.getValue());
+                        }
+                    }
+
+                    storage.save();
+                }
+            }
+            catch (Exception e)
+            {
+                e.printStackTrace();
+                failed = true;
+            }
+
+            synchronized (this)
+            {
+                if (failed)
+                {
+                    // back into the next batch, unless changed again in the meantime
+                    for (Map.Entry<String, String> entry : batch.entrySet())
+                    {
+                        if (!pending.containsKey(entry.getKey()))
+                        {
+                            pending.put(entry.getKey(), entry.getValue());
+                        }
+                    }
+
+                    // not tried again once the storage has been closed
+                    if (closed)
+                        return;
+
+                    long deadline = System.currentTimeMillis() + RETRY_DELAY;
+                    long wait;
+
+                    while (!closed && (wait = deadline - System.currentTimeMillis()) > 0)
+                    {
+                        try
+                        {
+                            wait(wait);
+                        }
+                        catch (InterruptedException e)
+                        {
+                            return;
+                        }
+                    }
+
+                    continue;
+                }
+
+                flushLatency = System.nanoTime() - startedAt;
+                written = target;
+                notifyAll();
+            }
+        }
+    }
+}
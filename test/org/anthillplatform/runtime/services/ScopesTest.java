@@ -0,0 +1,86 @@
+package org.anthillplatform.runtime.services;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ScopesTest
+{
+    @Test
+    public void checksAgainstOtherScopes()
+    {
+        LoginService.Scopes scopes = LoginService.Scopes.FromString("profile,social,game");
+
+        assertTrue(scopes.containsAll(new LoginService.Scopes("profile", "game")));
+        assertFalse(scopes.containsAll(new LoginService.Scopes("profile", "admin")));
+        assertTrue(scopes.containsAll(Arrays.asList("social")));
+
+        assertTrue(scopes.intersects(new LoginService.Scopes("admin", "social")));
+        assertFalse(scopes.intersects(new LoginService.Scopes("admin")));
+    }
+
+    @Test
+    public void isStillAHashSet()
+    {
+        HashSet<String> scopes = new LoginService.Scopes("profile", "social");
+
+        assertEquals(new HashSet<String>(Arrays.asList("profile", "social")), scopes);
+
+        @SuppressWarnings("unchecked")
+        HashSet<String> clone = ((HashSet<String>) scopes.clone());
+        clone.remove("social");
+
+        assertTrue(scopes.contains("social"));
+        assertFalse(((LoginService.Scopes) clone).containsAll(new LoginService.Scopes("social")));
+        assertTrue(((LoginService.Scopes) scopes).containsAll(new LoginService.Scopes("social")));
+    }
+
+    @Test
+    public void removingKeepsTheChecksRight()
+    {
+        LoginService.Scopes scopes = new LoginService.Scopes("profile", "social", "game");
+
+        Iterator<String> iterator = scopes.iterator();
+
+        while (iterator.hasNext())
+        {
+            if (iterator.next().equals("social"))
+            {
+                iterator.remove();
+            }
+        }
+
+        scopes.remove("game");
+
+        assertEquals("profile", scopes.toString());
+        assertFalse(scopes.intersects(new LoginService.Scopes("social", "game")));
+        assertEquals(new LoginService.Scopes("profile"), scopes);
+    }
+
+    @Test
+    public void survivesSerialization() throws Exception
+    {
+        LoginService.Scopes scopes = new LoginService.Scopes("profile", "social");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(scopes);
+        out.close();
+
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        LoginService.Scopes read = ((LoginService.Scopes) in.readObject());
+
+        assertEquals(scopes, read);
+        assertTrue(read.containsAll(new LoginService.Scopes("social")));
+    }
+}
@@ -0,0 +1,38 @@
+package org.anthillplatform.runtime.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BackoffTest
+{
+    @Test
+    public void doublesUpToTheMaximumWithJitter()
+    {
+        Backoff backoff = new Backoff(100, 1000);
+        long[] caps = {100, 200, 400, 800, 1000, 1000, 1000};
+
+        for (long cap : caps)
+        {
+            long delay = backoff.nextDelay();
+            assertTrue(delay + " for " + cap, delay >= cap / 2 && delay <= cap);
+        }
+
+        assertEquals(caps.length, backoff.getAttempts());
+
+        backoff.reset();
+        assertTrue(backoff.nextDelay() <= 100);
+    }
+
+    @Test
+    public void doesNotOverflow()
+    {
+        Backoff backoff = new Backoff(1000, Long.MAX_VALUE);
+
+        for (int i = 0; i < 100; i++)
+        {
+            assertTrue(backoff.nextDelay() > 0);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package org.anthillplatform.runtime.util;
+
+import org.anthillplatform.runtime.requests.Request;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BootstrapTest
+{
+    /**
+     * A stage that completes once told to
+     */
+    private static class ManualStage implements Bootstrap.Stage
+    {
+        private Bootstrap.StageCallback callback;
+
+        @Override
+        public void run(Bootstrap bootstrap, Bootstrap.StageCallback callback)
+        {
+            this.callback = callback;
+        }
+
+        private boolean isStarted()
+        {
+            return callback != null;
+        }
+    }
+
+    private static class Completion implements Bootstrap.BootstrapCallback
+    {
+        private Request.Result result;
+        private Bootstrap.Report report;
+
+        @Override
+        public void complete(Bootstrap bootstrap, Request.Result result, Bootstrap.Report report)
+        {
+            this.result = result;
+            this.report = report;
+        }
+    }
+
+    private static Map<String, Bootstrap.Timing> timings(Bootstrap.Report report)
+    {
+        Map<String, Bootstrap.Timing> timings = new HashMap<String, Bootstrap.Timing>();
+
+        for (Bootstrap.Timing timing : report.stages)
+        {
+            timings.put(timing.name, timing);
+        }
+
+        return timings;
+    }
+
+    @Test
+    public void independentStagesRunTogether()
+    {
+        ManualStage environment = new ManualStage();
+        ManualStage login = new ManualStage();
+        ManualStage profile = new ManualStage();
+        ManualStage messages = new ManualStage();
+
+        Bootstrap bootstrap = new Bootstrap()
+            .addStage("environment", environment)
+            .addStage("login", login, "environment")
+            .addStage("profile", profile, "login")
+            .addStage("messages", messages, "login");
+
+        Completion completion = new Completion();
+        bootstrap.start(completion);
+
+        assertTrue(environment.isStarted());
+        assertTrue(!login.isStarted());
+
+        environment.callback.complete(Request.Result.success);
+        login.callback.complete(Request.Result.success);
+
+        // both only wait for the login
+        assertTrue(profile.isStarted());
+        assertTrue(messages.isStarted());
+
+        profile.callback.complete(Request.Result.success);
+        assertNull(completion.result);
+
+        messages.callback.complete(Request.Result.success);
+        assertEquals(Request.Result.success, completion.result);
+        assertEquals(4, completion.report.stages.size());
+    }
+
+    @Test
+    public void failureSkipsTheDependentStages()
+    {
+        ManualStage environment = new ManualStage();
+        ManualStage login = new ManualStage();
+        ManualStage profile = new ManualStage();
+
+        Bootstrap bootstrap = new Bootstrap()
+            .addStage("environment", environment)
+            .addStage("login", login, "environment")
+            .addStage("profile", profile, "login");
+
+        Completion completion = new Completion();
+        bootstrap.start(completion);
+
+        environment.callback.complete(Request.Result.noInternet);
+
+        assertEquals(Request.Result.noInternet, completion.result);
+        assertTrue(!login.isStarted());
+
+        Map<String, Bootstrap.Timing> timings = timings(completion.report);
+        assertEquals(Bootstrap.State.skipped, timings.get("login").state);
+        assertEquals(Bootstrap.State.skipped, timings.get("profile").state);
+        assertEquals(Request.Result.noInternet, timings.get("profile").result);
+    }
+
+    @Test
+    public void backgroundStagesAreNotWaitedFor()
+    {
+        ManualStage environment = new ManualStage();
+        ManualStage warmup = new ManualStage();
+
+        Bootstrap bootstrap = new Bootstrap()
+            .addStage("environment", environment)
+            .addStage("warmup", warmup, true, "environment");
+
+        Completion completion = new Completion();
+        bootstrap.start(completion);
+
+        environment.callback.complete(Request.Result.success);
+
+        assertEquals(Request.Result.success, completion.result);
+        assertTrue(warmup.isStarted());
+
+        // its failure does not change the result
+        warmup.callback.complete(Request.Result.failed);
+        assertEquals(Bootstrap.State.complete, timings(bootstrap.getReport()).get("warmup").state);
+    }
+
+    @Test
+    public void throwingStageFails()
+    {
+        final List<String> started = new ArrayList<String>();
+
+        Bootstrap bootstrap = new Bootstrap()
+            .addStage("broken", new Bootstrap.Stage()
+            {
+                @Override
+                public void run(Bootstrap bootstrap, Bootstrap.StageCallback callback)
+                {
+                    started.add("broken");
+                    throw new IllegalStateException("Broken");
+                }
+            });
+
+        Completion completion = new Completion();
+        bootstrap.start(completion);
+
+        assertEquals(1, started.size());
+        assertEquals(Request.Result.failed, completion.result);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownDependencyIsRejected()
+    {
+        new Bootstrap().addStage("login", new ManualStage(), "environment");
+    }
+}
@@ -0,0 +1,159 @@
+package org.anthillplatform.runtime.util;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ConcurrentIntMapTest
+{
+    @Test
+    public void collidingKeysGoToTheOverflow()
+    {
+        ConcurrentIntMap<String> map = new ConcurrentIntMap<String>(4);
+
+        // all of them share a slot
+        map.put(1, "a");
+        map.put(5, "b");
+        map.put(9, "c");
+
+        assertEquals(3, map.size());
+        assertEquals("a", map.get(1));
+        assertEquals("b", map.get(5));
+        assertEquals("c", map.get(9));
+        assertNull(map.get(13));
+
+        assertEquals("a", map.remove(1));
+        assertEquals("b", map.get(5));
+        assertFalse(map.remove(9, "other"));
+        assertTrue(map.remove(9, "c"));
+
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void drainVisitsEveryEntryOnce()
+    {
+        ConcurrentIntMap<Integer> map = new ConcurrentIntMap<Integer>(8);
+
+        for (int i = 1; i <= 100; i++)
+        {
+            map.put(i, i);
+        }
+
+        final Map<Integer, Integer> visited = new HashMap<Integer, Integer>();
+
+        map.drain(new ConcurrentIntMap.Visitor<Integer>()
+        {
+            @Override
+            public void visit(int key, Integer value)
+            {
+                assertNull(visited.put(key, value));
+            }
+        });
+
+        assertEquals(100, visited.size());
+        assertTrue(map.isEmpty());
+    }
+
+    /**
+     * Like the request ids: one thread registers, another one takes the responses out, and a third one
+     * fails what is left, every request has to be completed exactly once
+     */
+    @Test
+    public void everyEntryIsTakenOnceUnderRace() throws Exception
+    {
+        final int count = 200000;
+        final ConcurrentIntMap<Integer> map = new ConcurrentIntMap<Integer>(1024);
+        final AtomicInteger taken = new AtomicInteger();
+        final AtomicInteger registered = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(2);
+
+        Thread writer = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                for (int i = 1; i <= count; i++)
+                {
+                    map.put(i, i);
+                    registered.set(i);
+                }
+
+                done.countDown();
+            }
+        });
+
+        Thread responder = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                int next = 1;
+
+                while (next <= count)
+                {
+                    if (next > registered.get())
+                        continue;
+
+                    if (map.remove(next) != null)
+                    {
+                        taken.incrementAndGet();
+                    }
+
+                    // every other response is skipped, left for the drain
+                    next += 2;
+                }
+
+                done.countDown();
+            }
+        });
+
+        Thread drainer = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                while (done.getCount() > 0)
+                {
+                    map.drain(new ConcurrentIntMap.Visitor<Integer>()
+                    {
+                        @Override
+                        public void visit(int key, Integer value)
+                        {
+                            assertEquals(key, value.intValue());
+                            taken.incrementAndGet();
+                        }
+                    });
+                }
+            }
+        });
+
+        writer.start();
+        responder.start();
+        drainer.start();
+
+        writer.join();
+        responder.join();
+        drainer.join();
+
+        map.drain(new ConcurrentIntMap.Visitor<Integer>()
+        {
+            @Override
+            public void visit(int key, Integer value)
+            {
+                taken.incrementAndGet();
+            }
+        });
+
+        assertEquals(count, taken.get());
+        assertEquals(0, map.size());
+    }
+}
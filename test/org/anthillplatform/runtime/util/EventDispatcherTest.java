@@ -0,0 +1,129 @@
+package org.anthillplatform.runtime.util;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EventDispatcherTest
+{
+    /**
+     * Runs the stripes only when asked to, so the queues can be filled up first
+     */
+    private static class ManualExecutor implements Executor
+    {
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+
+        @Override
+        public void execute(Runnable command)
+        {
+            tasks.add(command);
+        }
+
+        private void runAll()
+        {
+            Runnable task;
+
+            while ((task = tasks.poll()) != null)
+            {
+                task.run();
+            }
+        }
+    }
+
+    private static Runnable record(final List<String> events, final String event)
+    {
+        return new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                events.add(event);
+            }
+        };
+    }
+
+    @Test
+    public void dispatchAlwaysIsNotDroppedWhenFull()
+    {
+        ManualExecutor executor = new ManualExecutor();
+        EventDispatcher dispatcher = new EventDispatcher(executor, 1, 2, EventDispatcher.Overflow.DROP_NEWEST);
+        List<String> events = new ArrayList<String>();
+
+        dispatcher.dispatchAlways("session", record(events, "open"));
+        assertTrue(dispatcher.dispatch("session", record(events, "a")));
+        assertFalse(dispatcher.dispatch("session", record(events, "b")));
+        dispatcher.dispatchAlways("session", record(events, "close"));
+
+        executor.runAll();
+
+        assertEquals(Arrays.asList("open", "a", "close"), events);
+        assertEquals(1, dispatcher.getDropped());
+    }
+
+    @Test
+    public void dropOldestLeavesUndroppableEvents()
+    {
+        ManualExecutor executor = new ManualExecutor();
+        EventDispatcher dispatcher = new EventDispatcher(executor, 1, 2, EventDispatcher.Overflow.DROP_OLDEST);
+        List<String> events = new ArrayList<String>();
+
+        dispatcher.dispatchAlways("session", record(events, "open"));
+        assertTrue(dispatcher.dispatch("session", record(events, "a")));
+        assertTrue(dispatcher.dispatch("session", record(events, "b")));
+        assertTrue(dispatcher.dispatch("session", record(events, "c")));
+
+        executor.runAll();
+
+        assertEquals(Arrays.asList("open", "c"), events);
+        assertEquals(2, dispatcher.getDropped());
+    }
+
+    @Test
+    public void dropOldestDropsTheNewOneIfOnlyUndroppableQueued()
+    {
+        ManualExecutor executor = new ManualExecutor();
+        EventDispatcher dispatcher = new EventDispatcher(executor, 1, 1, EventDispatcher.Overflow.DROP_OLDEST);
+        List<String> events = new ArrayList<String>();
+
+        dispatcher.dispatchAlways("session", record(events, "open"));
+        assertFalse(dispatcher.dispatch("session", record(events, "a")));
+
+        executor.runAll();
+
+        assertEquals(Arrays.asList("open"), events);
+    }
+
+    @Test
+    public void keepsOrderPerKey()
+    {
+        ManualExecutor executor = new ManualExecutor();
+        EventDispatcher dispatcher = new EventDispatcher(executor, 4, 1024, EventDispatcher.Overflow.DROP_NEWEST);
+        List<String> first = new ArrayList<String>();
+        List<String> second = new ArrayList<String>();
+
+        for (int i = 0; i < 200; i++)
+        {
+            dispatcher.dispatch("first", record(first, String.valueOf(i)));
+            dispatcher.dispatch("second", record(second, String.valueOf(i)));
+        }
+
+        executor.runAll();
+
+        assertEquals(200, first.size());
+        assertEquals(200, second.size());
+
+        for (int i = 0; i < 200; i++)
+        {
+            assertEquals(String.valueOf(i), first.get(i));
+            assertEquals(String.valueOf(i), second.get(i));
+        }
+    }
+}
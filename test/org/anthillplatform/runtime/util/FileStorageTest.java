@@ -0,0 +1,106 @@
+package org.anthillplatform.runtime.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FileStorageTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static String value(int i)
+    {
+        StringBuilder value = new StringBuilder();
+
+        while (value.length() < 100)
+        {
+            value.append(i).append(' ');
+        }
+
+        return value.toString();
+    }
+
+    @Test
+    public void keepsValuesAcrossReopen() throws Exception
+    {
+        File file = new File(folder.getRoot(), "storage.log");
+
+        FileStorage storage = new FileStorage(file, 0);
+        storage.set("a", "1");
+        storage.set("b", "2");
+        storage.remove("b");
+        storage.close();
+
+        FileStorage reopened = new FileStorage(file, 0);
+        assertEquals("1", reopened.get("a"));
+        assertFalse(reopened.has("b"));
+        reopened.close();
+    }
+
+    @Test
+    public void compactionKeepsTheFileSmall() throws Exception
+    {
+        File file = new File(folder.getRoot(), "storage.log");
+        FileStorage storage = new FileStorage(file, 0);
+
+        for (int i = 0; i < 10000; i++)
+        {
+            storage.set("key" + (i % 10), value(i));
+        }
+
+        for (int i = 0; i < 10; i++)
+        {
+            assertEquals(value(9990 + i), storage.get("key" + i));
+        }
+
+        storage.close();
+
+        // a million bytes written in total, the log stays within a couple of compaction thresholds
+        assertTrue(file.length() + " bytes", file.length() <= 256 * 1024);
+        assertFalse(new File(file.getPath() + ".compact").exists());
+
+        FileStorage reopened = new FileStorage(file, 0);
+
+        for (int i = 0; i < 10; i++)
+        {
+            assertEquals(value(9990 + i), reopened.get("key" + i));
+        }
+
+        reopened.close();
+    }
+
+    @Test
+    public void interruptedCompactionIsFinishedOnOpen() throws Exception
+    {
+        File compacted = new File(folder.getRoot(), "compacted.log");
+        File file = new File(folder.getRoot(), "storage.log");
+
+        FileStorage source = new FileStorage(compacted, 0);
+        source.set("a", "new");
+        source.close();
+
+        FileStorage storage = new FileStorage(file, 0);
+        storage.set("a", "old");
+        storage.set("b", "dropped");
+        storage.close();
+
+        // as if the copy over the log has been interrupted
+        Files.copy(compacted.toPath(), new File(file.getPath() + ".compact").toPath());
+
+        FileStorage reopened = new FileStorage(file, 0);
+        assertEquals("new", reopened.get("a"));
+        assertNull(reopened.get("b"));
+        reopened.close();
+
+        assertFalse(new File(file.getPath() + ".compact").exists());
+    }
+}
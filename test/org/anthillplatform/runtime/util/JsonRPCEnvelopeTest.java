@@ -0,0 +1,106 @@
+package org.anthillplatform.runtime.util;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class JsonRPCEnvelopeTest
+{
+    @Test
+    public void readsTheHeaderFields()
+    {
+        JsonRPCEnvelope envelope = ((JsonRPCEnvelope) JsonRPCEnvelope.parse(
+            "{\"params\":{\"a\":[1,{\"b\":\"}\"}]},\"jsonrpc\":\"2.0\",\"method\":\"call\",\"id\":5}"));
+
+        assertEquals("2.0", envelope.version);
+        assertEquals("call", envelope.getMethod());
+        assertEquals(5, envelope.getId());
+        assertTrue(envelope.hasParams());
+        assertFalse(envelope.hasResult());
+
+        JSONObject params = ((JSONObject) envelope.getParams());
+        assertEquals("}", params.getJSONArray("a").getJSONObject(1).getString("b"));
+    }
+
+    @Test
+    public void readsTheIdAsOptIntWould()
+    {
+        assertEquals(7, ((JsonRPCEnvelope) JsonRPCEnvelope.parse("{\"id\":\"7\"}")).getId());
+        assertEquals(0, ((JsonRPCEnvelope) JsonRPCEnvelope.parse("{\"id\":null}")).getId());
+        assertEquals(0, ((JsonRPCEnvelope) JsonRPCEnvelope.parse("{\"id\":\"x\"}")).getId());
+        assertNull(((JsonRPCEnvelope) JsonRPCEnvelope.parse("{\"method\":\"\"}")).getMethod());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void readsBatches()
+    {
+        List<JsonRPCEnvelope> batch = ((List<JsonRPCEnvelope>) JsonRPCEnvelope.parse(
+            "[{\"jsonrpc\":\"2.0\",\"result\":1,\"id\":1}, 5, {\"jsonrpc\":\"2.0\",\"method\":\"m\"}]"));
+
+        assertEquals(3, batch.size());
+        assertEquals(1, batch.get(0).getResult());
+        assertNull(batch.get(1));
+        assertEquals("m", batch.get(2).getMethod());
+    }
+
+    @Test
+    public void readsDecodedMessagesTheSameWay()
+    {
+        String text = "{\"jsonrpc\":\"2.0\",\"method\":\"call\",\"params\":{\"a\":1},\"id\":3}";
+
+        Object decoded = MessagePack.decode(java.nio.ByteBuffer.wrap(MessagePack.encode(new JSONObject(text))));
+        JsonRPCEnvelope envelope = ((JsonRPCEnvelope) JsonRPCEnvelope.of(decoded));
+
+        assertEquals("call", envelope.getMethod());
+        assertEquals(3, envelope.getId());
+        assertEquals(1, ((JSONObject) envelope.getParams()).getInt("a"));
+    }
+
+    @Test
+    public void malformedMessagesAreRejected()
+    {
+        String[] malformed = {"{\"id\":1", "{\"id\":1} x", "[{\"id\":1},]", "{\"params\":{\"a\":1}"};
+
+        for (String message : malformed)
+        {
+            try
+            {
+                JsonRPCEnvelope.parse(message);
+                fail("Parsed " + message);
+            }
+            catch (JSONException e)
+            {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void malformedParamsFailOnceRead()
+    {
+        // only skipped over at first, the structure is fine
+        JsonRPCEnvelope envelope = ((JsonRPCEnvelope) JsonRPCEnvelope.parse(
+            "{\"jsonrpc\":\"2.0\",\"method\":\"call\",\"params\":{\"a\":},\"id\":1}"));
+
+        assertEquals("call", envelope.getMethod());
+
+        try
+        {
+            envelope.getParams();
+            fail("Parsed the params");
+        }
+        catch (JSONException e)
+        {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package org.anthillplatform.runtime.util;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JsonRPCTest
+{
+    private final List<Object> sent = new ArrayList<Object>();
+    private boolean accepting;
+    private JsonRPC rpc;
+
+    private static class RecordingHandler implements JsonRPC.ResponseHandler
+    {
+        private Object response;
+        private int code;
+
+        @Override
+        public void success(Object response)
+        {
+            this.response = response;
+        }
+
+        @Override
+        public void error(int code, String message, String data)
+        {
+            this.code = code;
+        }
+    }
+
+    @Before
+    public void setUp()
+    {
+        accepting = true;
+
+        rpc = new JsonRPC()
+        {
+            @Override
+            protected boolean offer(Object message)
+            {
+                if (!accepting)
+                    return false;
+
+                sent.add(message);
+                return true;
+            }
+
+            @Override
+            public void onError(int code, String message, String data)
+            {
+            }
+        };
+
+        rpc.addHandler("echo", new JsonRPC.MethodHandler()
+        {
+            @Override
+            public Object called(Object params)
+            {
+                return params;
+            }
+        });
+    }
+
+    @Test
+    public void batchRepliesAreSentTogether()
+    {
+        rpc.received("[" +
+            "{\"jsonrpc\":\"2.0\",\"method\":\"echo\",\"params\":{\"a\":1},\"id\":1}," +
+            "{\"jsonrpc\":\"2.0\",\"method\":\"echo\",\"params\":{\"a\":2},\"id\":2}]");
+
+        assertEquals(1, sent.size());
+
+        JSONArray replies = ((JSONArray) sent.get(0));
+        assertEquals(2, replies.length());
+        assertEquals(1, replies.getJSONObject(0).getInt("id"));
+        assertEquals(2, replies.getJSONObject(1).getJSONObject("result").getInt("a"));
+    }
+
+    @Test
+    public void methodNotFoundInBatchHasTheRequestId()
+    {
+        rpc.received("[" +
+            "{\"jsonrpc\":\"2.0\",\"method\":\"missing\",\"params\":{},\"id\":7}," +
+            "{\"jsonrpc\":\"2.0\",\"method\":\"echo\",\"params\":{},\"id\":8}]");
+
+        JSONArray replies = ((JSONArray) sent.get(0));
+        assertEquals(2, replies.length());
+
+        JSONObject error = replies.getJSONObject(0);
+        assertEquals(7, error.getInt("id"));
+        assertEquals(-32601, error.getJSONObject("error").getInt("code"));
+    }
+
+    @Test
+    public void notificationsAreNotReplied()
+    {
+        rpc.received("[" +
+            "{\"jsonrpc\":\"2.0\",\"method\":\"missing\",\"params\":{}}," +
+            "{\"jsonrpc\":\"2.0\",\"method\":\"echo\",\"params\":{}}]");
+
+        assertTrue(sent.isEmpty());
+    }
+
+    @Test
+    public void batchResponsesReachTheirHandlers()
+    {
+        RecordingHandler first = new RecordingHandler();
+        RecordingHandler second = new RecordingHandler();
+
+        JsonRPC.Batch batch = new JsonRPC.Batch()
+            .request("echo", first, new JSONObject())
+            .request("echo", second, new JSONObject());
+
+        assertTrue(rpc.sendBatch(batch));
+
+        JSONArray calls = ((JSONArray) sent.get(0));
+        int firstId = calls.getJSONObject(0).getInt("id");
+        int secondId = calls.getJSONObject(1).getInt("id");
+
+        rpc.received("[" +
+            "{\"jsonrpc\":\"2.0\",\"result\":\"b\",\"id\":" + secondId + "}," +
+            "{\"jsonrpc\":\"2.0\",\"error\":{\"code\":1,\"message\":\"a\"},\"id\":" + firstId + "}]");
+
+        assertEquals(1, first.code);
+        assertEquals("b", second.response);
+    }
+
+    @Test
+    public void batchNotSentFailsItsRequests()
+    {
+        RecordingHandler handler = new RecordingHandler();
+        accepting = false;
+
+        JsonRPC.Batch batch = new JsonRPC.Batch()
+            .request("echo", handler, new JSONObject())
+            .rpc("echo", new JSONObject());
+
+        assertFalse(rpc.sendBatch(batch));
+        assertEquals(JsonRPC.ERROR_SEND_QUEUE_FULL, handler.code);
+    }
+
+    @Test
+    public void failedBatchFailsItsRequests()
+    {
+        RecordingHandler handler = new RecordingHandler();
+
+        new JsonRPC.Batch()
+            .request("echo", handler, new JSONObject())
+            .fail(JsonRPC.ERROR_CONNECTION_CLOSED, "Connection closed");
+
+        assertEquals(JsonRPC.ERROR_CONNECTION_CLOSED, handler.code);
+        assertTrue(sent.isEmpty());
+    }
+}
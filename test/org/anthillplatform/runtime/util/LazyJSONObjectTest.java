@@ -0,0 +1,51 @@
+package org.anthillplatform.runtime.util;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LazyJSONObjectTest
+{
+    @Test
+    public void parsesOnFirstAccess()
+    {
+        LazyJSONObject object = new LazyJSONObject("{\"a\":1}");
+
+        assertFalse(object.isParsed());
+        assertEquals("{\"a\":1}", object.toJSONString());
+
+        assertEquals(1, object.get().getInt("a"));
+        assertTrue(object.isParsed());
+        assertFalse(object.isMalformed());
+        assertNull(object.getParseError());
+    }
+
+    @Test
+    public void malformedSourceIsRecorded()
+    {
+        LazyJSONObject object = new LazyJSONObject("{\"a\":");
+
+        assertEquals(0, object.get().length());
+        assertTrue(object.isMalformed());
+        assertNotNull(object.getParseError());
+    }
+
+    @Test
+    public void optUnderstandsBothKinds()
+    {
+        JSONObject data = new JSONObject();
+        data.put("parsed", new JSONObject().put("a", 1));
+        data.put("lazy", new LazyJSONObject("{\"a\":2}"));
+        data.put("number", 3);
+
+        assertEquals(1, LazyJSONObject.optJSONObject(data, "parsed").getInt("a"));
+        assertEquals(2, LazyJSONObject.optJSONObject(data, "lazy").getInt("a"));
+        assertNull(LazyJSONObject.optJSONObject(data, "number"));
+        assertNull(LazyJSONObject.optJSONObject(data, "missing"));
+    }
+}
@@ -0,0 +1,139 @@
+package org.anthillplatform.runtime.util;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MessagePackTest
+{
+    private static Object roundTrip(Object value)
+    {
+        return MessagePack.decode(ByteBuffer.wrap(MessagePack.encode(value)));
+    }
+
+    private static String repeat(char c, int count)
+    {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    @Test
+    public void integersAtTheFormatBoundaries()
+    {
+        long[] values = {0, 127, 128, 255, 256, 65535, 65536, -1, -32, -33, -128, -129, -32768, -32769,
+            Integer.MAX_VALUE, Integer.MIN_VALUE, 4294967295L, Long.MAX_VALUE, Long.MIN_VALUE};
+
+        for (long value : values)
+        {
+            Object decoded = roundTrip(value);
+            assertEquals(String.valueOf(value), value, ((Number) decoded).longValue());
+
+            // what org.json would parse out of the text, so the handlers see the same types
+            if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE)
+            {
+                assertTrue(String.valueOf(value), decoded instanceof Integer);
+            }
+        }
+    }
+
+    @Test
+    public void stringsAtTheFormatBoundaries()
+    {
+        int[] lengths = {0, 31, 32, 255, 256, 65535, 65536};
+
+        for (int length : lengths)
+        {
+            String value = repeat('x', length);
+            assertEquals(value, roundTrip(value));
+        }
+
+        assertEquals("привет 😀", roundTrip("привет 😀"));
+    }
+
+    @Test
+    public void nestedObjects()
+    {
+        JSONObject object = new JSONObject();
+
+        object.put("string", "value");
+        object.put("int", 42);
+        object.put("long", 1L << 40);
+        object.put("double", 0.5);
+        object.put("true", true);
+        object.put("false", false);
+        object.put("null", JSONObject.NULL);
+        object.put("array", new JSONArray().put(1).put("two").put(new JSONObject().put("three", 3)));
+        object.put("empty", new JSONObject());
+
+        JSONArray large = new JSONArray();
+        JSONObject wide = new JSONObject();
+
+        for (int i = 0; i < 20; i++)
+        {
+            large.put(i);
+            wide.put("key" + i, i);
+        }
+
+        object.put("large", large);
+        object.put("wide", wide);
+
+        JSONObject decoded = ((JSONObject) roundTrip(object));
+        assertTrue(decoded.toString(), object.similar(decoded));
+    }
+
+    @Test
+    public void arrayAssembledOfSeparateElements()
+    {
+        JSONObject first = new JSONObject().put("id", 1);
+        JSONObject second = new JSONObject().put("id", 2);
+
+        ByteArrayOutputStream batch = new ByteArrayOutputStream();
+
+        for (byte[] part : new byte[][] {MessagePack.encodeArrayHeader(2),
+                MessagePack.encode(first), MessagePack.encode(second)})
+        {
+            batch.write(part, 0, part.length);
+        }
+
+        JSONArray decoded = ((JSONArray) MessagePack.decode(ByteBuffer.wrap(batch.toByteArray())));
+
+        assertEquals(2, decoded.length());
+        assertEquals(2, decoded.getJSONObject(1).getInt("id"));
+    }
+
+    @Test
+    public void malformedDataIsRejected()
+    {
+        byte[] encoded = MessagePack.encode(new JSONObject().put("key", "value"));
+
+        byte[][] malformed = {
+            Arrays.copyOf(encoded, encoded.length - 1),
+            Arrays.copyOf(encoded, encoded.length + 1),
+            {(byte) 0xc1},
+            {(byte) 0xdb, 0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xff}
+        };
+
+        for (byte[] data : malformed)
+        {
+            try
+            {
+                MessagePack.decode(ByteBuffer.wrap(data));
+                fail("Decoded " + Arrays.toString(data));
+            }
+            catch (JSONException e)
+            {
+                // expected
+            }
+        }
+    }
+}
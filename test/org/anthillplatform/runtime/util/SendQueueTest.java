@@ -0,0 +1,163 @@
+package org.anthillplatform.runtime.util;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SendQueueTest
+{
+    /**
+     * Holds everything back until ready is set, like a connection that has not drained yet
+     */
+    private static class TestQueue extends SendQueue
+    {
+        private boolean ready;
+        private final List<Object> written = new ArrayList<Object>();
+
+        private TestQueue(WebSocketOptions options)
+        {
+            super(options);
+        }
+
+        @Override
+        protected boolean isReady()
+        {
+            return ready;
+        }
+
+        @Override
+        protected boolean isBinary()
+        {
+            return false;
+        }
+
+        @Override
+        protected void write(List<Object> encoded)
+        {
+            written.addAll(encoded);
+        }
+
+        @Override
+        protected void superseded(int id, int byId)
+        {
+        }
+    }
+
+    private static WebSocketOptions appendingOptions(int limit)
+    {
+        WebSocketOptions options = new WebSocketOptions();
+        options.sendQueueLimit = limit;
+
+        // the merged message grows with every one superseded
+        options.superseding.put("append", new WebSocketOptions.Superseding()
+        {
+            @Override
+            public Object key(JSONObject params)
+            {
+                return params.optString("key");
+            }
+
+            @Override
+            public JSONObject merge(JSONObject queued, JSONObject latest)
+            {
+                JSONArray items = new JSONArray();
+
+                for (Object item : queued.getJSONArray("items"))
+                    items.put(item);
+
+                for (Object item : latest.getJSONArray("items"))
+                    items.put(item);
+
+                return new JSONObject().put("key", queued.optString("key")).put("items", items);
+            }
+        });
+
+        return options;
+    }
+
+    private static JSONObject append(String key, String item)
+    {
+        return new JSONObject()
+            .put("jsonrpc", "2.0")
+            .put("method", "append")
+            .put("params", new JSONObject().put("key", key).put("items", new JSONArray().put(item)));
+    }
+
+    @Test
+    public void supersedesQueuedMessage()
+    {
+        TestQueue queue = new TestQueue(appendingOptions(1024 * 1024));
+
+        assertTrue(queue.offer(append("a", "1")));
+        assertTrue(queue.offer(append("a", "2")));
+
+        queue.ready = true;
+        queue.flush();
+
+        assertEquals(1, queue.written.size());
+        JSONObject written = new JSONObject((String) queue.written.get(0));
+        assertEquals(2, written.getJSONObject("params").getJSONArray("items").length());
+    }
+
+    @Test
+    public void mergedMessageOverTheLimitIsRejected()
+    {
+        JSONObject other = append("b", "other");
+        JSONObject first = append("a", "1");
+
+        int limit = other.toString().length() + first.toString().length();
+        TestQueue queue = new TestQueue(appendingOptions(limit));
+
+        assertTrue(queue.offer(other));
+        assertTrue(queue.offer(first));
+        assertEquals(limit, queue.getQueuedSize());
+
+        assertFalse(queue.offer(append("a", "2")));
+        assertEquals(limit, queue.getQueuedSize());
+
+        queue.ready = true;
+        queue.flush();
+
+        // the queued one is kept as it was
+        assertEquals(2, queue.written.size());
+        assertEquals(first.toString(), queue.written.get(1));
+    }
+
+    @Test
+    public void rejectedMessageIsNotSupersededLater()
+    {
+        JSONObject other = append("b", "other");
+        TestQueue queue = new TestQueue(appendingOptions(other.toString().length()));
+
+        assertTrue(queue.offer(other));
+        assertFalse(queue.offer(append("a", "1")));
+
+        queue.ready = true;
+        queue.flush();
+
+        // not merged into the one that has never been queued
+        assertTrue(queue.offer(append("a", "2")));
+        assertEquals(2, queue.written.size());
+
+        JSONObject written = new JSONObject((String) queue.written.get(1));
+        assertEquals("2", written.getJSONObject("params").getJSONArray("items").getString(0));
+    }
+
+    @Test
+    public void drainNotificationOnlyWhenHoldingBack()
+    {
+        assertFalse(new TestQueue(new WebSocketOptions()).needsDrainNotification());
+        assertTrue(new TestQueue(appendingOptions(1024)).needsDrainNotification());
+
+        WebSocketOptions coalescing = new WebSocketOptions();
+        coalescing.coalesce = true;
+        assertTrue(new TestQueue(coalescing).needsDrainNotification());
+    }
+}
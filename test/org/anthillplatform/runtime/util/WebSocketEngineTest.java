@@ -0,0 +1,153 @@
+package org.anthillplatform.runtime.util;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.handshake.ServerHandshake;
+import org.java_websocket.server.WebSocketServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WebSocketEngineTest
+{
+    private static final int SESSIONS = 200;
+    private static final int ENGINE_THREADS = 2;
+
+    private WebSocketServer server;
+    private int port;
+
+    @Before
+    public void startServer() throws Exception
+    {
+        ServerSocket probe = new ServerSocket(0);
+        port = probe.getLocalPort();
+        probe.close();
+
+        final CountDownLatch started = new CountDownLatch(1);
+
+        server = new WebSocketServer(new InetSocketAddress("localhost", port))
+        {
+            @Override
+            public void onOpen(WebSocket conn, ClientHandshake handshake)
+            {
+            }
+
+            @Override
+            public void onClose(WebSocket conn, int code, String reason, boolean remote)
+            {
+            }
+
+            @Override
+            public void onMessage(WebSocket conn, String message)
+            {
+            }
+
+            @Override
+            public void onError(WebSocket conn, Exception ex)
+            {
+            }
+
+            @Override
+            public void onStart()
+            {
+                started.countDown();
+            }
+        };
+
+        server.setConnectionLostTimeout(0);
+        server.start();
+
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+    }
+
+    @After
+    public void stopServer() throws Exception
+    {
+        server.stop(1000);
+    }
+
+    @Test
+    public void sessionsDoNotStartThreads() throws Exception
+    {
+        int threadsBefore = Thread.activeCount();
+
+        WebSocketEngine engine = new WebSocketEngine(ENGINE_THREADS);
+        WebSocketOptions options = new WebSocketOptions();
+        options.engine = engine;
+
+        final CountDownLatch open = new CountDownLatch(SESSIONS);
+        List<WebSocketJsonRPC> sessions = new ArrayList<WebSocketJsonRPC>();
+
+        for (int i = 0; i < SESSIONS; i++)
+        {
+            WebSocketJsonRPC session = new WebSocketJsonRPC(new URI("ws://localhost:" + port), options)
+            {
+                @Override
+                public void onOpen(ServerHandshake handshake)
+                {
+                    super.onOpen(handshake);
+                    open.countDown();
+                }
+
+                @Override
+                protected void onError(int code, String message, String data)
+                {
+                }
+
+                @Override
+                public void onError(Exception ex)
+                {
+                }
+            };
+
+            sessions.add(session);
+            session.connect();
+        }
+
+        assertTrue("Sessions not open in time", open.await(30, TimeUnit.SECONDS));
+
+        int connectionLostCheckers = 0;
+
+        for (Thread thread : getThreads())
+        {
+            if (thread.getName().contains("connectionLostChecker"))
+            {
+                connectionLostCheckers++;
+            }
+        }
+
+        assertEquals(0, connectionLostCheckers);
+
+        // the selectors, the workers, and the shared wheel timer of the heartbeat
+        int added = Thread.activeCount() - threadsBefore;
+        assertTrue(added + " threads added for " + SESSIONS + " sessions", added <= ENGINE_THREADS * 3 + 1);
+
+        for (WebSocketJsonRPC session : sessions)
+        {
+            session.close();
+        }
+
+        engine.stop();
+    }
+
+    private static Thread[] getThreads()
+    {
+        Thread[] threads = new Thread[Thread.activeCount() * 2];
+        int count = Thread.enumerate(threads);
+
+        Thread[] result = new Thread[count];
+        System.arraycopy(threads, 0, result, 0, count);
+        return result;
+    }
+}
@@ -0,0 +1,166 @@
+package org.anthillplatform.runtime.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WriteBehindStorageTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static class MemoryStorage extends Storage implements Closeable
+    {
+        private final Map<String, String> data = new HashMap<String, String>();
+        private volatile int failures;
+        private volatile boolean closed;
+
+        @Override
+        public void set(String key, String value)
+        {
+            data.put(key, value);
+        }
+
+        @Override
+        public String get(String key)
+        {
+            return data.get(key);
+        }
+
+        @Override
+        public boolean has(String key)
+        {
+            return data.containsKey(key);
+        }
+
+        @Override
+        public void remove(String key)
+        {
+            data.remove(key);
+        }
+
+        @Override
+        public void save()
+        {
+            if (failures > 0)
+            {
+                failures--;
+                throw new IllegalStateException("Disk full");
+            }
+        }
+
+        @Override
+        public void close()
+        {
+            closed = true;
+        }
+    }
+
+    @Test
+    public void flushWritesTheLastChanges()
+    {
+        MemoryStorage memory = new MemoryStorage();
+        WriteBehindStorage storage = new WriteBehindStorage(memory);
+
+        storage.set("a", "1");
+        storage.set("a", "2");
+        storage.set("b", "1");
+        storage.remove("b");
+
+        assertEquals("2", storage.get("a"));
+        assertNull(storage.get("b"));
+
+        assertTrue(storage.flush(5000));
+        assertEquals("2", memory.get("a"));
+        assertFalse(memory.has("b"));
+
+        storage.close(5000);
+    }
+
+    @Test
+    public void failedBatchIsKeptForTheNextOne()
+    {
+        MemoryStorage memory = new MemoryStorage();
+        memory.failures = 1;
+
+        WriteBehindStorage storage = new WriteBehindStorage(memory);
+        storage.set("a", "1");
+
+        assertTrue(storage.flush(5000));
+        assertEquals("1", memory.get("a"));
+        assertEquals(0, storage.getBacklog());
+
+        storage.close(5000);
+    }
+
+    @Test
+    public void closeClosesTheWrappedStorage()
+    {
+        MemoryStorage memory = new MemoryStorage();
+        WriteBehindStorage storage = new WriteBehindStorage(memory);
+
+        storage.set("a", "1");
+
+        assertTrue(storage.close(5000));
+        assertTrue(memory.closed);
+        assertEquals("1", memory.get("a"));
+
+        // the result of the first time
+        assertTrue(storage.close(5000));
+    }
+
+    @Test
+    public void changesAfterCloseAreRejected()
+    {
+        WriteBehindStorage storage = new WriteBehindStorage(new MemoryStorage());
+        storage.close(5000);
+
+        try
+        {
+            storage.set("a", "1");
+            fail("set after close");
+        }
+        catch (IllegalStateException e)
+        {
+            // expected
+        }
+
+        try
+        {
+            storage.remove("a");
+            fail("remove after close");
+        }
+        catch (IllegalStateException e)
+        {
+            // expected
+        }
+    }
+
+    @Test
+    public void fileStorageIsFlushedAndClosed() throws Exception
+    {
+        File file = new File(folder.getRoot(), "storage.log");
+
+        WriteBehindStorage storage = new WriteBehindStorage(new FileStorage(file, 0));
+        storage.set("a", "1");
+        storage.set("b", "2");
+
+        assertTrue(storage.close(5000));
+
+        FileStorage reopened = new FileStorage(file, 0);
+        assertEquals("1", reopened.get("a"));
+        assertEquals("2", reopened.get("b"));
+        reopened.close();
+    }
+}